@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.cloud.grpc.GcpManagedChannel.ChannelRef;
+import com.google.cloud.grpc.GcpManagedChannelOptions.GcpChannelPoolOptions;
+import com.google.cloud.grpc.GcpManagedChannelOptions.GcpChannelPoolOptions.ChannelPickStrategy;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the cost of picking a channel for a call without affinity depending on the pool size.
+ *
+ * <p>Run with {@code ./gradlew jmh -PjmhInclude=ChannelPickBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChannelPickBenchmark {
+
+  @Param({"4", "16", "64", "256"})
+  public int maxSize;
+
+  @Param({"LEAST_BUSY", "POWER_OF_TWO_CHOICES"})
+  public ChannelPickStrategy strategy;
+
+  // Active streams of every channel on top of the spread load.
+  @Param({"0", "100"})
+  public int busyStreams;
+
+  private GcpManagedChannel pool;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    pool =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(
+                    ManagedChannelBuilder.forAddress("localhost", 443))
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setMaxSize(maxSize)
+                                .setConcurrentStreamsLowWatermark(0)
+                                .setChannelPickStrategy(strategy)
+                                .build())
+                        .build())
+                .build();
+    // With zero low watermark every pick creates a new channel until the pool is full.
+    for (int i = 0; i < maxSize; i++) {
+      ChannelRef channelRef = pool.getChannelRef(null);
+      // Spread some load across the pool.
+      for (int j = 0; j < busyStreams + i % 7 + 1; j++) {
+        channelRef.activeStreamsCountIncr();
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  /** Pick only. */
+  @Benchmark
+  public ChannelRef pick() {
+    return pool.getChannelRef(null);
+  }
+
+  /** Pick and simulate a call on the picked channel, including load bookkeeping. */
+  @Benchmark
+  public ChannelRef pickAndComplete() {
+    ChannelRef channelRef = pool.getChannelRef(null);
+    channelRef.activeStreamsCountIncr();
+    channelRef.activeStreamsCountDecr(0, Status.OK, false);
+    return channelRef;
+  }
+
+  /** Same as {@link #pickAndComplete} with calls made concurrently. */
+  @Benchmark
+  @Threads(4)
+  public ChannelRef pickAndCompleteConcurrently() {
+    return pickAndComplete();
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Limits the number of concurrent calls of a pool. Calls above the limit wait in a bounded FIFO
+ * queue and are admitted one by one as calls complete. A waiting call fails when its deadline
+ * expires or after the maximum wait, whichever comes first.
+ *
+ * <p>With the adaptive limit the limit is learned using additive increase, multiplicative decrease:
+ * it grows by one per limit of successful calls made while the limit was nearly used, and shrinks
+ * by {@link #BACKOFF_RATIO} when a call fails with a status indicating that the server or the
+ * connection is overloaded. The calls in flight when the limit shrinks likely fail for the same
+ * overload, so the limit shrinks at most once until they complete, i.e. once per round trip. The
+ * configured limit is the upper bound of the adaptive limit.
+ */
+final class AdmissionController {
+  static final double BACKOFF_RATIO = 0.9;
+  // Share of the limit which must be in use for a successful call to raise the limit.
+  private static final double INCREASE_UTILIZATION = 0.8;
+
+  private final int maxLimit;
+  private final boolean adaptive;
+  private final int maxQueueSize;
+  private final long maxWaitNanos;
+  private final Supplier<ScheduledExecutorService> scheduler;
+
+  @GuardedBy("this")
+  private double limit;
+
+  @GuardedBy("this")
+  private int inFlight;
+
+  // The number of completed calls, counted with the adaptive limit only.
+  @GuardedBy("this")
+  private long completions;
+
+  // The number of completed calls from which a failure may shrink the limit again.
+  @GuardedBy("this")
+  private long nextBackoffCompletions;
+
+  @GuardedBy("this")
+  private final ArrayDeque<Admission> queue = new ArrayDeque<>();
+
+  // Metrics counters.
+  @GuardedBy("this")
+  private int maxQueueDepth;
+
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong waitOccurrences = new AtomicLong();
+  private final AtomicLong maxWaitNanosSeen = new AtomicLong();
+  private final AtomicLong rejectedCalls = new AtomicLong();
+
+  /**
+   * @param maxLimit the limit of concurrent calls, or the upper bound of the adaptive limit.
+   * @param adaptive whether to learn the limit.
+   * @param maxQueueSize the maximum number of waiting calls, further calls are rejected.
+   * @param maxWaitNanos the maximum time a call may wait, or 0 to wait indefinitely.
+   * @param scheduler provides the executor running the wait timeouts.
+   */
+  AdmissionController(
+      int maxLimit,
+      boolean adaptive,
+      int maxQueueSize,
+      long maxWaitNanos,
+      Supplier<ScheduledExecutorService> scheduler) {
+    this.maxLimit = maxLimit;
+    this.adaptive = adaptive;
+    this.maxQueueSize = maxQueueSize;
+    this.maxWaitNanos = maxWaitNanos;
+    this.scheduler = scheduler;
+    this.limit = maxLimit;
+  }
+
+  /** A call waiting for admission. */
+  abstract static class Admission {
+    private long enqueuedNanos;
+    @Nullable private ScheduledFuture<?> timeout;
+
+    /** Starts the admitted call. Called at most once and never together with {@link #reject}. */
+    abstract void admit();
+
+    /** Fails the call. Called at most once and never together with {@link #admit}. */
+    abstract void reject(Status status);
+  }
+
+  /** Admits the call right away or queues it without a deadline. */
+  void acquire(Admission admission) {
+    acquire(admission, null);
+  }
+
+  /**
+   * Admits the call right away or queues it. A call rejected because the queue is full is failed
+   * with RESOURCE_EXHAUSTED, a call whose deadline expires before admission with
+   * DEADLINE_EXCEEDED, a call which cannot be timed out while the pool is shutting down with
+   * UNAVAILABLE. Every admitted call must be followed by {@link #release}.
+   *
+   * @param deadline the deadline of the call, if any.
+   */
+  void acquire(Admission admission, @Nullable Deadline deadline) {
+    Status rejection;
+    synchronized (this) {
+      if (queue.isEmpty() && inFlight < (int) limit) {
+        inFlight++;
+        rejection = null;
+      } else if (deadline != null && deadline.isExpired()) {
+        rejection =
+            Status.DEADLINE_EXCEEDED.withDescription("Deadline expired before admission.");
+      } else if (queue.size() < maxQueueSize) {
+        rejection = null;
+        try {
+          scheduleTimeout(admission, deadline);
+        } catch (RejectedExecutionException e) {
+          // The pool is shutting down, a call which must not wait indefinitely is not queued.
+          rejection = Status.UNAVAILABLE.withDescription("The channel pool is shutting down.");
+        }
+        if (rejection == null) {
+          admission.enqueuedNanos = System.nanoTime();
+          queue.add(admission);
+          maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+          return;
+        }
+      } else {
+        rejection =
+            Status.RESOURCE_EXHAUSTED.withDescription(
+                String.format("Too many calls waiting for admission: %d.", maxQueueSize));
+      }
+    }
+    if (rejection == null) {
+      admission.admit();
+      return;
+    }
+    rejectedCalls.incrementAndGet();
+    admission.reject(rejection);
+  }
+
+  // Schedules the timeout of a waiting call at the earlier of its deadline and the max wait.
+  @GuardedBy("this")
+  private void scheduleTimeout(Admission admission, @Nullable Deadline deadline) {
+    long waitNanos = maxWaitNanos;
+    boolean deadlineFirst = false;
+    if (deadline != null) {
+      long remainingNanos = deadline.timeRemaining(TimeUnit.NANOSECONDS);
+      if (waitNanos == 0 || remainingNanos < waitNanos) {
+        waitNanos = remainingNanos;
+        deadlineFirst = true;
+      }
+    }
+    if (waitNanos <= 0 && !deadlineFirst) {
+      return;
+    }
+    boolean deadlineExceeded = deadlineFirst;
+    admission.timeout =
+        scheduler
+            .get()
+            .schedule(
+                () -> timeout(admission, deadlineExceeded),
+                Math.max(0, waitNanos),
+                TimeUnit.NANOSECONDS);
+  }
+
+  private void timeout(Admission admission, boolean deadlineExceeded) {
+    synchronized (this) {
+      if (!queue.remove(admission)) {
+        return;
+      }
+    }
+    long waitNanos = System.nanoTime() - admission.enqueuedNanos;
+    recordWait(waitNanos);
+    rejectedCalls.incrementAndGet();
+    if (deadlineExceeded) {
+      admission.reject(
+          Status.DEADLINE_EXCEEDED.withDescription(
+              String.format(
+                  "Deadline expired after waiting %d ms for admission.",
+                  TimeUnit.NANOSECONDS.toMillis(waitNanos))));
+      return;
+    }
+    admission.reject(
+        Status.RESOURCE_EXHAUSTED.withDescription(
+            String.format(
+                "Call was not admitted within %d ms.",
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos))));
+  }
+
+  /**
+   * Removes a waiting call, e.g. when it is cancelled. Returns false if the call is not waiting.
+   */
+  boolean remove(Admission admission) {
+    synchronized (this) {
+      if (!queue.remove(admission)) {
+        return false;
+      }
+    }
+    if (admission.timeout != null) {
+      admission.timeout.cancel(false);
+    }
+    return true;
+  }
+
+  /**
+   * Releases the slot of a completed call and admits waiting calls.
+   *
+   * @param status the status of the call.
+   */
+  void release(Status status) {
+    List<Admission> admitted = new ArrayList<>(1);
+    synchronized (this) {
+      if (adaptive) {
+        adjustLimit(status);
+      }
+      inFlight--;
+      while (!queue.isEmpty() && inFlight < (int) limit) {
+        inFlight++;
+        admitted.add(queue.poll());
+      }
+    }
+    long nowNanos = System.nanoTime();
+    for (Admission admission : admitted) {
+      if (admission.timeout != null) {
+        admission.timeout.cancel(false);
+      }
+      recordWait(nowNanos - admission.enqueuedNanos);
+      admission.admit();
+    }
+  }
+
+  @GuardedBy("this")
+  private void adjustLimit(Status status) {
+    completions++;
+    switch (status.getCode()) {
+      case OK:
+        if (inFlight >= limit * INCREASE_UTILIZATION) {
+          limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        break;
+      case RESOURCE_EXHAUSTED:
+      case UNAVAILABLE:
+      case DEADLINE_EXCEEDED:
+        if (completions >= nextBackoffCompletions) {
+          limit = Math.max(1, limit * BACKOFF_RATIO);
+          // Wait for the other calls in flight, this one is not released yet.
+          nextBackoffCompletions = completions + inFlight - 1;
+        }
+        break;
+      default:
+        // Other errors, including cancellations, say nothing about the load.
+    }
+  }
+
+  private void recordWait(long waitNanos) {
+    totalWaitNanos.addAndGet(waitNanos);
+    waitOccurrences.incrementAndGet();
+    maxWaitNanosSeen.accumulateAndGet(waitNanos, Math::max);
+  }
+
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  synchronized int getQueueSize() {
+    return queue.size();
+  }
+
+  /** Returns the maximum queue depth since the last call and resets it to the current depth. */
+  synchronized int getAndResetMaxQueueDepth() {
+    int value = maxQueueDepth;
+    maxQueueDepth = queue.size();
+    return value;
+  }
+
+  /** Returns the average wait in microseconds since the last call. */
+  long getAndResetAvgWaitMicros() {
+    long total = totalWaitNanos.getAndSet(0);
+    long occ = waitOccurrences.getAndSet(0);
+    return occ == 0 ? 0 : total / occ / 1000;
+  }
+
+  /** Returns the maximum wait in microseconds since the last call. */
+  long getAndResetMaxWaitMicros() {
+    return maxWaitNanosSeen.getAndSet(0) / 1000;
+  }
+
+  long getRejectedCalls() {
+    return rejectedCalls.get();
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * Decides which affinity keys are unbound because they were not used for too long or because too
+ * many keys are bound.
+ *
+ * <p>Time is counted in ticks advanced by a periodic sweep of the keys. Every key records the tick
+ * of its last use, which is a plain write of an int only if the tick has changed since the
+ * previous use, so tracking takes no lock and rarely writes. A key expires when it was not used
+ * for the timeout in ticks. When there are too many keys, the keys with the oldest last use tick
+ * are evicted first, keys older than {@link #MAX_AGE} ticks in any order.
+ */
+final class AffinityKeyExpiry {
+  @VisibleForTesting static final int MAX_AGE = 63;
+  private static final long MIN_TICK_NANOS = MILLISECONDS.toNanos(100);
+  private static final long DEFAULT_TICK_NANOS = SECONDS.toNanos(1);
+
+  private final long tickNanos;
+  // 0 if keys do not expire.
+  private final int timeoutTicks;
+  // 0 if the number of keys is not limited.
+  private final int maxKeys;
+  // The number of keys left by an eviction.
+  private final int evictToKeys;
+  // Advanced by the sweeping thread only.
+  private volatile int tick;
+
+  // Metrics counters.
+  private final AtomicLong expiredKeys = new AtomicLong();
+  private final AtomicLong evictedKeys = new AtomicLong();
+
+  /**
+   * @param timeoutNanos the time without use after which a key expires, 0 if keys do not expire.
+   * @param maxKeys the maximum number of keys, 0 if not limited.
+   */
+  AffinityKeyExpiry(long timeoutNanos, int maxKeys) {
+    if (timeoutNanos > 0) {
+      tickNanos = Math.max(timeoutNanos / 4, MIN_TICK_NANOS);
+      timeoutTicks = (int) Math.max(1, (timeoutNanos + tickNanos - 1) / tickNanos);
+    } else {
+      tickNanos = DEFAULT_TICK_NANOS;
+      timeoutTicks = 0;
+    }
+    this.maxKeys = maxKeys;
+    this.evictToKeys = maxKeys - maxKeys / 10;
+  }
+
+  long getTickNanos() {
+    return tickNanos;
+  }
+
+  /** Returns the current tick to record as the last use of a key. */
+  int getTick() {
+    return tick;
+  }
+
+  /** Advances the tick. Must be called by the sweeping thread only. */
+  void advance() {
+    tick = tick + 1;
+  }
+
+  boolean isOverLimit(int keys) {
+    return maxKeys > 0 && keys > maxKeys;
+  }
+
+  /**
+   * Starts a sweep of the keys.
+   *
+   * @param keys the number of bound keys.
+   * @param lastUses passes the last use ticks of all keys to the consumer. Used only if the keys
+   *     are over the limit.
+   * @return the sweep or null if no key has to be unbound.
+   */
+  @Nullable
+  Sweep startSweep(int keys, Consumer<IntConsumer> lastUses) {
+    int now = tick;
+    if (!isOverLimit(keys)) {
+      return timeoutTicks > 0 ? new Sweep(now, Integer.MAX_VALUE, 0) : null;
+    }
+    long[] counts = new long[MAX_AGE + 1];
+    long[] excess = {(long) keys - evictToKeys};
+    lastUses.accept(
+        lastUse -> {
+          if (isExpired(now, lastUse)) {
+            // Expired keys are unbound anyway.
+            excess[0]--;
+          } else {
+            counts[age(now, lastUse)]++;
+          }
+        });
+    long toEvict = excess[0];
+    for (int age = MAX_AGE; age >= 0 && toEvict > 0; age--) {
+      if (counts[age] >= toEvict) {
+        return new Sweep(now, age, toEvict);
+      }
+      toEvict -= counts[age];
+    }
+    // Keys were unbound meanwhile or there are only expired keys to unbind.
+    return toEvict > 0 ? new Sweep(now, -1, 0) : new Sweep(now, Integer.MAX_VALUE, 0);
+  }
+
+  private boolean isExpired(int now, int lastUse) {
+    return timeoutTicks > 0 && now - lastUse >= timeoutTicks;
+  }
+
+  private static int age(int now, int lastUse) {
+    return Math.max(0, Math.min(MAX_AGE, now - lastUse));
+  }
+
+  long getExpiredKeys() {
+    return expiredKeys.get();
+  }
+
+  long getEvictedKeys() {
+    return evictedKeys.get();
+  }
+
+  /** Decides which keys are unbound in one pass over the keys. */
+  final class Sweep {
+    private final int now;
+    // Keys older than this age are evicted.
+    private final int evictAge;
+    // The number of keys of the evict age which are evicted too.
+    private long evictAtAge;
+
+    private Sweep(int now, int evictAge, long evictAtAge) {
+      this.now = now;
+      this.evictAge = evictAge;
+      this.evictAtAge = evictAtAge;
+    }
+
+    /**
+     * Returns whether the key last used at the tick has to be unbound. The key is counted as
+     * unbound, i.e. the caller must unbind it.
+     */
+    boolean shouldUnbind(int lastUse) {
+      if (isExpired(now, lastUse)) {
+        expiredKeys.incrementAndGet();
+        return true;
+      }
+      int age = age(now, lastUse);
+      if (age > evictAge || (age == evictAge && evictAtAge > 0)) {
+        if (age == evictAge) {
+          evictAtAge--;
+        }
+        evictedKeys.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  }
+}
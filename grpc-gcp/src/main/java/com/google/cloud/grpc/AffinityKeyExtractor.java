@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.MessageOrBuilder;
+import io.grpc.Metadata;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Extracts affinity keys from messages by an affinity key path, e.g. "session" or
+ * "transaction.session".
+ *
+ * <p>The path is resolved into a chain of field descriptors once per message type, so that an
+ * extraction is a few direct field reads. The last field of the path must be a singular string
+ * field, the other fields singular or repeated message fields. Paths which do not resolve yield no
+ * keys.
+ */
+final class AffinityKeyExtractor {
+  private final String[] path;
+  // The chain resolved for the last seen message type. A method always has the same message type
+  // unless dynamic messages are used.
+  private volatile Chain chain;
+
+  AffinityKeyExtractor(String affinityKey) {
+    this.path = affinityKey.split("\\.", -1);
+  }
+
+  private static final class Chain {
+    private final Descriptor type;
+    // Null if the path does not resolve for the type.
+    @Nullable private final FieldDescriptor[] fields;
+    private final boolean repeated;
+
+    private Chain(Descriptor type, @Nullable FieldDescriptor[] fields, boolean repeated) {
+      this.type = type;
+      this.fields = fields;
+      this.repeated = repeated;
+    }
+  }
+
+  /** Returns the keys found in the message, in the order of the repeated fields on the path. */
+  List<String> extract(MessageOrBuilder message) {
+    Chain current = chain;
+    Descriptor type = message.getDescriptorForType();
+    if (current == null || current.type != type) {
+      current = resolve(type);
+      chain = current;
+    }
+    if (current.fields == null) {
+      return Collections.emptyList();
+    }
+    if (!current.repeated) {
+      String key = extractSingle(message, current.fields);
+      return key == null ? Collections.emptyList() : Collections.singletonList(key);
+    }
+    List<String> keys = new ArrayList<>();
+    collect(message, current.fields, 0, keys);
+    return keys;
+  }
+
+  private Chain resolve(Descriptor type) {
+    FieldDescriptor[] fields = new FieldDescriptor[path.length];
+    boolean repeated = false;
+    Descriptor descriptor = type;
+    for (int i = 0; i < path.length; i++) {
+      FieldDescriptor field = descriptor.findFieldByName(path[i]);
+      boolean last = i == path.length - 1;
+      FieldDescriptor.JavaType expectedType =
+          last ? FieldDescriptor.JavaType.STRING : FieldDescriptor.JavaType.MESSAGE;
+      if (field == null
+          || field.getJavaType() != expectedType
+          || (last && field.isRepeated())) {
+        return new Chain(type, null, false);
+      }
+      fields[i] = field;
+      repeated |= field.isRepeated();
+      if (!last) {
+        descriptor = field.getMessageType();
+      }
+    }
+    return new Chain(type, fields, repeated);
+  }
+
+  @Nullable
+  private static String extractSingle(MessageOrBuilder message, FieldDescriptor[] fields) {
+    MessageOrBuilder current = message;
+    for (FieldDescriptor field : fields) {
+      if (!current.hasField(field)) {
+        return null;
+      }
+      Object value = current.getField(field);
+      if (value instanceof String) {
+        return (String) value;
+      }
+      current = (MessageOrBuilder) value;
+    }
+    return null;
+  }
+
+  private static void collect(
+      MessageOrBuilder message, FieldDescriptor[] fields, int index, List<String> keys) {
+    FieldDescriptor field = fields[index];
+    if (index == fields.length - 1) {
+      if (message.hasField(field)) {
+        keys.add((String) message.getField(field));
+      }
+    } else if (field.isRepeated()) {
+      int count = message.getRepeatedFieldCount(field);
+      for (int i = 0; i < count; i++) {
+        collect((MessageOrBuilder) message.getRepeatedField(field, i), fields, index + 1, keys);
+      }
+    } else if (message.hasField(field)) {
+      collect((MessageOrBuilder) message.getField(field), fields, index + 1, keys);
+    }
+  }
+
+  /**
+   * Extracts the affinity key from a request header, e.g. the "session" parameter of the
+   * "x-goog-request-params" header.
+   */
+  static final class HeaderKeyExtractor {
+    private final Metadata.Key<String> header;
+    // The parameter with the trailing '=' or an empty string if the whole value is the key.
+    private final String paramPrefix;
+
+    HeaderKeyExtractor(String header, String param) {
+      this.header = Metadata.Key.of(header, Metadata.ASCII_STRING_MARSHALLER);
+      this.paramPrefix = param.isEmpty() ? "" : param + "=";
+    }
+
+    /** Returns the affinity key or null if the headers do not have it. */
+    @Nullable
+    String extract(Metadata headers) {
+      String value = headers.get(header);
+      if (value == null) {
+        return null;
+      }
+      if (paramPrefix.isEmpty()) {
+        return value.isEmpty() ? null : value;
+      }
+      return getParam(value, paramPrefix);
+    }
+
+    @Nullable
+    private static String getParam(String value, String paramPrefix) {
+      int start = 0;
+      while (start < value.length()) {
+        int end = value.indexOf('&', start);
+        if (end == -1) {
+          end = value.length();
+        }
+        if (value.startsWith(paramPrefix, start)) {
+          String param = value.substring(start + paramPrefix.length(), end);
+          return param.isEmpty() ? null : decode(param);
+        }
+        start = end + 1;
+      }
+      return null;
+    }
+
+    private static String decode(String param) {
+      if (param.indexOf('%') == -1 && param.indexOf('+') == -1) {
+        return param;
+      }
+      try {
+        return URLDecoder.decode(param, "UTF-8");
+      } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+        // Not URL-encoded after all.
+        return param;
+      }
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.cloud.grpc.GcpManagedChannel.ChannelRef;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import javax.annotation.Nullable;
+
+/**
+ * An index of the channels of a {@link GcpManagedChannel} ordered by their active streams count.
+ *
+ * <p>Ready and non-ready channels are kept in separate sets so that both the least busy channel
+ * and the least busy ready channel are available without scanning the pool. Each channel owns a
+ * {@link Slot} which re-positions the channel in the index whenever its readiness or the bucket of
+ * its streams count changes.
+ *
+ * <p>Streams counts below {@link #EXACT_STREAMS} have a bucket each, larger counts share a bucket
+ * with counts within a quarter of their power of two. So a busy channel is re-positioned on a
+ * fraction of its calls only, and the calls which do not change the bucket take no lock and do
+ * not allocate. The channels in the first coarse bucket are compared by their current streams
+ * count when picked.
+ */
+final class ChannelLoadIndex {
+  @VisibleForTesting static final int EXACT_STREAMS = 16;
+
+  private final ConcurrentSkipListSet<Entry> readyEntries = new ConcurrentSkipListSet<>();
+  private final ConcurrentSkipListSet<Entry> notReadyEntries = new ConcurrentSkipListSet<>();
+
+  /**
+   * Creates the slot of a channel. The channel is not in the index until {@link Slot#publish} is
+   * called, which must happen after the channel is fully constructed.
+   */
+  Slot newSlot(ChannelRef channelRef, boolean ready) {
+    return new Slot(channelRef, ready);
+  }
+
+  /** Returns the channel with the fewest active streams regardless of its readiness. */
+  @Nullable
+  ChannelRef leastBusy() {
+    ChannelRef ready = leastBusyReady();
+    ChannelRef notReady = leastBusy(notReadyEntries);
+    if (ready == null || notReady == null) {
+      return ready == null ? notReady : ready;
+    }
+    int readyStreams = ready.getActiveStreamsCount();
+    int notReadyStreams = notReady.getActiveStreamsCount();
+    if (readyStreams < notReadyStreams
+        || (readyStreams == notReadyStreams && ready.getId() <= notReady.getId())) {
+      return ready;
+    }
+    return notReady;
+  }
+
+  /** Returns the ready channel with the fewest active streams. */
+  @Nullable
+  ChannelRef leastBusyReady() {
+    return leastBusy(readyEntries);
+  }
+
+  @Nullable
+  private static ChannelRef leastBusy(ConcurrentSkipListSet<Entry> entries) {
+    // ConcurrentSkipListSet.first() throws on an empty set, the iterator doesn't.
+    Iterator<Entry> iterator = entries.iterator();
+    if (!iterator.hasNext()) {
+      return null;
+    }
+    Entry first = iterator.next();
+    ChannelRef best = first.channelRef;
+    if (first.bucket < EXACT_STREAMS) {
+      return best;
+    }
+    // The first bucket is coarse, compare its channels by their current streams count.
+    int bestStreams = best.getActiveStreamsCount();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.bucket != first.bucket) {
+        break;
+      }
+      int streams = entry.channelRef.getActiveStreamsCount();
+      if (streams < bestStreams) {
+        best = entry.channelRef;
+        bestStreams = streams;
+      }
+    }
+    return best;
+  }
+
+  /** Returns the bucket of a streams count. Buckets are ordered as the counts. */
+  @VisibleForTesting
+  static int bucket(int streams) {
+    if (streams < EXACT_STREAMS) {
+      return Math.max(0, streams);
+    }
+    // Four buckets per power of two starting at EXACT_STREAMS.
+    int log = 31 - Integer.numberOfLeadingZeros(streams);
+    return EXACT_STREAMS + (log - 4) * 4 + ((streams >> (log - 2)) & 3);
+  }
+
+  private ConcurrentSkipListSet<Entry> entriesFor(boolean ready) {
+    return ready ? readyEntries : notReadyEntries;
+  }
+
+  /** A position of a channel in the index. Entries are immutable and replaced on every change. */
+  private static final class Entry implements Comparable<Entry> {
+    private final ChannelRef channelRef;
+    private final int bucket;
+    private final boolean ready;
+
+    private Entry(ChannelRef channelRef, int bucket, boolean ready) {
+      this.channelRef = channelRef;
+      this.bucket = bucket;
+      this.ready = ready;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      if (bucket != other.bucket) {
+        return Integer.compare(bucket, other.bucket);
+      }
+      if (channelRef.getId() != other.channelRef.getId()) {
+        return Integer.compare(channelRef.getId(), other.channelRef.getId());
+      }
+      // Different channels may share an id only when they are created outside of the pool.
+      return Integer.compare(
+          System.identityHashCode(channelRef), System.identityHashCode(other.channelRef));
+    }
+  }
+
+  /**
+   * The handle a channel uses to keep its position in the index up to date. Re-positioning of a
+   * single channel is serialized on its slot so that there is no contention between channels.
+   */
+  final class Slot {
+    private final ChannelRef channelRef;
+
+    // Written under the lock only, read without the lock to skip updates within the bucket.
+    private volatile Entry entry;
+
+    @GuardedBy("this")
+    private boolean published;
+
+    @GuardedBy("this")
+    private boolean removed;
+
+    private Slot(ChannelRef channelRef, boolean ready) {
+      this.channelRef = channelRef;
+      this.entry = new Entry(channelRef, bucket(channelRef.getActiveStreamsCount()), ready);
+    }
+
+    /** Adds the channel to the index unless it was added or removed already. */
+    synchronized void publish() {
+      if (published || removed) {
+        return;
+      }
+      published = true;
+      entriesFor(entry.ready).add(entry);
+    }
+
+    /** Re-positions the channel if its current active streams count is in another bucket. */
+    void updateLoad() {
+      if (bucket(channelRef.getActiveStreamsCount()) != entry.bucket) {
+        replace(null);
+      }
+    }
+
+    /** Moves the channel between the ready and non-ready sets. */
+    void setReady(boolean ready) {
+      if (ready != entry.ready) {
+        replace(ready);
+      }
+    }
+
+    /** Removes the channel from the index. Subsequent updates are ignored. */
+    synchronized void remove() {
+      removed = true;
+      if (published) {
+        entriesFor(entry.ready).remove(entry);
+      }
+    }
+
+    private synchronized void replace(@Nullable Boolean ready) {
+      if (removed) {
+        return;
+      }
+      boolean nextReady = ready == null ? entry.ready : ready;
+      // The streams count may change while the entry is replaced by an update which sees the old
+      // entry and skips, so re-check the count after every replacement.
+      while (true) {
+        Entry current = entry;
+        int bucket = bucket(channelRef.getActiveStreamsCount());
+        if (bucket == current.bucket && nextReady == current.ready) {
+          return;
+        }
+        Entry next = new Entry(channelRef, bucket, nextReady);
+        if (published) {
+          // Add the new entry before removing the old one so that concurrent readers never see
+          // the channel missing from the index.
+          entriesFor(next.ready).add(next);
+          entriesFor(current.ready).remove(current);
+        }
+        entry = next;
+      }
+    }
+  }
+}
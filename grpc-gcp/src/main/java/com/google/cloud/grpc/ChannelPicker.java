@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import io.grpc.Status;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Picks a channel of a {@link GcpManagedChannel} pool for a new call.
+ *
+ * <p>A picker is consulted for calls without an affinity key, for calls with an affinity key that
+ * is not bound to any channel yet, for binding calls (unless round-robin on bind is enabled) and
+ * for finding a fallback channel when a bound channel is not ready. The pool itself takes care of
+ * creating the first channel, growing the pool when all channels reach the concurrent streams low
+ * watermark and accounting for not-ready fallbacks, so a picker only chooses among the existing
+ * channels.
+ *
+ * <p>Implementations must be thread-safe and fast, as they are called on every call. The same
+ * picker instance may be shared by several pools.
+ *
+ * <p>Use {@link GcpManagedChannelOptions.GcpChannelPoolOptions.Builder#setChannelPicker} to
+ * configure a picker. See {@link ChannelPickers} for the built-in pickers.
+ */
+public interface ChannelPicker {
+
+  /** Read-only view of a channel in the pool. */
+  interface ChannelView {
+    /** Returns the id of the channel in the pool. Ids are not reused by new channels. */
+    int getId();
+
+    /** Returns the number of calls currently in progress on the channel. */
+    int getActiveStreamsCount();
+
+    /** Returns the number of affinity keys bound to the channel. */
+    int getAffinityCount();
+
+    /**
+     * Returns false if the channel is known to be not ready or was removed from the pool. The
+     * readiness is tracked only when the not-ready fallback is enabled, otherwise channels are
+     * reported as ready until they are removed.
+     */
+    boolean isReady();
+
+    /**
+     * Returns the number of concurrent streams starting from which the channel is considered
+     * overloaded.
+     */
+    int getMaxConcurrentStreams();
+  }
+
+  /** Read-only view of the pool. */
+  interface PoolView {
+    /**
+     * Returns a snapshot of all channels of the pool. The list is immutable and stays the same even
+     * if channels are added or removed.
+     */
+    List<? extends ChannelView> getChannels();
+
+    /** Returns the channel with the fewest active streams regardless of its readiness. */
+    ChannelView getLeastBusyChannel();
+
+    /**
+     * Returns the ready channel with the fewest active streams, or null if all ready channels are
+     * overloaded or there are no ready channels.
+     */
+    @Nullable
+    ChannelView getLeastBusyReadyChannel();
+
+    /** Returns the maximum number of channels the pool can have. */
+    int getMaxSize();
+
+    /** Returns the concurrent streams low watermark used to grow the pool. */
+    int getStreamsLowWatermark();
+  }
+
+  /**
+   * Picks a channel for a call. Returning null makes the pool use the least busy channel.
+   *
+   * @param pool the view of the pool. It always has at least one channel.
+   */
+  @Nullable
+  ChannelView pick(PoolView pool);
+
+  /**
+   * Picks a channel for a binding call, i.e. a call whose response creates a new affinity key.
+   * Defaults to {@link #pick(PoolView)}.
+   */
+  @Nullable
+  default ChannelView pickForBind(PoolView pool) {
+    return pick(pool);
+  }
+
+  /**
+   * Called when a call on the channel is completed by the server. Calls cancelled on the client
+   * side are not reported.
+   *
+   * @param channel the channel the call was made on.
+   * @param status the status of the call.
+   * @param latencyNanos the time from the start of the call to its completion.
+   */
+  default void onCallCompleted(ChannelView channel, Status status, long latencyNanos) {}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.cloud.grpc.ChannelPicker.ChannelView;
+import com.google.cloud.grpc.ChannelPicker.PoolView;
+import com.google.cloud.grpc.GcpManagedChannelOptions.GcpChannelPoolOptions.ChannelPickStrategy;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import io.grpc.Status;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nullable;
+
+/** Built-in {@link ChannelPicker} implementations. */
+public final class ChannelPickers {
+  static final Duration DEFAULT_PEAK_EWMA_DECAY = Duration.ofSeconds(10);
+  static final int DEFAULT_THREAD_AFFINE_MAX_LOAD_SKEW = 5;
+
+  private ChannelPickers() {}
+
+  /**
+   * Returns a picker that picks the channel with the fewest active streams, preferring ready and
+   * not overloaded channels. This is the default picker.
+   */
+  public static ChannelPicker leastBusy() {
+    return LeastBusyChannelPicker.INSTANCE;
+  }
+
+  /**
+   * Returns a picker that picks the less busy of two random channels, preferring ready and not
+   * overloaded channels.
+   */
+  public static ChannelPicker powerOfTwoChoices() {
+    return PowerOfTwoChoicesChannelPicker.INSTANCE;
+  }
+
+  /**
+   * Returns a picker that picks the less loaded of two random channels, where the load is a
+   * peak-sensitive moving average of call latency multiplied by the number of active streams.
+   */
+  public static ChannelPicker peakEwma() {
+    return peakEwma(DEFAULT_PEAK_EWMA_DECAY);
+  }
+
+  /**
+   * Returns a peak EWMA picker (see {@link #peakEwma()}) with the given time constant of the
+   * moving average.
+   */
+  public static ChannelPicker peakEwma(Duration decay) {
+    Preconditions.checkArgument(!decay.isNegative() && !decay.isZero(), "decay must be positive");
+    return new PeakEwmaChannelPicker(decay.toNanos());
+  }
+
+  /**
+   * Returns a picker that keeps picking the same channel on the same thread while the channel is
+   * ready and its active streams exceed the least busy channel's by no more than 5. Otherwise the
+   * thread moves to the least busy channel. Binding calls always go to the least busy channel.
+   */
+  public static ChannelPicker threadAffine() {
+    return threadAffine(DEFAULT_THREAD_AFFINE_MAX_LOAD_SKEW);
+  }
+
+  /**
+   * Returns a thread-affine picker (see {@link #threadAffine()}) which moves a thread to the least
+   * busy channel when the thread's channel has more than {@code maxLoadSkew} active streams above
+   * the least busy channel.
+   */
+  public static ChannelPicker threadAffine(int maxLoadSkew) {
+    Preconditions.checkArgument(maxLoadSkew >= 0, "maxLoadSkew must not be negative");
+    return new ThreadAffineChannelPicker(maxLoadSkew);
+  }
+
+  static ChannelPicker forStrategy(ChannelPickStrategy strategy) {
+    switch (strategy) {
+      case POWER_OF_TWO_CHOICES:
+        return powerOfTwoChoices();
+      case PEAK_EWMA:
+        return peakEwma();
+      case THREAD_AFFINE:
+        return threadAffine();
+      default:
+        return leastBusy();
+    }
+  }
+
+  // Whether a channel can take a new call without a fallback.
+  static boolean isAvailable(ChannelView channel) {
+    return channel.isReady() && channel.getActiveStreamsCount() < channel.getMaxConcurrentStreams();
+  }
+
+  private static final class LeastBusyChannelPicker implements ChannelPicker {
+    private static final LeastBusyChannelPicker INSTANCE = new LeastBusyChannelPicker();
+
+    @Override
+    public ChannelView pick(PoolView pool) {
+      ChannelView readyChannel = pool.getLeastBusyReadyChannel();
+      return readyChannel != null ? readyChannel : pool.getLeastBusyChannel();
+    }
+
+    @Override
+    public String toString() {
+      return "LeastBusyChannelPicker";
+    }
+  }
+
+  private static final class ThreadAffineChannelPicker implements ChannelPicker {
+    private final int maxLoadSkew;
+    private final ThreadLocal<PreferredChannel> preferredChannel = new ThreadLocal<>();
+
+    private ThreadAffineChannelPicker(int maxLoadSkew) {
+      this.maxLoadSkew = maxLoadSkew;
+    }
+
+    @Override
+    public ChannelView pick(PoolView pool) {
+      PreferredChannel preferred = preferredChannel.get();
+      ChannelView channel = preferred != null ? preferred.get(pool) : null;
+      // A channel removed from the pool is not ready.
+      if (channel != null
+          && isAvailable(channel)
+          && channel.getActiveStreamsCount()
+              <= pool.getLeastBusyChannel().getActiveStreamsCount() + maxLoadSkew) {
+        return channel;
+      }
+      channel = LeastBusyChannelPicker.INSTANCE.pick(pool);
+      preferredChannel.set(new PreferredChannel(pool, channel));
+      return channel;
+    }
+
+    // Sticking to a thread's channel would put all keys bound by the thread on one channel.
+    @Override
+    public ChannelView pickForBind(PoolView pool) {
+      return LeastBusyChannelPicker.INSTANCE.pick(pool);
+    }
+
+    /**
+     * The picker may be shared by pools, so the thread's channel may belong to another pool. The
+     * pool and the channel are weakly referenced, so that long-lived threads do not keep shut down
+     * pools and removed channels reachable.
+     */
+    private static final class PreferredChannel {
+      private final WeakReference<PoolView> pool;
+      private final WeakReference<ChannelView> channel;
+
+      private PreferredChannel(PoolView pool, ChannelView channel) {
+        this.pool = new WeakReference<>(pool);
+        this.channel = new WeakReference<>(channel);
+      }
+
+      // Returns the thread's channel if it belongs to the pool.
+      @Nullable
+      private ChannelView get(PoolView pool) {
+        return this.pool.get() == pool ? channel.get() : null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("ThreadAffineChannelPicker{maxLoadSkew: %d}", maxLoadSkew);
+    }
+  }
+
+  /**
+   * Compares two random channels by a cost. If neither of the two is available, picks the least
+   * busy channel.
+   */
+  private abstract static class TwoRandomChoicesChannelPicker implements ChannelPicker {
+    abstract double cost(ChannelView channel, long nowNanos);
+
+    @Override
+    public ChannelView pick(PoolView pool) {
+      List<? extends ChannelView> channels = pool.getChannels();
+      int size = channels.size();
+      if (size < 2) {
+        return LeastBusyChannelPicker.INSTANCE.pick(pool);
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int i = random.nextInt(size);
+      int j = random.nextInt(size - 1);
+      if (j >= i) {
+        j++;
+      }
+      ChannelView a = channels.get(i);
+      ChannelView b = channels.get(j);
+      boolean aAvailable = isAvailable(a);
+      boolean bAvailable = isAvailable(b);
+      if (aAvailable && bAvailable) {
+        long nowNanos = System.nanoTime();
+        return cost(a, nowNanos) <= cost(b, nowNanos) ? a : b;
+      }
+      if (aAvailable) {
+        return a;
+      }
+      if (bAvailable) {
+        return b;
+      }
+      return LeastBusyChannelPicker.INSTANCE.pick(pool);
+    }
+  }
+
+  private static final class PowerOfTwoChoicesChannelPicker extends TwoRandomChoicesChannelPicker {
+    private static final PowerOfTwoChoicesChannelPicker INSTANCE =
+        new PowerOfTwoChoicesChannelPicker();
+
+    @Override
+    double cost(ChannelView channel, long nowNanos) {
+      return channel.getActiveStreamsCount();
+    }
+
+    @Override
+    public String toString() {
+      return "PowerOfTwoChoicesChannelPicker";
+    }
+  }
+
+  private static final class PeakEwmaChannelPicker extends TwoRandomChoicesChannelPicker {
+    private final long decayNanos;
+    // Weak keys drop the latencies of channels removed from their pool or of shut down pools.
+    private final Map<ChannelView, PeakEwma> latencies = new MapMaker().weakKeys().makeMap();
+    // The peak-sensitive average of the latency of all channels, the prior of unknown latencies.
+    private final PeakEwma prior;
+
+    private PeakEwmaChannelPicker(long decayNanos) {
+      this.decayNanos = decayNanos;
+      this.prior = new PeakEwma(decayNanos, System.nanoTime());
+    }
+
+    @Override
+    double cost(ChannelView channel, long nowNanos) {
+      int activeStreams = channel.getActiveStreamsCount();
+      PeakEwma latency = latencies.get(channel);
+      double latencyNanos = latency == null ? 0 : latency.get(nowNanos);
+      if (activeStreams > 0 && (latency == null || latency.isStale(nowNanos))) {
+        // Calls of a channel without recent completions may be hanging. Do not let the unknown or
+        // decayed latency make such a channel the cheapest one, assume it is as slow as the peak
+        // of the pool instead. Without any known latency the channels are compared by streams.
+        latencyNanos = Math.max(latencyNanos, Math.max(1, prior.get(nowNanos)));
+      }
+      return latencyNanos * (activeStreams + 1);
+    }
+
+    @Override
+    public void onCallCompleted(ChannelView channel, Status status, long latencyNanos) {
+      long nowNanos = System.nanoTime();
+      latencies
+          .computeIfAbsent(channel, c -> new PeakEwma(decayNanos, nowNanos))
+          .observe(latencyNanos, nowNanos);
+      prior.observe(latencyNanos, nowNanos);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("PeakEwmaChannelPicker{decay: %d ms}", decayNanos / 1000000);
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import javax.annotation.Nullable;
+
+/**
+ * Maps affinity keys to channel ids using a 64-bit hash of the key instead of the key itself.
+ *
+ * <p>The entries live in an open addressing table with linear probing made of two primitive
+ * arrays: the key hashes and the channel ids. An entry takes 12 bytes plus the free slots, which is
+ * a fraction of a map entry holding the key string. Two keys with the same 64-bit hash share an
+ * entry, i.e. binding one of them replaces the binding of the other. With a million keys the
+ * chance of any such collision is about 3 in 100 million, and a collision only routes calls of a
+ * key to another channel.
+ *
+ * <p>Lookups never block. A slot is claimed by a key hash with a CAS and is owned by that hash
+ * until the table is rebuilt, and bind and unbind update the channel id of the slot with a CAS, so
+ * they are lock-free too. Unbound keys leave their slot claimed. When half of the slots are
+ * claimed, the table is rebuilt with the bound keys only, and grown or shrunk to keep the table at
+ * most a quarter full. Updates racing with a rebuild wait for the rebuild to finish.
+ *
+ * <p>With an {@link AffinityKeyExpiry} a third array keeps the tick of the last use of every key.
+ */
+final class CompactAffinityStore {
+  @VisibleForTesting static final int MIN_CAPACITY = 64;
+  // Set on the channel ids of a table being rebuilt, so that they cannot change anymore.
+  private static final int FROZEN = Integer.MIN_VALUE;
+  // Marks a free slot in the hashes array.
+  private static final long FREE = 0;
+  // Stored channel ids are shifted by one, so that 0 means that the key is not bound.
+  private static final int UNBOUND = 0;
+
+  @Nullable private final AffinityKeyExpiry expiry;
+  private volatile Table table;
+  private final AtomicInteger size = new AtomicInteger();
+
+  CompactAffinityStore() {
+    this(null);
+  }
+
+  CompactAffinityStore(@Nullable AffinityKeyExpiry expiry) {
+    this.expiry = expiry;
+    this.table = new Table(MIN_CAPACITY, expiry != null);
+  }
+
+  private static final class Table {
+    private final int mask;
+    private final AtomicLongArray hashes;
+    private final AtomicIntegerArray ids;
+    // The ticks of the last use of the keys if the keys expire.
+    @Nullable private final AtomicIntegerArray ticks;
+    private final AtomicInteger claimed = new AtomicInteger();
+
+    private Table(int capacity, boolean trackUse) {
+      mask = capacity - 1;
+      hashes = new AtomicLongArray(capacity);
+      ids = new AtomicIntegerArray(capacity);
+      ticks = trackUse ? new AtomicIntegerArray(capacity) : null;
+    }
+
+    private int capacity() {
+      return mask + 1;
+    }
+  }
+
+  /** Returns the channel id bound with the key or -1. */
+  int get(String key) {
+    return getByHash(hash(key));
+  }
+
+  /** Binds the key with the channel id unless it is bound. Returns the bound channel id or -1. */
+  int putIfAbsent(String key, int channelId) {
+    return putIfAbsentByHash(hash(key), channelId);
+  }
+
+  /** Unbinds the key. Returns the channel id the key was bound with or -1. */
+  int remove(String key) {
+    return removeByHash(hash(key));
+  }
+
+  /** Returns the number of bound keys. */
+  int size() {
+    return size.get();
+  }
+
+  @VisibleForTesting
+  int capacity() {
+    return table.capacity();
+  }
+
+  @VisibleForTesting
+  int getByHash(long hash) {
+    Table t = table;
+    int slot = find(t, hash);
+    if (slot < 0) {
+      return -1;
+    }
+    if (t.ticks != null) {
+      touch(t, slot);
+    }
+    return (t.ids.get(slot) & ~FROZEN) - 1;
+  }
+
+  private void touch(Table t, int slot) {
+    int tick = expiry.getTick();
+    // A touch racing with a rebuild may be lost, which only makes the key look older.
+    if (t.ticks.get(slot) != tick) {
+      t.ticks.lazySet(slot, tick);
+    }
+  }
+
+  @VisibleForTesting
+  int putIfAbsentByHash(long hash, int channelId) {
+    while (true) {
+      Table t = table;
+      int slot = claim(t, hash);
+      if (slot < 0) {
+        rebuild(t);
+        continue;
+      }
+      if (t.ticks != null) {
+        touch(t, slot);
+      }
+      int id = t.ids.get(slot);
+      while (id == UNBOUND) {
+        if (t.ids.compareAndSet(slot, UNBOUND, channelId + 1)) {
+          size.incrementAndGet();
+          return -1;
+        }
+        id = t.ids.get(slot);
+      }
+      if ((id & FROZEN) == 0) {
+        return id - 1;
+      }
+      awaitRebuild(t);
+    }
+  }
+
+  @VisibleForTesting
+  int removeByHash(long hash) {
+    while (true) {
+      Table t = table;
+      int slot = find(t, hash);
+      if (slot < 0) {
+        return -1;
+      }
+      int id = t.ids.get(slot);
+      while (id != UNBOUND && (id & FROZEN) == 0) {
+        if (t.ids.compareAndSet(slot, id, UNBOUND)) {
+          size.decrementAndGet();
+          return id - 1;
+        }
+        id = t.ids.get(slot);
+      }
+      if (id == UNBOUND) {
+        return -1;
+      }
+      awaitRebuild(t);
+    }
+  }
+
+  /** Passes the last use ticks of the bound keys to the consumer. Requires an expiry. */
+  void forEachLastUse(IntConsumer consumer) {
+    Table t = table;
+    for (int slot = 0; slot <= t.mask; slot++) {
+      if ((t.ids.get(slot) & ~FROZEN) != UNBOUND) {
+        consumer.accept(t.ticks.get(slot));
+      }
+    }
+  }
+
+  /**
+   * Unbinds the keys whose last use tick matches the predicate and passes their channel ids to
+   * the consumer. Keys of a table being rebuilt are skipped. Requires an expiry.
+   */
+  void removeIf(IntPredicate lastUsePredicate, IntConsumer removedChannelIds) {
+    Table t = table;
+    for (int slot = 0; slot <= t.mask; slot++) {
+      int id = t.ids.get(slot);
+      if (id == UNBOUND || (id & FROZEN) != 0 || !lastUsePredicate.test(t.ticks.get(slot))) {
+        continue;
+      }
+      if (t.ids.compareAndSet(slot, id, UNBOUND)) {
+        size.decrementAndGet();
+        removedChannelIds.accept(id - 1);
+      }
+    }
+  }
+
+  // Returns the slot of the hash or -1.
+  private static int find(Table t, long hash) {
+    for (int i = 0, slot = index(t, hash); i <= t.mask; i++, slot = (slot + 1) & t.mask) {
+      long current = t.hashes.get(slot);
+      if (current == hash) {
+        return slot;
+      }
+      if (current == FREE) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  // Returns the slot of the hash, claiming a free slot if needed, or -1 if the table is too full.
+  private static int claim(Table t, long hash) {
+    for (int i = 0, slot = index(t, hash); i <= t.mask; i++, slot = (slot + 1) & t.mask) {
+      long current = t.hashes.get(slot);
+      if (current == FREE) {
+        if (t.claimed.get() >= t.capacity() / 2) {
+          return -1;
+        }
+        if (t.hashes.compareAndSet(slot, FREE, hash)) {
+          t.claimed.incrementAndGet();
+          return slot;
+        }
+        current = t.hashes.get(slot);
+      }
+      if (current == hash) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private static int index(Table t, long hash) {
+    return (int) (hash ^ (hash >>> 32)) & t.mask;
+  }
+
+  private void awaitRebuild(Table t) {
+    // The rebuild holds the monitor.
+    synchronized (this) {
+      if (table == t) {
+        throw new IllegalStateException("Frozen affinity table is not being rebuilt.");
+      }
+    }
+  }
+
+  private synchronized void rebuild(Table t) {
+    if (table != t) {
+      return;
+    }
+    // Freeze the channel ids, so that the copy is exact.
+    int bound = 0;
+    for (int slot = 0; slot <= t.mask; slot++) {
+      int id = t.ids.get(slot);
+      while (!t.ids.compareAndSet(slot, id, id | FROZEN)) {
+        id = t.ids.get(slot);
+      }
+      if (id != UNBOUND) {
+        bound++;
+      }
+    }
+    int capacity = MIN_CAPACITY;
+    while (capacity < bound * 4) {
+      capacity *= 2;
+    }
+    Table rebuilt = new Table(capacity, t.ticks != null);
+    for (int slot = 0; slot <= t.mask; slot++) {
+      int id = t.ids.get(slot) & ~FROZEN;
+      if (id != UNBOUND) {
+        int newSlot = claim(rebuilt, t.hashes.get(slot));
+        rebuilt.ids.set(newSlot, id);
+        if (t.ticks != null) {
+          rebuilt.ticks.set(newSlot, t.ticks.get(slot));
+        }
+      }
+    }
+    table = rebuilt;
+  }
+
+  /**
+   * Returns a 64-bit hash of the key. The hash mixes blocks of four chars like MurmurHash3 and is
+   * never 0, which marks free slots.
+   */
+  static long hash(String key) {
+    final long c1 = 0x87c37b91114253d5L;
+    final long c2 = 0x4cf5ad432745937fL;
+    int length = key.length();
+    long h = 0x9e3779b97f4a7c15L ^ length;
+    int i = 0;
+    for (; i + 4 <= length; i += 4) {
+      long block =
+          key.charAt(i)
+              | (long) key.charAt(i + 1) << 16
+              | (long) key.charAt(i + 2) << 32
+              | (long) key.charAt(i + 3) << 48;
+      h = mix(h, block, c1, c2);
+    }
+    long tail = 0;
+    for (int shift = 0; i < length; i++, shift += 16) {
+      tail |= (long) key.charAt(i) << shift;
+    }
+    h = fmix(mix(h, tail, c1, c2));
+    return h == FREE ? 1 : h;
+  }
+
+  private static long mix(long h, long block, long c1, long c2) {
+    block *= c1;
+    block = Long.rotateLeft(block, 31);
+    block *= c2;
+    h ^= block;
+    return Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+  }
+
+  static long fmix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -18,18 +18,34 @@ package com.google.cloud.grpc;
 
 import com.google.cloud.grpc.proto.AffinityConfig;
 import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.Attributes;
 import io.grpc.CallOptions;
 import io.grpc.ClientCall;
+import io.grpc.ClientStreamTracer;
+import io.grpc.Context;
+import io.grpc.Deadline;
 import io.grpc.ForwardingClientCall;
 import io.grpc.ForwardingClientCallListener;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
@@ -50,6 +66,8 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
   private GcpManagedChannel.ChannelRef delegateChannelRef = null;
   private ClientCall<ReqT, RespT> delegateCall = null;
   private List<String> keys = null;
+  // Set if the call of the key is tracked for hot key spreading.
+  @Nullable private HotKeyTracker.Key hotKey = null;
   private boolean received = false;
   private final AtomicBoolean decremented = new AtomicBoolean(false);
 
@@ -72,8 +90,21 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
     this.affinity = affinity;
   }
 
+  /**
+   * If the affinity key is in the call options or the headers, choose the channel and start the
+   * call right away. Otherwise delay starting the call until the first message.
+   */
   @Override
   public void start(Listener<RespT> responseListener, Metadata headers) {
+    String key = callOptions.getOption(GcpManagedChannel.AFFINITY_KEY);
+    if (key == null || key.isEmpty()) {
+      key = delegateChannel.checkHeaderKey(headers, methodDescriptor);
+    }
+    if (key != null) {
+      synchronized (this) {
+        startDelegateCall(Collections.singletonList(key));
+      }
+    }
     checkSendMessage(() -> delegateCall.start(getListener(responseListener), headers));
   }
 
@@ -105,34 +136,51 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
   public void sendMessage(ReqT message) {
     synchronized (this) {
       if (!started) {
-        startNanos = System.nanoTime();
-        // Check if the current channelRef is bound with the key and change it if necessary.
-        // If no channel is bound with the key, use the least busy one.
-        keys = delegateChannel.checkKeys(message, true, methodDescriptor);
-        String key = null;
-        if (keys != null
-            && keys.size() == 1
-            && delegateChannel.getChannelRef(keys.get(0)) != null) {
-          key = keys.get(0);
-        }
-
-        if (affinity != null && affinity.getCommand().equals(AffinityConfig.Command.BIND)) {
-          delegateChannelRef = delegateChannel.getChannelRefForBind();
-        } else {
-          delegateChannelRef = delegateChannel.getChannelRef(key);
-        }
-        delegateChannelRef.activeStreamsCountIncr();
+        startDelegateCall(delegateChannel.checkKeys(message, true, methodDescriptor));
+      }
+    }
+    delegateCall.sendMessage(message);
+  }
 
-        // Create the client call and do the previous operations.
-        delegateCall = delegateChannelRef.getChannel().newCall(methodDescriptor, callOptions);
-        for (Runnable call : calls) {
-          call.run();
+  @GuardedBy("this")
+  private void startDelegateCall(@Nullable List<String> keys) {
+    startNanos = System.nanoTime();
+    this.keys = keys;
+    if (affinity != null && affinity.getCommand() == AffinityConfig.Command.HASH) {
+      delegateChannelRef =
+          delegateChannel.getChannelRefForHash(
+              keys != null && keys.size() == 1 ? keys.get(0) : null);
+    } else if (affinity != null && affinity.getCommand() == AffinityConfig.Command.BIND) {
+      delegateChannelRef = delegateChannel.getChannelRefForBind();
+    } else {
+      // Check if the current channelRef is bound with the key and change it if necessary.
+      // If no channel is bound with the key, use the least busy one.
+      String key = null;
+      if (keys != null
+          && keys.size() == 1
+          && delegateChannel.getChannelRef(keys.get(0)) != null) {
+        key = keys.get(0);
+      }
+      delegateChannelRef = delegateChannel.getChannelRef(key);
+      if (key != null) {
+        hotKey = delegateChannel.trackHotKeyCall(key, delegateChannelRef);
+        if (hotKey != null) {
+          delegateChannelRef = delegateChannel.getHotKeyChannelRef(hotKey, delegateChannelRef);
         }
-        calls.clear();
-        started = true;
       }
     }
-    delegateCall.sendMessage(message);
+    delegateChannelRef.activeStreamsCountIncr();
+
+    // Create the client call and do the previous operations.
+    delegateCall =
+        delegateChannelRef
+            .getChannel()
+            .newCall(methodDescriptor, delegateChannelRef.withStreamTracer(callOptions));
+    for (Runnable call : calls) {
+      call.run();
+    }
+    calls.clear();
+    started = true;
   }
 
   /** Calls that send exactly one message should not check this method. */
@@ -163,6 +211,9 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
   private void checkedCancel(@Nullable String message, @Nullable Throwable cause) {
     if (!decremented.getAndSet(true)) {
       delegateChannelRef.activeStreamsCountDecr(startNanos, Status.CANCELLED, true);
+      if (hotKey != null) {
+        delegateChannel.hotKeyCallEnded(hotKey);
+      }
     }
     delegateCall.cancel(message, cause);
   }
@@ -186,13 +237,16 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
       public void onClose(Status status, Metadata trailers) {
         if (!decremented.getAndSet(true)) {
           delegateChannelRef.activeStreamsCountDecr(startNanos, status, false);
+          if (hotKey != null) {
+            delegateChannel.hotKeyCallEnded(hotKey);
+          }
         }
         // If the operation completed successfully, bind/unbind the affinity key.
         if (keys != null && status.getCode() == Status.Code.OK) {
           if (affinity.getCommand() == AffinityConfig.Command.UNBIND) {
             delegateChannel.unbind(keys);
           } else if (affinity.getCommand() == AffinityConfig.Command.BIND) {
-            delegateChannel.bind(delegateChannelRef, keys);
+            delegateChannel.bindResponseKeys(delegateChannelRef, keys);
           }
         }
         responseListener.onClose(status, trailers);
@@ -207,6 +261,9 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
           received = true;
           if (keys == null) {
             keys = delegateChannel.checkKeys(message, false, methodDescriptor);
+          } else if (affinity.getCommand() == AffinityConfig.Command.BIND) {
+            // The key of the call options is bound together with the keys of the response.
+            keys = withResponseKeys(keys, message);
           }
         }
         responseListener.onMessage(message);
@@ -214,6 +271,20 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
     };
   }
 
+  private List<String> withResponseKeys(List<String> keys, RespT message) {
+    List<String> responseKeys = delegateChannel.checkKeys(message, false, methodDescriptor);
+    if (responseKeys == null || responseKeys.isEmpty()) {
+      return keys;
+    }
+    List<String> allKeys = new ArrayList<>(keys);
+    for (String key : responseKeys) {
+      if (!allKeys.contains(key)) {
+        allKeys.add(key);
+      }
+    }
+    return allKeys;
+  }
+
   /**
    * A simple wrapper of ClientCall.
    *
@@ -233,7 +304,10 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
         MethodDescriptor<ReqT, RespT> methodDescriptor,
         CallOptions callOptions) {
       this.channelRef = channelRef;
-      this.delegateCall = channelRef.getChannel().newCall(methodDescriptor, callOptions);
+      this.delegateCall =
+          channelRef
+              .getChannel()
+              .newCall(methodDescriptor, channelRef.withStreamTracer(callOptions));
     }
 
     @Override
@@ -275,4 +349,699 @@ public class GcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
       delegateCall.cancel(message, cause);
     }
   }
+
+  /**
+   * A wrapper of a call of a pool with admission control.
+   *
+   * <p>The call to a channel of the pool is created only when the call is admitted by the {@link
+   * AdmissionController}, which may happen on another thread after the call is started. Operations
+   * on the call before that are buffered. A call which is not admitted is closed with
+   * RESOURCE_EXHAUSTED. A waiting call is closed with DEADLINE_EXCEEDED when the deadline of its
+   * call options expires and with CANCELLED when its context is cancelled.
+   */
+  static class QueuedGcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+    private final AdmissionController admissionController;
+    private final Supplier<ClientCall<ReqT, RespT>> callFactory;
+    @Nullable private final Deadline deadline;
+    // Runs listener callbacks for calls closed before admission.
+    private final Executor executor;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private final AdmissionController.Admission admission =
+        new AdmissionController.Admission() {
+          @Override
+          void admit() {
+            startDelegate();
+          }
+
+          @Override
+          void reject(Status status) {
+            close(status);
+          }
+        };
+
+    private final Context.CancellationListener cancellationListener = this::contextCancelled;
+
+    private Listener<RespT> responseListener;
+    private Metadata headers;
+    private Context context;
+
+    @GuardedBy("this")
+    private final Queue<Runnable> calls = new ArrayDeque<>();
+
+    @GuardedBy("this")
+    private ClientCall<ReqT, RespT> delegateCall;
+
+    // Whether the call was closed before admission.
+    @GuardedBy("this")
+    private boolean closed;
+
+    QueuedGcpClientCall(
+        AdmissionController admissionController,
+        Supplier<ClientCall<ReqT, RespT>> callFactory,
+        @Nullable Deadline deadline,
+        Executor executor) {
+      this.admissionController = admissionController;
+      this.callFactory = callFactory;
+      this.deadline = deadline;
+      this.executor = executor;
+    }
+
+    @Override
+    public void start(Listener<RespT> responseListener, Metadata headers) {
+      this.responseListener = responseListener;
+      this.headers = headers;
+      // The call made at admission observes the context itself, until then the waiting call does.
+      context = Context.current();
+      context.addListener(cancellationListener, MoreExecutors.directExecutor());
+      admissionController.acquire(admission, deadline);
+      if (context.isCancelled()) {
+        contextCancelled(context);
+      }
+    }
+
+    private void contextCancelled(Context context) {
+      if (admissionController.remove(admission)) {
+        close(
+            Status.CANCELLED
+                .withDescription("Context cancelled while waiting for admission.")
+                .withCause(context.cancellationCause()));
+      }
+    }
+
+    private void startDelegate() {
+      context.removeListener(cancellationListener);
+      ClientCall<ReqT, RespT> call = callFactory.get();
+      call.start(
+          new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(
+              responseListener) {
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+              if (!released.getAndSet(true)) {
+                admissionController.release(status);
+              }
+              super.onClose(status, trailers);
+            }
+          },
+          headers);
+      synchronized (this) {
+        delegateCall = call;
+        for (Runnable operation : calls) {
+          operation.run();
+        }
+        calls.clear();
+      }
+    }
+
+    private void close(Status status) {
+      context.removeListener(cancellationListener);
+      synchronized (this) {
+        closed = true;
+        calls.clear();
+      }
+      executor.execute(() -> responseListener.onClose(status, new Metadata()));
+    }
+
+    private void runWhenAdmitted(Runnable operation) {
+      synchronized (this) {
+        if (delegateCall != null) {
+          operation.run();
+        } else if (!closed) {
+          calls.add(operation);
+        }
+      }
+    }
+
+    @Override
+    public void request(int numMessages) {
+      runWhenAdmitted(() -> delegateCall.request(numMessages));
+    }
+
+    @Override
+    public void cancel(@Nullable String message, @Nullable Throwable cause) {
+      if (admissionController.remove(admission)) {
+        close(Status.CANCELLED.withDescription(message).withCause(cause));
+        return;
+      }
+      runWhenAdmitted(() -> delegateCall.cancel(message, cause));
+    }
+
+    @Override
+    public void halfClose() {
+      runWhenAdmitted(() -> delegateCall.halfClose());
+    }
+
+    @Override
+    public void sendMessage(ReqT message) {
+      runWhenAdmitted(() -> delegateCall.sendMessage(message));
+    }
+
+    @Override
+    public void setMessageCompression(boolean enabled) {
+      runWhenAdmitted(() -> delegateCall.setMessageCompression(enabled));
+    }
+
+    @Override
+    public boolean isReady() {
+      synchronized (this) {
+        return delegateCall != null && delegateCall.isReady();
+      }
+    }
+
+    @Override
+    public Attributes getAttributes() {
+      synchronized (this) {
+        return delegateCall != null ? delegateCall.getAttributes() : Attributes.EMPTY;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this).add("delegate", delegateCall).toString();
+    }
+  }
+
+  /**
+   * A wrapper of a call of a pool with a memory budget.
+   *
+   * <p>Counts the message bytes of the call against the {@link MemoryBudget}: a received message
+   * from the moment the transport reads it until the listener has processed it, and a sent message
+   * until the transport is seen ready to send more or the call is closed. While the budget is
+   * exhausted, requests for more messages are held back and the call reports it is not ready. The
+   * listener is notified with onReady when the budget is available again.
+   */
+  static class BudgetedGcpClientCall<ReqT, RespT> extends ForwardingClientCall<ReqT, RespT> {
+    private final MemoryBudget budget;
+    // Runs onReady notifications after the budget is available again.
+    private final Executor executor;
+    private final ClientCall<ReqT, RespT> delegateCall;
+    // Sizes of received messages not processed by the listener yet, in the order of receiving.
+    private final Queue<Long> inboundSizes = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final AtomicInteger heldRequests = new AtomicInteger();
+    private final AtomicBoolean readyWaiting = new AtomicBoolean(false);
+    private volatile boolean closed;
+    private volatile Listener<RespT> responseListener;
+
+    private final ClientStreamTracer tracer =
+        new ClientStreamTracer() {
+          @Override
+          public void inboundWireSize(long bytes) {
+            inboundSizes.add(bytes);
+            budget.acquire(bytes);
+          }
+
+          @Override
+          public void outboundWireSize(long bytes) {
+            outboundBytes.addAndGet(bytes);
+            budget.acquire(bytes);
+          }
+        };
+
+    BudgetedGcpClientCall(
+        MemoryBudget budget,
+        Function<CallOptions, ClientCall<ReqT, RespT>> callFactory,
+        CallOptions callOptions,
+        Executor executor) {
+      this.budget = budget;
+      this.executor = executor;
+      this.delegateCall =
+          callFactory.apply(
+              callOptions.withStreamTracerFactory(
+                  new ClientStreamTracer.Factory() {
+                    @Override
+                    public ClientStreamTracer newClientStreamTracer(
+                        ClientStreamTracer.StreamInfo info, Metadata headers) {
+                      return tracer;
+                    }
+                  }));
+    }
+
+    @Override
+    protected ClientCall<ReqT, RespT> delegate() {
+      return delegateCall;
+    }
+
+    @Override
+    public void start(Listener<RespT> responseListener, Metadata headers) {
+      this.responseListener = responseListener;
+      delegateCall.start(
+          new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(
+              responseListener) {
+            @Override
+            public void onMessage(RespT message) {
+              try {
+                super.onMessage(message);
+              } finally {
+                Long size = inboundSizes.poll();
+                if (size != null) {
+                  budget.release(size);
+                }
+              }
+            }
+
+            @Override
+            public void onReady() {
+              releaseOutbound();
+              super.onReady();
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+              closed = true;
+              releaseOutbound();
+              for (Long size = inboundSizes.poll(); size != null; size = inboundSizes.poll()) {
+                budget.release(size);
+              }
+              super.onClose(status, trailers);
+            }
+          },
+          headers);
+    }
+
+    @Override
+    public void request(int numMessages) {
+      if (!budget.isExhausted()) {
+        delegateCall.request(numMessages);
+        return;
+      }
+      if (heldRequests.getAndAdd(numMessages) == 0) {
+        budget.whenAvailable(this::resumeRequests);
+      }
+    }
+
+    private void resumeRequests() {
+      int numMessages = heldRequests.getAndSet(0);
+      if (numMessages > 0 && !closed) {
+        delegateCall.request(numMessages);
+      }
+    }
+
+    @Override
+    public void sendMessage(ReqT message) {
+      if (delegateCall.isReady()) {
+        releaseOutbound();
+      }
+      delegateCall.sendMessage(message);
+    }
+
+    @Override
+    public boolean isReady() {
+      boolean ready = delegateCall.isReady();
+      if (ready) {
+        releaseOutbound();
+      }
+      if (!budget.isExhausted()) {
+        return ready;
+      }
+      if (readyWaiting.compareAndSet(false, true)) {
+        budget.whenAvailable(
+            () -> {
+              readyWaiting.set(false);
+              Listener<RespT> listener = responseListener;
+              if (!closed && listener != null) {
+                executor.execute(listener::onReady);
+              }
+            });
+      }
+      return false;
+    }
+
+    // Messages sent before the transport is ready again are considered written.
+    private void releaseOutbound() {
+      budget.release(outboundBytes.getAndSet(0));
+    }
+  }
+
+  /**
+   * A hedged unary call of a pool.
+   *
+   * <p>The call starts on a channel picked as usual. If it has no response after the hedging delay
+   * of its method, a copy of the call is started on another ready channel of the pool, if the
+   * hedge budget allows. The attempt which receives a response first wins and the other attempt
+   * is cancelled. A failed attempt is ignored while the other attempt is still running.
+   *
+   * <p>The hedge timer starts and replays the hedged attempt concurrently with the operations of
+   * the application, so all operations on the attempts' calls run in order on a sequential
+   * executor. The lock only guards the state of the call and is never held while calling the
+   * transport.
+   */
+  static class HedgingGcpClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+    private final GcpManagedChannel pool;
+    private final HedgingController hedgingController;
+    private final Supplier<ScheduledExecutorService> scheduler;
+    private final MethodDescriptor<ReqT, RespT> methodDescriptor;
+    private final CallOptions callOptions;
+    private final Executor serializer =
+        MoreExecutors.newSequentialExecutor(MoreExecutors.directExecutor());
+    private final Object lock = new Object();
+    private Listener<RespT> responseListener;
+    private long startNanos;
+
+    // Running attempts, the primary attempt first.
+    @GuardedBy("lock")
+    private final List<Attempt> attempts = new ArrayList<>(2);
+
+    @GuardedBy("lock")
+    private Attempt committed;
+
+    @GuardedBy("lock")
+    private boolean hedged;
+
+    @GuardedBy("lock")
+    private boolean cancelled;
+
+    @GuardedBy("lock")
+    private ScheduledFuture<?> hedgeTimer;
+
+    // Operations to replay on a hedged attempt. Updated by the serializer only.
+    @GuardedBy("lock")
+    private Metadata headers;
+
+    @GuardedBy("lock")
+    private int requested;
+
+    @GuardedBy("lock")
+    private final List<ReqT> messages = new ArrayList<>(1);
+
+    @GuardedBy("lock")
+    private boolean halfClosed;
+
+    @GuardedBy("lock")
+    private Boolean messageCompression;
+
+    HedgingGcpClientCall(
+        GcpManagedChannel pool,
+        HedgingController hedgingController,
+        Supplier<ScheduledExecutorService> scheduler,
+        MethodDescriptor<ReqT, RespT> methodDescriptor,
+        CallOptions callOptions) {
+      this.pool = pool;
+      this.hedgingController = hedgingController;
+      this.scheduler = scheduler;
+      this.methodDescriptor = methodDescriptor;
+      this.callOptions = callOptions;
+    }
+
+    private final class Attempt extends Listener<RespT> {
+      private final GcpManagedChannel.ChannelRef channelRef;
+      private final ClientCall<ReqT, RespT> call;
+      private final boolean hedge;
+
+      private Attempt(GcpManagedChannel.ChannelRef channelRef, boolean hedge) {
+        this.channelRef = channelRef;
+        this.call = new SimpleGcpClientCall<>(channelRef, methodDescriptor, callOptions);
+        this.hedge = hedge;
+      }
+
+      @Override
+      public void onHeaders(Metadata headers) {
+        if (commit(this)) {
+          responseListener.onHeaders(headers);
+        }
+      }
+
+      @Override
+      public void onMessage(RespT message) {
+        if (commit(this)) {
+          responseListener.onMessage(message);
+        }
+      }
+
+      @Override
+      public void onReady() {
+        if (isCurrent(this)) {
+          responseListener.onReady();
+        }
+      }
+
+      @Override
+      public void onClose(Status status, Metadata trailers) {
+        if (!status.isOk() && dropFailed(this)) {
+          return;
+        }
+        if (commit(this)) {
+          if (status.isOk() && !hedge) {
+            recordPrimaryLatency();
+          }
+          responseListener.onClose(status, trailers);
+        }
+      }
+    }
+
+    @Override
+    public void start(Listener<RespT> responseListener, Metadata headers) {
+      this.responseListener = responseListener;
+      startNanos = System.nanoTime();
+      long delayNanos =
+          hedgingController.getHedgingDelayNanos(methodDescriptor.getFullMethodName());
+      Attempt primary = new Attempt(pool.getChannelRef(null), false);
+      serializer.execute(
+          () -> {
+            synchronized (lock) {
+              if (delayNanos >= 0) {
+                // The transport modifies the headers, keep a copy for the hedged attempt.
+                this.headers = new Metadata();
+                this.headers.merge(headers);
+              }
+              attempts.add(primary);
+            }
+            primary.call.start(primary, headers);
+            synchronized (lock) {
+              if (!cancelled) {
+                if (delayNanos >= 0) {
+                  scheduleHedge(delayNanos);
+                }
+                return;
+              }
+            }
+            primary.call.cancel("Call cancelled before start.", null);
+          });
+    }
+
+    @GuardedBy("lock")
+    private void scheduleHedge(long delayNanos) {
+      try {
+        hedgeTimer = scheduler.get().schedule(this::hedge, delayNanos, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        // The pool is shutting down, no hedging.
+      }
+    }
+
+    private void hedge() {
+      GcpManagedChannel.ChannelRef primaryChannel;
+      synchronized (lock) {
+        if (committed != null || cancelled || hedged) {
+          return;
+        }
+        primaryChannel = attempts.get(0).channelRef;
+      }
+      GcpManagedChannel.ChannelRef channelRef = pool.getHedgeChannelRef(primaryChannel);
+      if (channelRef == null || !hedgingController.tryAcquireHedge()) {
+        return;
+      }
+      Attempt attempt = new Attempt(channelRef, true);
+      serializer.execute(() -> startHedge(attempt));
+    }
+
+    // Starts the hedged attempt and replays the operations of the call made so far on it.
+    private void startHedge(Attempt attempt) {
+      Metadata attemptHeaders = new Metadata();
+      List<ReqT> replayedMessages;
+      int replayedRequests;
+      boolean replayedHalfClose;
+      Boolean replayedCompression;
+      synchronized (lock) {
+        if (committed != null || cancelled) {
+          return;
+        }
+        hedged = true;
+        attempts.add(attempt);
+        attemptHeaders.merge(headers);
+        replayedMessages = new ArrayList<>(messages);
+        replayedRequests = requested;
+        replayedHalfClose = halfClosed;
+        replayedCompression = messageCompression;
+      }
+      attempt.call.start(attempt, attemptHeaders);
+      if (replayedCompression != null) {
+        attempt.call.setMessageCompression(replayedCompression);
+      }
+      if (replayedRequests > 0) {
+        attempt.call.request(replayedRequests);
+      }
+      for (ReqT message : replayedMessages) {
+        attempt.call.sendMessage(message);
+      }
+      if (replayedHalfClose) {
+        attempt.call.halfClose();
+      }
+    }
+
+    // Makes the attempt the winner unless another attempt already won. Returns whether the
+    // attempt is the winner.
+    private boolean commit(Attempt attempt) {
+      List<Attempt> losers;
+      synchronized (lock) {
+        if (committed != null) {
+          return committed == attempt;
+        }
+        committed = attempt;
+        if (hedgeTimer != null) {
+          hedgeTimer.cancel(false);
+        }
+        losers = new ArrayList<>(attempts);
+        losers.remove(attempt);
+        attempts.clear();
+        attempts.add(attempt);
+        // Nothing to replay anymore.
+        headers = null;
+        messages.clear();
+      }
+      for (Attempt loser : losers) {
+        if (!loser.hedge) {
+          // The primary attempt took at least this long, which is above the hedging delay.
+          recordPrimaryLatency();
+        }
+        // After the operations already queued for the loser, as it may be still starting.
+        serializer.execute(
+            () -> loser.call.cancel("Another attempt of the hedged call won.", null));
+      }
+      if (attempt.hedge) {
+        hedgingController.hedgeWon();
+      }
+      return true;
+    }
+
+    /**
+     * Records the latency of the primary attempt, which is the latency of the call as if it was
+     * not hedged. The latency of a hedged attempt is never recorded, as it would be lower than the
+     * latency of the primary attempt it replaces and bias the hedging delay percentile down. A
+     * primary attempt which lost to its hedge is recorded with the time it ran, i.e. below its
+     * unknown latency but above the hedging delay, which keeps the percentile unbiased.
+     */
+    private void recordPrimaryLatency() {
+      hedgingController.recordLatency(
+          methodDescriptor.getFullMethodName(), System.nanoTime() - startNanos);
+    }
+
+    // Removes a failed attempt if another attempt is still running.
+    private boolean dropFailed(Attempt attempt) {
+      synchronized (lock) {
+        if (committed != null || attempts.size() < 2) {
+          return false;
+        }
+        return attempts.remove(attempt);
+      }
+    }
+
+    private boolean isCurrent(Attempt attempt) {
+      synchronized (lock) {
+        return committed != null ? committed == attempt : attempts.get(0) == attempt;
+      }
+    }
+
+    // Returns the attempts the next operation applies to. Must be called by the serializer.
+    private List<Attempt> runningAttempts() {
+      synchronized (lock) {
+        return new ArrayList<>(attempts);
+      }
+    }
+
+    @Override
+    public void request(int numMessages) {
+      serializer.execute(
+          () -> {
+            synchronized (lock) {
+              requested += numMessages;
+            }
+            for (Attempt attempt : runningAttempts()) {
+              attempt.call.request(numMessages);
+            }
+          });
+    }
+
+    @Override
+    public void cancel(@Nullable String message, @Nullable Throwable cause) {
+      synchronized (lock) {
+        cancelled = true;
+        if (hedgeTimer != null) {
+          hedgeTimer.cancel(false);
+        }
+      }
+      serializer.execute(
+          () -> {
+            for (Attempt attempt : runningAttempts()) {
+              attempt.call.cancel(message, cause);
+            }
+          });
+    }
+
+    @Override
+    public void halfClose() {
+      serializer.execute(
+          () -> {
+            synchronized (lock) {
+              halfClosed = true;
+            }
+            for (Attempt attempt : runningAttempts()) {
+              attempt.call.halfClose();
+            }
+          });
+    }
+
+    @Override
+    public void sendMessage(ReqT message) {
+      serializer.execute(
+          () -> {
+            synchronized (lock) {
+              if (committed == null && headers != null) {
+                messages.add(message);
+              }
+            }
+            for (Attempt attempt : runningAttempts()) {
+              attempt.call.sendMessage(message);
+            }
+          });
+    }
+
+    @Override
+    public void setMessageCompression(boolean enabled) {
+      serializer.execute(
+          () -> {
+            synchronized (lock) {
+              messageCompression = enabled;
+            }
+            for (Attempt attempt : runningAttempts()) {
+              attempt.call.setMessageCompression(enabled);
+            }
+          });
+    }
+
+    @Override
+    public boolean isReady() {
+      ClientCall<ReqT, RespT> call = currentCall();
+      return call != null && call.isReady();
+    }
+
+    @Override
+    public Attributes getAttributes() {
+      ClientCall<ReqT, RespT> call = currentCall();
+      return call != null ? call.getAttributes() : Attributes.EMPTY;
+    }
+
+    @Nullable
+    private ClientCall<ReqT, RespT> currentCall() {
+      synchronized (lock) {
+        if (committed != null) {
+          return committed.call;
+        }
+        return attempts.isEmpty() ? null : attempts.get(0).call;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this).add("method", methodDescriptor).toString();
+    }
+  }
 }
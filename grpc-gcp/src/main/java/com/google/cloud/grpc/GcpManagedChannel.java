@@ -16,6 +16,7 @@
 
 package com.google.cloud.grpc;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -25,10 +26,9 @@ import com.google.cloud.grpc.proto.AffinityConfig;
 import com.google.cloud.grpc.proto.ApiConfig;
 import com.google.cloud.grpc.proto.MethodConfig;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.base.Joiner;
-import com.google.errorprone.annotations.concurrent.GuardedBy;
-import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.MessageOrBuilder;
 import com.google.protobuf.TextFormat;
 import io.grpc.CallOptions;
@@ -36,6 +36,7 @@ import io.grpc.ClientCall;
 import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import io.grpc.Status.Code;
@@ -46,20 +47,27 @@ import io.opencensus.metrics.LabelKey;
 import io.opencensus.metrics.LabelValue;
 import io.opencensus.metrics.MetricOptions;
 import io.opencensus.metrics.MetricRegistry;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.LongSummaryStatistics;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
@@ -68,38 +76,104 @@ import javax.annotation.Nullable;
 
 /** A channel management factory that implements grpc.Channel APIs. */
 public class GcpManagedChannel extends ManagedChannel {
+  /**
+   * The affinity key of a call. Set it in the {@link CallOptions} of a call to route the call by
+   * a key known upfront, e.g. the name of a session owned by the caller. The key takes precedence
+   * over the affinity key in the headers or the message of the call. The call starts on the
+   * channel bound with the key right away, and the message is not inspected, so this works for
+   * any marshaller.
+   *
+   * <p>For methods with an affinity config the command of the config still applies, e.g. the key
+   * of a BIND method is bound together with the keys of the response when the call succeeds.
+   * Calls of other methods are routed to the channel bound with the key, or by the hash of the key
+   * if it is not bound, and never bind the key.
+   */
+  public static final CallOptions.Key<String> AFFINITY_KEY = CallOptions.Key.create("AffinityKey");
+
   private static final Logger logger = Logger.getLogger(GcpManagedChannel.class.getName());
   static final AtomicInteger channelPoolIndex = new AtomicInteger();
   static final int DEFAULT_MAX_CHANNEL = 10;
   static final int DEFAULT_MAX_STREAM = 100;
 
-  @GuardedBy("this")
-  private Integer bindingIndex = -1;
+  private final AtomicInteger bindingIndex = new AtomicInteger(-1);
+  // Channel ids are never reused, so that a removed channel is never confused with a new one.
+  private final AtomicInteger nextChannelId = new AtomicInteger();
+  // Incremented when a channel is removed from the pool.
+  private final AtomicInteger channelsGeneration = new AtomicInteger();
 
   private final ManagedChannelBuilder<?> delegateChannelBuilder;
   private final GcpManagedChannelOptions options;
   private final boolean fallbackEnabled;
+  private final boolean hashedFallbackEnabled;
   private final boolean unresponsiveDetectionEnabled;
   private final int unresponsiveMs;
   private final int unresponsiveDropCount;
   private int maxSize = DEFAULT_MAX_CHANNEL;
-  private int minSize = 0;
-  private int maxConcurrentStreamsLowWatermark = DEFAULT_MAX_STREAM;
-
+  // The min size and the low watermark are adjusted by the autoscaler, if enabled.
+  private volatile int minSize = 0;
+  private volatile int maxConcurrentStreamsLowWatermark = DEFAULT_MAX_STREAM;
+  private boolean asyncChannelCreation = false;
+  private boolean serverStreamLimit = false;
+  private boolean spreadOnBatchBind = false;
+  private long channelIdleTimeoutNanos = 0;
+  private long poolIdleTimeoutNanos = 0;
+  private long affinityKeyTimeoutNanos = 0;
+  private int maxAffinityKeys = 0;
+  // When the pool last moved its channels to idle.
+  private long poolIdleEnteredNanos = System.nanoTime();
+  private ChannelPicker channelPicker = ChannelPickers.leastBusy();
+  @Nullable private PoolAutoscaler autoscaler;
+  @Nullable private AdmissionController admissionController;
+  @Nullable private MemoryBudget memoryBudget;
+  @Nullable private HedgingController hedgingController;
+  @Nullable private HotKeyTracker hotKeyTracker;
+  private long autoscaleIntervalNanos = 0;
+
+  // Affinity configs of exact method names. The first config of a name wins.
   @VisibleForTesting final Map<String, AffinityConfig> methodToAffinity = new HashMap<>();
+  // Affinity configs of all method names and patterns in the order of the API config.
+  private final List<MethodRule> methodRules = new ArrayList<>();
+  // Routing decisions by method descriptor. Method descriptors do not override equals and
+  // hashCode, so lookups are by identity and do not hash the method name.
+  private final Map<MethodDescriptor<?, ?>, MethodRoute> methodRoutes = new ConcurrentHashMap<>();
 
   @VisibleForTesting
   final Map<String, ChannelRef> affinityKeyToChannelRef = new ConcurrentHashMap<>();
 
+  // Replaces affinityKeyToChannelRef if the compact affinity store is used.
+  @Nullable private CompactAffinityStore compactAffinityStore;
+
+  // Unbinds affinity keys not used for too long or above the max number of keys.
+  @Nullable private AffinityKeyExpiry affinityKeyExpiry;
+  // The last use ticks of the keys in affinityKeyToChannelRef if the keys expire. The compact
+  // affinity store keeps the ticks itself.
+  @Nullable private ConcurrentHashMap<String, AtomicInteger> affinityKeyLastUses;
+  // Whether a sweep of the affinity keys is scheduled because there are too many keys.
+  private final AtomicBoolean affinityKeysSweepPending = new AtomicBoolean();
+
   // Map from a broken channel id to the remapped affinity keys (key => ready channel id).
   private final Map<Integer, Map<String, Integer>> fallbackMap = new ConcurrentHashMap<>();
 
-  @VisibleForTesting final List<ChannelRef> channelRefs = new CopyOnWriteArrayList<>();
+  @VisibleForTesting final List<ChannelRef> channelRefs = new ChannelRefList();
+  // The channels of channelRefs by id, maintained by the list.
+  private final Map<Integer, ChannelRef> channelRefsById = new ConcurrentHashMap<>();
+
+  // Channels ordered by active streams count, used to pick the least busy channel.
+  private final ChannelLoadIndex loadIndex = new ChannelLoadIndex();
+  private final PoolView poolView = new PoolView();
 
   private final ExecutorService stateNotificationExecutor = Executors.newCachedThreadPool(
       new ThreadFactoryBuilder().setNameFormat("gcp-mc-state-notifications-%d").build());
   private List<Runnable> stateChangeCallbacks = Collections.synchronizedList(new LinkedList<>());
 
+  // Channels removed from the pool which are shut down on the next idle channels check.
+  private final List<ChannelRef> removedChannels = new CopyOnWriteArrayList<>();
+
+  // Whether a new channel is being created in the background.
+  private final AtomicBoolean channelCreationPending = new AtomicBoolean();
+  // The channel created in the background which is not READY yet.
+  @Nullable private volatile ManagedChannel pendingChannel;
+
   // Metrics configuration.
   private MetricRegistry metricRegistry;
   private final List<LabelKey> labelKeys = new ArrayList<>();
@@ -119,11 +193,17 @@ public class GcpManagedChannel extends ManagedChannel {
       String.format("pool-%d", channelPoolIndex.incrementAndGet());
   private final Map<String, Long> cumulativeMetricValues = new ConcurrentHashMap<>();
   private ScheduledExecutorService logMetricService;
+  // Runs delayed pool tasks, created on first use.
+  @Nullable private volatile ScheduledExecutorService scheduler;
+  // Warm-ups waiting for channels to become READY.
+  private final List<WarmUp> pendingWarmUps = new CopyOnWriteArrayList<>();
 
   // Metrics counters.
   private final AtomicInteger readyChannels = new AtomicInteger();
   private int minReadyChannels = 0;
   private int maxReadyChannels = 0;
+  // The max number of channels since the last report of the max channels metric.
+  private final AtomicInteger maxChannels = new AtomicInteger();
   private final AtomicLong numChannelConnect = new AtomicLong();
   private final AtomicLong numChannelDisconnect = new AtomicLong();
   private long minReadinessTime = 0;
@@ -155,6 +235,8 @@ public class GcpManagedChannel extends ManagedChannel {
   private long maxUnresponsiveMs = 0;
   private long minUnresponsiveDrops = 0;
   private long maxUnresponsiveDrops = 0;
+  private final AtomicLong autoscaleUps = new AtomicLong();
+  private final AtomicLong autoscaleDowns = new AtomicLong();
 
   /**
    * Constructor for GcpManagedChannel.
@@ -167,6 +249,15 @@ public class GcpManagedChannel extends ManagedChannel {
           ManagedChannelBuilder<?> delegateChannelBuilder,
           ApiConfig apiConfig,
           GcpManagedChannelOptions options) {
+    this(delegateChannelBuilder, apiConfig, options, 0);
+  }
+
+  // poolSize overrides the maximum pool size if not 0.
+  private GcpManagedChannel(
+      ManagedChannelBuilder<?> delegateChannelBuilder,
+      ApiConfig apiConfig,
+      GcpManagedChannelOptions options,
+      int poolSize) {
     loadApiConfig(apiConfig);
     this.delegateChannelBuilder = delegateChannelBuilder;
     this.options = options;
@@ -175,20 +266,26 @@ public class GcpManagedChannel extends ManagedChannel {
         apiConfig == null ? "null" : TextFormat.shortDebugString(apiConfig),
         options
     ));
-    initOptions();
+    initOptions(poolSize);
     if (options.getResiliencyOptions() != null) {
       fallbackEnabled = options.getResiliencyOptions().isNotReadyFallbackEnabled();
+      hashedFallbackEnabled = options.getResiliencyOptions().isHashedFallbackEnabled();
       unresponsiveDetectionEnabled =
               options.getResiliencyOptions().isUnresponsiveDetectionEnabled();
       unresponsiveMs = options.getResiliencyOptions().getUnresponsiveDetectionMs();
       unresponsiveDropCount = options.getResiliencyOptions().getUnresponsiveDetectionDroppedCount();
     } else {
       fallbackEnabled = false;
+      hashedFallbackEnabled = false;
       unresponsiveDetectionEnabled = false;
       unresponsiveMs = 0;
       unresponsiveDropCount = 0;
     }
     initMinChannels();
+    initIdleChannelsReclaim();
+    initPoolIdleCheck();
+    initAffinityKeyExpiry();
+    initAutoscale();
   }
 
   /**
@@ -208,11 +305,7 @@ public class GcpManagedChannel extends ManagedChannel {
       ApiConfig apiConfig,
       int poolSize,
       GcpManagedChannelOptions options) {
-    this(delegateChannelBuilder, apiConfig, options);
-    if (poolSize != 0) {
-      logger.finer(log("Pool size adjusted to %d", poolSize));
-      this.maxSize = poolSize;
-    }
+    this(delegateChannelBuilder, apiConfig, options, poolSize);
   }
 
   private Supplier<String> log(Supplier<String> messageSupplier) {
@@ -233,12 +326,118 @@ public class GcpManagedChannel extends ManagedChannel {
     }
   }
 
-  private void initOptions() {
+  private void initIdleChannelsReclaim() {
+    if (channelIdleTimeoutNanos <= 0) {
+      return;
+    }
+    // Check twice per idle timeout, so a channel is removed at most 1.5 idle timeouts after its
+    // last call.
+    long periodNanos = Math.max(channelIdleTimeoutNanos / 2, MILLISECONDS.toNanos(100));
+    getScheduler()
+        .scheduleWithFixedDelay(this::reclaimIdleChannels, periodNanos, periodNanos, NANOSECONDS);
+  }
+
+  private void initPoolIdleCheck() {
+    if (poolIdleTimeoutNanos <= 0) {
+      return;
+    }
+    long periodNanos = Math.max(poolIdleTimeoutNanos / 2, MILLISECONDS.toNanos(100));
+    getScheduler()
+        .scheduleWithFixedDelay(this::checkPoolIdle, periodNanos, periodNanos, NANOSECONDS);
+  }
+
+  private void initAffinityKeyExpiry() {
+    if (affinityKeyExpiry == null) {
+      return;
+    }
+    long periodNanos = affinityKeyExpiry.getTickNanos();
+    getScheduler()
+        .scheduleWithFixedDelay(this::tickAffinityKeys, periodNanos, periodNanos, NANOSECONDS);
+  }
+
+  private void initAutoscale() {
+    if (autoscaler == null) {
+      return;
+    }
+    getScheduler()
+        .scheduleWithFixedDelay(
+            () -> autoscale(System.nanoTime()),
+            autoscaleIntervalNanos,
+            autoscaleIntervalNanos,
+            NANOSECONDS);
+  }
+
+  private void initOptions(int poolSize) {
     GcpManagedChannelOptions.GcpChannelPoolOptions poolOptions = options.getChannelPoolOptions();
     if (poolOptions != null) {
       maxSize = poolOptions.getMaxSize();
       minSize = poolOptions.getMinSize();
       maxConcurrentStreamsLowWatermark = poolOptions.getConcurrentStreamsLowWatermark();
+      asyncChannelCreation = poolOptions.isUseAsyncChannelCreation();
+      serverStreamLimit = poolOptions.isUseServerStreamLimit();
+      spreadOnBatchBind = poolOptions.isUseSpreadOnBatchBind();
+      if (poolOptions.getChannelIdleTimeout() != null) {
+        channelIdleTimeoutNanos = poolOptions.getChannelIdleTimeout().toNanos();
+      }
+      if (poolOptions.getPoolIdleTimeout() != null) {
+        poolIdleTimeoutNanos = poolOptions.getPoolIdleTimeout().toNanos();
+      }
+      if (poolOptions.getAffinityKeyTimeout() != null) {
+        affinityKeyTimeoutNanos = poolOptions.getAffinityKeyTimeout().toNanos();
+      }
+      maxAffinityKeys = poolOptions.getMaxAffinityKeys();
+      if (poolOptions.getHotKeyMinActiveStreams() > 0) {
+        hotKeyTracker =
+            new HotKeyTracker(
+                poolOptions.getHotKeyMinActiveStreams(), poolOptions.getHotKeyMaxChannels());
+      }
+      channelPicker =
+          poolOptions.getChannelPicker() != null
+              ? poolOptions.getChannelPicker()
+              : ChannelPickers.forStrategy(poolOptions.getChannelPickStrategy());
+    }
+    if (poolSize != 0) {
+      logger.finer(log("Pool size adjusted to %d", poolSize));
+      maxSize = poolSize;
+    }
+    // Created after the pool size is final, as the autoscaler never goes beyond it.
+    if (poolOptions != null && poolOptions.getAutoscaleInterval() != null) {
+      autoscaleIntervalNanos = poolOptions.getAutoscaleInterval().toNanos();
+      autoscaler =
+          new PoolAutoscaler(
+              autoscaleIntervalNanos, minSize, maxSize, maxConcurrentStreamsLowWatermark);
+    }
+    if (affinityKeyTimeoutNanos > 0 || maxAffinityKeys > 0) {
+      affinityKeyExpiry = new AffinityKeyExpiry(affinityKeyTimeoutNanos, maxAffinityKeys);
+    }
+    if (poolOptions != null && poolOptions.isUseCompactAffinityStore()) {
+      compactAffinityStore = new CompactAffinityStore(affinityKeyExpiry);
+    } else if (affinityKeyExpiry != null) {
+      affinityKeyLastUses = new ConcurrentHashMap<>();
+    }
+    GcpResiliencyOptions resiliencyOptions = options.getResiliencyOptions();
+    if (resiliencyOptions != null && resiliencyOptions.isAdmissionControlEnabled()) {
+      admissionController =
+          new AdmissionController(
+              resiliencyOptions.getMaxConcurrentCalls(),
+              resiliencyOptions.isAdaptiveConcurrencyLimit(),
+              resiliencyOptions.getMaxQueuedCalls(),
+              resiliencyOptions.getMaxQueueWait() == null
+                  ? 0
+                  : resiliencyOptions.getMaxQueueWait().toNanos(),
+              this::getScheduler);
+    }
+    if (resiliencyOptions != null && resiliencyOptions.getMemoryBudgetBytes() > 0) {
+      memoryBudget = new MemoryBudget(resiliencyOptions.getMemoryBudgetBytes());
+    }
+    if (resiliencyOptions != null && resiliencyOptions.isHedgingEnabled()) {
+      hedgingController =
+          new HedgingController(
+              resiliencyOptions.getHedgingDelayPercentile(),
+              resiliencyOptions.getMaxHedgePercent(),
+              resiliencyOptions.getMinHedgingDelay() == null
+                  ? 0
+                  : resiliencyOptions.getMinHedgingDelay().toNanos());
     }
     initMetrics();
   }
@@ -251,6 +450,14 @@ public class GcpManagedChannel extends ManagedChannel {
     logMetricService.scheduleAtFixedRate(this::logMetrics, 60, 60, SECONDS);
   }
 
+  private synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("gcp-mc-scheduler-%d").build());
+    }
+    return scheduler;
+  }
+
   private void logMetricsOptions() {
     if (options.getMetricsOptions() != null) {
       logger.fine(log("Metrics options: %s", options.getMetricsOptions()));
@@ -268,6 +475,9 @@ public class GcpManagedChannel extends ManagedChannel {
             channelRefs.stream().mapToInt(ChannelRef::getAffinityCount).iterator()
         )
     ));
+    if (hotKeyTracker != null && hotKeyTracker.getHotKeys() > 0) {
+      logger.fine(log("Hot keys calls per channel: %s", hotKeyTracker.getHotKeysLoad()));
+    }
   }
 
   private void initMetrics() {
@@ -481,6 +691,140 @@ public class GcpManagedChannel extends ManagedChannel {
         GcpMetricsConstants.MILLISECOND,
         this,
         GcpManagedChannel::reportMaxUnresponsiveDrops);
+
+    if (autoscaler != null) {
+      initAutoscaleMetrics();
+    }
+    if (admissionController != null) {
+      initAdmissionMetrics();
+    }
+    if (memoryBudget != null) {
+      createDerivedLongGaugeTimeSeries(
+          GcpMetricsConstants.METRIC_MAX_OUTSTANDING_BYTES,
+          "The maximum number of message bytes in flight counted against the memory budget.",
+          GcpMetricsConstants.BYTE,
+          this,
+          GcpManagedChannel::reportMaxOutstandingBytes);
+    }
+    if (hedgingController != null) {
+      createDerivedLongCumulativeTimeSeries(
+          GcpMetricsConstants.METRIC_NUM_HEDGES_SENT,
+          "The number of hedged attempts sent.",
+          GcpMetricsConstants.COUNT,
+          this,
+          GcpManagedChannel::reportHedgesSent);
+
+      createDerivedLongCumulativeTimeSeries(
+          GcpMetricsConstants.METRIC_NUM_HEDGES_WON,
+          "The number of calls completed by a hedged attempt.",
+          GcpMetricsConstants.COUNT,
+          this,
+          GcpManagedChannel::reportHedgesWon);
+    }
+    if (hotKeyTracker != null) {
+      createDerivedLongGaugeTimeSeries(
+          GcpMetricsConstants.METRIC_NUM_HOT_KEYS,
+          "The number of hot affinity keys whose calls are spread over multiple channels.",
+          GcpMetricsConstants.COUNT,
+          this,
+          GcpManagedChannel::reportHotKeys);
+
+      createDerivedLongCumulativeTimeSeries(
+          GcpMetricsConstants.METRIC_NUM_HOT_KEY_SPREAD_CALLS,
+          "The number of calls of hot affinity keys made on a channel other than the bound one.",
+          GcpMetricsConstants.COUNT,
+          this,
+          GcpManagedChannel::reportHotKeySpreadCalls);
+    }
+    if (affinityKeyExpiry != null) {
+      createDerivedLongCumulativeTimeSeries(
+          GcpMetricsConstants.METRIC_NUM_AFFINITY_KEYS_EXPIRED,
+          "The number of affinity keys unbound because they were not used for too long.",
+          GcpMetricsConstants.COUNT,
+          this,
+          GcpManagedChannel::reportAffinityKeysExpired);
+
+      createDerivedLongCumulativeTimeSeries(
+          GcpMetricsConstants.METRIC_NUM_AFFINITY_KEYS_EVICTED,
+          "The number of affinity keys unbound because too many keys were bound.",
+          GcpMetricsConstants.COUNT,
+          this,
+          GcpManagedChannel::reportAffinityKeysEvicted);
+    }
+  }
+
+  private void initAdmissionMetrics() {
+    createDerivedLongGaugeTimeSeries(
+        GcpMetricsConstants.METRIC_ADMISSION_LIMIT,
+        "The concurrent calls limit of the admission control.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportAdmissionLimit);
+
+    createDerivedLongGaugeTimeSeries(
+        GcpMetricsConstants.METRIC_MAX_ADMISSION_QUEUE_SIZE,
+        "The maximum number of calls waiting for admission.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportMaxAdmissionQueueSize);
+
+    createDerivedLongGaugeTimeSeries(
+        GcpMetricsConstants.METRIC_AVG_ADMISSION_WAIT_TIME,
+        "The average time calls waited for admission.",
+        GcpMetricsConstants.MICROSECOND,
+        this,
+        GcpManagedChannel::reportAvgAdmissionWaitTime);
+
+    createDerivedLongGaugeTimeSeries(
+        GcpMetricsConstants.METRIC_MAX_ADMISSION_WAIT_TIME,
+        "The maximum time calls waited for admission.",
+        GcpMetricsConstants.MICROSECOND,
+        this,
+        GcpManagedChannel::reportMaxAdmissionWaitTime);
+
+    createDerivedLongCumulativeTimeSeries(
+        GcpMetricsConstants.METRIC_NUM_ADMISSION_REJECTED,
+        "The number of calls failed because they were not admitted.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportAdmissionRejected);
+  }
+
+  private void initAutoscaleMetrics() {
+    createDerivedLongGaugeTimeSeries(
+        GcpMetricsConstants.METRIC_AUTOSCALE_PREDICTED_STREAMS,
+        "The number of active streams predicted by the autoscaler.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportAutoscalePredictedStreams);
+
+    createDerivedLongGaugeTimeSeries(
+        GcpMetricsConstants.METRIC_AUTOSCALE_MIN_SIZE,
+        "The minimum pool size set by the autoscaler.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportAutoscaleMinSize);
+
+    createDerivedLongGaugeTimeSeries(
+        GcpMetricsConstants.METRIC_AUTOSCALE_LOW_WATERMARK,
+        "The concurrent streams low watermark set by the autoscaler.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportAutoscaleLowWatermark);
+
+    createDerivedLongCumulativeTimeSeries(
+        GcpMetricsConstants.METRIC_NUM_AUTOSCALE_UPS,
+        "The number of times the autoscaler raised the minimum pool size.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportAutoscaleUps);
+
+    createDerivedLongCumulativeTimeSeries(
+        GcpMetricsConstants.METRIC_NUM_AUTOSCALE_DOWNS,
+        "The number of times the autoscaler lowered the minimum pool size.",
+        GcpMetricsConstants.COUNT,
+        this,
+        GcpManagedChannel::reportAutoscaleDowns);
   }
 
   private void logGauge(String key, long value) {
@@ -528,6 +872,35 @@ public class GcpManagedChannel extends ManagedChannel {
     reportMaxUnresponsiveMs();
     reportMinUnresponsiveDrops();
     reportMaxUnresponsiveDrops();
+    if (autoscaler != null) {
+      reportAutoscalePredictedStreams();
+      reportAutoscaleMinSize();
+      reportAutoscaleLowWatermark();
+      reportAutoscaleUps();
+      reportAutoscaleDowns();
+    }
+    if (admissionController != null) {
+      reportAdmissionLimit();
+      reportMaxAdmissionQueueSize();
+      reportAvgAdmissionWaitTime();
+      reportMaxAdmissionWaitTime();
+      reportAdmissionRejected();
+    }
+    if (memoryBudget != null) {
+      reportMaxOutstandingBytes();
+    }
+    if (hedgingController != null) {
+      reportHedgesSent();
+      reportHedgesWon();
+    }
+    if (hotKeyTracker != null) {
+      reportHotKeys();
+      reportHotKeySpreadCalls();
+    }
+    if (affinityKeyExpiry != null) {
+      reportAffinityKeysExpired();
+      reportAffinityKeysEvicted();
+    }
   }
 
   private MetricOptions createMetricOptions(
@@ -593,9 +966,10 @@ public class GcpManagedChannel extends ManagedChannel {
     metric.createTimeSeries(labelValuesError, obj, funcErr);
   }
 
-  // TODO: When introducing pool downscaling feature this method must be changed accordingly.
   private long reportMaxChannels() {
-    int value = getNumberOfChannels();
+    int channels = getNumberOfChannels();
+    // Channels may have been removed since the maximum was reached.
+    int value = Math.max(maxChannels.getAndSet(channels), channels);
     logGauge(GcpMetricsConstants.METRIC_MAX_CHANNELS, value);
     return value;
   }
@@ -835,12 +1209,117 @@ public class GcpManagedChannel extends ManagedChannel {
     return value;
   }
 
+  private long reportAutoscalePredictedStreams() {
+    long value = autoscaler.getPredictedStreams();
+    logGauge(GcpMetricsConstants.METRIC_AUTOSCALE_PREDICTED_STREAMS, value);
+    return value;
+  }
+
+  private long reportAutoscaleMinSize() {
+    long value = minSize;
+    logGauge(GcpMetricsConstants.METRIC_AUTOSCALE_MIN_SIZE, value);
+    return value;
+  }
+
+  private long reportAutoscaleLowWatermark() {
+    long value = maxConcurrentStreamsLowWatermark;
+    logGauge(GcpMetricsConstants.METRIC_AUTOSCALE_LOW_WATERMARK, value);
+    return value;
+  }
+
+  private long reportAutoscaleUps() {
+    long value = autoscaleUps.get();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_AUTOSCALE_UPS, value);
+    return value;
+  }
+
+  private long reportAutoscaleDowns() {
+    long value = autoscaleDowns.get();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_AUTOSCALE_DOWNS, value);
+    return value;
+  }
+
+  private long reportAdmissionLimit() {
+    long value = admissionController.getLimit();
+    logGauge(GcpMetricsConstants.METRIC_ADMISSION_LIMIT, value);
+    return value;
+  }
+
+  private long reportMaxAdmissionQueueSize() {
+    long value = admissionController.getAndResetMaxQueueDepth();
+    logGauge(GcpMetricsConstants.METRIC_MAX_ADMISSION_QUEUE_SIZE, value);
+    return value;
+  }
+
+  private long reportAvgAdmissionWaitTime() {
+    long value = admissionController.getAndResetAvgWaitMicros();
+    logGauge(GcpMetricsConstants.METRIC_AVG_ADMISSION_WAIT_TIME, value);
+    return value;
+  }
+
+  private long reportMaxAdmissionWaitTime() {
+    long value = admissionController.getAndResetMaxWaitMicros();
+    logGauge(GcpMetricsConstants.METRIC_MAX_ADMISSION_WAIT_TIME, value);
+    return value;
+  }
+
+  private long reportAdmissionRejected() {
+    long value = admissionController.getRejectedCalls();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_ADMISSION_REJECTED, value);
+    return value;
+  }
+
+  private long reportMaxOutstandingBytes() {
+    long value = memoryBudget.getAndResetMaxUsedBytes();
+    logGauge(GcpMetricsConstants.METRIC_MAX_OUTSTANDING_BYTES, value);
+    return value;
+  }
+
+  private long reportHedgesSent() {
+    long value = hedgingController.getHedgesSent();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_HEDGES_SENT, value);
+    return value;
+  }
+
+  private long reportHedgesWon() {
+    long value = hedgingController.getHedgesWon();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_HEDGES_WON, value);
+    return value;
+  }
+
+  private long reportHotKeys() {
+    long value = hotKeyTracker.getHotKeys();
+    logGauge(GcpMetricsConstants.METRIC_NUM_HOT_KEYS, value);
+    return value;
+  }
+
+  private long reportHotKeySpreadCalls() {
+    long value = hotKeyTracker.getSpreadCalls();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_HOT_KEY_SPREAD_CALLS, value);
+    return value;
+  }
+
+  private long reportAffinityKeysExpired() {
+    long value = affinityKeyExpiry.getExpiredKeys();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_AFFINITY_KEYS_EXPIRED, value);
+    return value;
+  }
+
+  private long reportAffinityKeysEvicted() {
+    long value = affinityKeyExpiry.getEvictedKeys();
+    logCumulative(GcpMetricsConstants.METRIC_NUM_AFFINITY_KEYS_EVICTED, value);
+    return value;
+  }
+
   private void incReadyChannels() {
     numChannelConnect.incrementAndGet();
     final int newReady = readyChannels.incrementAndGet();
     if (maxReadyChannels < newReady) {
       maxReadyChannels = newReady;
     }
+    if (!pendingWarmUps.isEmpty()) {
+      completeWarmUps();
+    }
   }
 
   private void decReadyChannels() {
@@ -861,6 +1340,9 @@ public class GcpManagedChannel extends ManagedChannel {
     }
     totalReadinessTime.addAndGet(readinessTimeUs);
     readinessTimeOccurrences.incrementAndGet();
+    if (autoscaler != null) {
+      autoscaler.recordReadinessTime(readinessNanos);
+    }
   }
 
   private void recordUnresponsiveDetection(long nanos, long dropCount) {
@@ -900,14 +1382,16 @@ public class GcpManagedChannel extends ManagedChannel {
    * route requests via another ready channel if the option is enabled.
    */
   private class ChannelStateMonitor implements Runnable {
+    private final ChannelRef channelRef;
     private final int channelId;
     private final ManagedChannel channel;
     private ConnectivityState currentState;
     private long connectingStartNanos;
 
-    private ChannelStateMonitor(ManagedChannel channel, int channelId) {
-      this.channelId = channelId;
-      this.channel = channel;
+    private ChannelStateMonitor(ChannelRef channelRef) {
+      this.channelRef = channelRef;
+      this.channelId = channelRef.getId();
+      this.channel = channelRef.getChannel();
       run();
     }
 
@@ -917,24 +1401,32 @@ public class GcpManagedChannel extends ManagedChannel {
         return;
       }
       // Keep minSize channels always connected.
-      boolean requestConnection = channelId < minSize;
+      boolean requestConnection = isMinSizeChannel(channelRef);
       ConnectivityState newState = channel.getState(requestConnection);
       logger.finer(
           log("Channel %d state change detected: %s -> %s", channelId, currentState, newState)
       );
       if (newState == ConnectivityState.READY && currentState != ConnectivityState.READY) {
         incReadyChannels();
-        saveReadinessTime(System.nanoTime() - connectingStartNanos);
+        // A channel which joins the pool READY was connecting before it was monitored, its
+        // readiness time is recorded when it is added.
+        if (connectingStartNanos != 0) {
+          saveReadinessTime(System.nanoTime() - connectingStartNanos);
+          connectingStartNanos = 0;
+        }
       }
       if (newState != ConnectivityState.READY && currentState == ConnectivityState.READY) {
         decReadyChannels();
+        if (channelRef.streamLimit != null) {
+          channelRef.streamLimit.reset();
+        }
       }
       if (newState == ConnectivityState.CONNECTING
           && currentState != ConnectivityState.CONNECTING) {
         connectingStartNanos = System.nanoTime();
       }
       currentState = newState;
-      processChannelStateChange(channelId, newState);
+      processChannelStateChange(channelRef, newState);
       if (newState != ConnectivityState.SHUTDOWN) {
         channel.notifyWhenStateChanged(newState, this);
       }
@@ -953,17 +1445,168 @@ public class GcpManagedChannel extends ManagedChannel {
   }
 
   void processChannelStateChange(int channelId, ConnectivityState state) {
+    for (ChannelRef channelRef : channelRefs) {
+      if (channelRef.getId() == channelId) {
+        processChannelStateChange(channelRef, state);
+        return;
+      }
+    }
     executeStateChangeCallbacks();
-    if (!fallbackEnabled) {
+    updateFallbackMap(channelId, state);
+  }
+
+  private void processChannelStateChange(ChannelRef channelRef, ConnectivityState state) {
+    executeStateChangeCallbacks();
+    channelRef.connected = state == ConnectivityState.READY || state == ConnectivityState.IDLE;
+    if (channelRef.removed) {
       return;
     }
+    if (updateFallbackMap(channelRef.getId(), state)) {
+      channelRef.loadSlot.setReady(!fallbackMap.containsKey(channelRef.getId()));
+    }
+  }
+
+  // Returns false if fallback is disabled and the readiness of channels is not tracked.
+  private boolean updateFallbackMap(int channelId, ConnectivityState state) {
+    if (!fallbackEnabled) {
+      return false;
+    }
     if (state == ConnectivityState.READY || state == ConnectivityState.IDLE) {
       // Ready
       fallbackMap.remove(channelId);
-      return;
+      return true;
     }
     // Not ready
     fallbackMap.putIfAbsent(channelId, new ConcurrentHashMap<>());
+    return true;
+  }
+
+  /**
+   * Removes a channel which has had no active streams and no bound affinity keys for the channel
+   * idle timeout and shuts down channels removed by the previous check. At most one channel is
+   * removed per check, the first minSize channels of the pool and the last channel are never
+   * removed.
+   *
+   * <p>To avoid oscillation a channel is removed only if the remaining channels would be loaded at
+   * most to a half of the concurrent streams low watermark on average, while the pool grows only
+   * when every channel reaches the low watermark.
+   */
+  @VisibleForTesting
+  void reclaimIdleChannels() {
+    // Calls which picked a removed channel before it was removed have started by now, graceful
+    // shutdown lets them complete.
+    for (ChannelRef channelRef : removedChannels) {
+      removedChannels.remove(channelRef);
+      channelRef.getChannel().shutdown();
+    }
+    List<ChannelRef> channels = new ArrayList<>(channelRefs);
+    int minChannels = minSize;
+    int remaining = channels.size() - 1;
+    if (remaining < Math.max(minChannels, 1)
+        || 2L * totalActiveStreams.get() > (long) remaining * maxConcurrentStreamsLowWatermark) {
+      return;
+    }
+    long nowNanos = System.nanoTime();
+    // Prefer removing the newest channels.
+    for (int i = channels.size() - 1; i >= minChannels; i--) {
+      ChannelRef channelRef = channels.get(i);
+      if (channelRef.isIdle(nowNanos, channelIdleTimeoutNanos)
+          && removeChannel(channelRef)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Moves all channels except the first minSize channels to idle if there were no calls in the pool
+   * for the pool idle timeout. The channels reconnect on the next call.
+   */
+  @VisibleForTesting
+  void checkPoolIdle() {
+    long nowNanos = System.nanoTime();
+    long lastActivityNanos = Long.MIN_VALUE;
+    for (ChannelRef channelRef : channelRefs) {
+      if (channelRef.getActiveStreamsCount() > 0) {
+        return;
+      }
+      lastActivityNanos = Math.max(lastActivityNanos, channelRef.idleSinceNanos);
+    }
+    // Enter idle once per period of inactivity.
+    if (lastActivityNanos == Long.MIN_VALUE
+        || nowNanos - lastActivityNanos < poolIdleTimeoutNanos
+        || lastActivityNanos - poolIdleEnteredNanos < 0) {
+      return;
+    }
+    poolIdleEnteredNanos = nowNanos;
+    List<ChannelRef> channels = new ArrayList<>(channelRefs);
+    int count = 0;
+    for (int i = minSize; i < channels.size(); i++) {
+      channels.get(i).getChannel().enterIdle();
+      count++;
+    }
+    logger.finer(log("Pool is idle, %d channel(s) moved to idle.", count));
+  }
+
+  /**
+   * Updates the load prediction of the autoscaler and applies the min size and the concurrent
+   * streams low watermark derived from it, creating new channels up to the new min size.
+   */
+  @VisibleForTesting
+  void autoscale(long nowNanos) {
+    autoscaler.update(nowNanos, totalActiveStreams.get(), totalOkCalls.get() + totalErrCalls.get());
+    int prevMinSize = minSize;
+    int prevWatermark = maxConcurrentStreamsLowWatermark;
+    int newMinSize = Math.min(autoscaler.getTargetMinSize(), maxSize);
+    int newWatermark = autoscaler.getLowWatermark();
+    if (newMinSize == prevMinSize && newWatermark == prevWatermark) {
+      return;
+    }
+    if (newMinSize > prevMinSize) {
+      autoscaleUps.incrementAndGet();
+    } else if (newMinSize < prevMinSize) {
+      autoscaleDowns.incrementAndGet();
+    }
+    logger.finer(log(
+        "Autoscaling for %d predicted streams: min size %d -> %d, low watermark %d -> %d.",
+        autoscaler.getPredictedStreams(), prevMinSize, newMinSize, prevWatermark, newWatermark));
+    minSize = newMinSize;
+    maxConcurrentStreamsLowWatermark = newWatermark;
+    if (newMinSize > prevMinSize) {
+      initMinChannels();
+      // Connect idle channels too, so that they are ready for the predicted load.
+      for (ChannelRef channelRef : channelRefs) {
+        channelRef.getChannel().getState(true);
+      }
+    }
+  }
+
+  /**
+   * Whether the channel is one of the first minSize channels of the pool. Channel ids are not
+   * reused, so after removals and min size changes these are not the channels with the lowest ids.
+   * A channel not added to the pool yet is checked by the position it is added at.
+   */
+  private boolean isMinSizeChannel(ChannelRef channelRef) {
+    if (channelRef.removed) {
+      return false;
+    }
+    int index = channelRefs.indexOf(channelRef);
+    return (index >= 0 ? index : channelRefs.size()) < minSize;
+  }
+
+  private synchronized boolean removeChannel(ChannelRef channelRef) {
+    channelRef.removed = true;
+    // Re-check after marking the channel as removed, as new calls and keys check the mark.
+    if (channelRef.getActiveStreamsCount() > 0 || channelRef.getAffinityCount() > 0) {
+      channelRef.removed = false;
+      return false;
+    }
+    channelRefs.remove(channelRef);
+    channelsGeneration.incrementAndGet();
+    channelRef.loadSlot.remove();
+    fallbackMap.remove(channelRef.getId());
+    removedChannels.add(channelRef);
+    logger.finer(log("Channel %d removed after being idle.", channelRef.getId()));
+    return true;
   }
 
   public int getMaxSize() {
@@ -992,19 +1635,25 @@ public class GcpManagedChannel extends ManagedChannel {
 
   /**
    * Returns a {@link ChannelRef} from the pool for a binding call.
-   * If round-robin on bind is enabled, uses {@link #getChannelRefRoundRobin()}
-   * otherwise {@link #getChannelRef(String)}
+   * If least affinity on bind is enabled, uses {@link #getChannelRefLeastAffinity()},
+   * if round-robin on bind is enabled, uses {@link #getChannelRefRoundRobin()}
+   * otherwise the configured {@link ChannelPicker}
    *
    * @return {@link ChannelRef} channel to use for a call.
    */
   protected ChannelRef getChannelRefForBind() {
     ChannelRef channelRef;
-    if (options.getChannelPoolOptions() != null && options.getChannelPoolOptions().isUseRoundRobinOnBind()) {
+    if (options.getChannelPoolOptions() != null
+        && options.getChannelPoolOptions().isUseLeastAffinityOnBind()) {
+      channelRef = getChannelRefLeastAffinity();
+      logger.finest(log(
+          "Channel %d picked for bind operation using least affinity.", channelRef.getId()));
+    } else if (options.getChannelPoolOptions() != null && options.getChannelPoolOptions().isUseRoundRobinOnBind()) {
       channelRef = getChannelRefRoundRobin();
       logger.finest(log(
           "Channel %d picked for bind operation using round-robin.", channelRef.getId()));
     } else {
-      channelRef = getChannelRef(null);
+      channelRef = pickChannel(/* forFallback= */ false, /* forBind= */ true);
       logger.finest(log("Channel %d picked for bind operation.", channelRef.getId()));
     }
     return channelRef;
@@ -1016,15 +1665,58 @@ public class GcpManagedChannel extends ManagedChannel {
    *
    * @return {@link ChannelRef}
    */
-  protected synchronized ChannelRef getChannelRefRoundRobin() {
-    if (channelRefs.size() < maxSize) {
-      return createNewChannel();
+  protected ChannelRef getChannelRefRoundRobin() {
+    ChannelRef newChannel = tryCreateNewChannel();
+    if (newChannel != null) {
+      return newChannel;
+    }
+    List<ChannelRef> channels = poolView.getChannels();
+    return channels.get(Math.floorMod(bindingIndex.incrementAndGet(), channels.size()));
+  }
+
+  /**
+   * Returns a {@link ChannelRef} from the pool with the fewest bound affinity keys, ties are broken
+   * by the number of active streams. If notReadyFallbackEnabled is true in the
+   * {@link GcpResiliencyOptions} then ready and not overloaded channels are preferred.
+   * Creates a new channel in the pool when every channel has some keys bound until the pool
+   * reaches its max size.
+   *
+   * <p>Unlike round-robin this keeps the keys evenly spread after many keys were unbound.
+   *
+   * @return {@link ChannelRef}
+   */
+  protected ChannelRef getChannelRefLeastAffinity() {
+    ChannelRef first = createFirstChannel();
+    if (first != null) {
+      return first;
+    }
+    ChannelRef best = null;
+    boolean bestSelectable = false;
+    for (ChannelRef channelRef : channelRefs) {
+      boolean selectable = isSelectable(channelRef);
+      if (best == null
+          || (selectable && !bestSelectable)
+          || (selectable == bestSelectable && hasLessAffinity(channelRef, best))) {
+        best = channelRef;
+        bestSelectable = selectable;
+      }
+    }
+    if (!bestSelectable || best.getAffinityCount() > 0) {
+      ChannelRef newChannel = tryCreateNewChannel();
+      if (newChannel != null) {
+        return newChannel;
+      }
     }
-    bindingIndex++;
-    if (bindingIndex >= channelRefs.size()) {
-      bindingIndex = 0;
+    return best;
+  }
+
+  private static boolean hasLessAffinity(ChannelRef a, ChannelRef b) {
+    int affinityA = a.getAffinityCount();
+    int affinityB = b.getAffinityCount();
+    if (affinityA != affinityB) {
+      return affinityA < affinityB;
     }
-    return channelRefs.get(bindingIndex);
+    return a.getActiveStreamsCount() < b.getActiveStreamsCount();
   }
 
   /**
@@ -1039,11 +1731,11 @@ public class GcpManagedChannel extends ManagedChannel {
    */
   protected ChannelRef getChannelRef(@Nullable String key) {
     if (key == null || key.isEmpty()) {
-      return pickLeastBusyChannel(/* forFallback= */ false);
+      return pickChannel(/* forFallback= */ false, /* forBind= */ false);
     }
-    ChannelRef mappedChannel = affinityKeyToChannelRef.get(key);
+    ChannelRef mappedChannel = getBoundChannel(key);
     if (mappedChannel == null) {
-      ChannelRef channelRef = pickLeastBusyChannel(/*forFallback= */ false);
+      ChannelRef channelRef = pickChannel(/* forFallback= */ false, /* forBind= */ false);
       bind(channelRef, Collections.singletonList(key));
       return channelRef;
     }
@@ -1056,18 +1748,22 @@ public class GcpManagedChannel extends ManagedChannel {
       // Channel is ready.
       return mappedChannel;
     }
+    if (hashedFallbackEnabled) {
+      return getHashedFallbackChannelRef(key, mappedChannel);
+    }
     // Channel is not ready. Look up if the affinity key mapped to another channel.
     Integer channelId = tempMap.get(key);
-    if (channelId != null && !fallbackMap.containsKey(channelId)) {
+    // The fallback channel may have been removed from the pool.
+    ChannelRef fallbackChannel = channelId == null ? null : getChannelRefById(channelId);
+    if (fallbackChannel != null && !fallbackMap.containsKey(channelId)) {
       // Fallback channel is ready.
       logger.finest(log("Using fallback channel: %d -> %d", mappedChannel.getId(), channelId));
       fallbacksSucceeded.incrementAndGet();
-      return channelRefs.get(channelId);
+      return fallbackChannel;
     }
     // No temp mapping for this key or fallback channel is also broken.
-    ChannelRef channelRef = pickLeastBusyChannel(/* forFallback= */ true);
-    if (!fallbackMap.containsKey(channelRef.getId())
-        && channelRef.getActiveStreamsCount() < DEFAULT_MAX_STREAM) {
+    ChannelRef channelRef = pickChannel(/* forFallback= */ true, /* forBind= */ false);
+    if (isSelectable(channelRef)) {
       // Got a ready and not an overloaded channel.
       if (channelRef.getId() != mappedChannel.getId()) {
         logger.finest(log(
@@ -1080,46 +1776,135 @@ public class GcpManagedChannel extends ManagedChannel {
     }
     logger.finest(log("Failed to find fallback for channel %d", mappedChannel.getId()));
     fallbacksFailed.incrementAndGet();
-    if (channelId != null) {
+    if (fallbackChannel != null) {
       // Stick with previous mapping if fallback has failed.
-      return channelRefs.get(channelId);
+      return fallbackChannel;
     }
     return mappedChannel;
   }
 
-  // Create a new channel and add it to channelRefs synchronously to make sure its id matches its
-  // channelRef's index.
-  private synchronized ChannelRef createNewChannel() {
-    final int size = channelRefs.size();
-    ChannelRef channelRef = new ChannelRef(delegateChannelBuilder.build(), size);
-    channelRefs.add(channelRef);
-    logger.finer(log("Channel %d created.", channelRef.getId()));
-    return channelRef;
+  /**
+   * Returns the fallback channel for an affinity key bound to a channel which is not ready: the
+   * ready and not overloaded channel with the highest rendezvous hash score for the key, so that
+   * the keys of the broken channel are spread evenly, nothing is stored per key, and the key
+   * moves only if its fallback channel breaks too. Returns the bound channel if there is no such
+   * channel.
+   */
+  private ChannelRef getHashedFallbackChannelRef(String key, ChannelRef mappedChannel) {
+    long keyHash = CompactAffinityStore.hash(key);
+    ChannelRef fallbackChannel = null;
+    long score = 0;
+    for (ChannelRef candidate : channelRefs) {
+      if (candidate == mappedChannel || !isSelectable(candidate)) {
+        continue;
+      }
+      long candidateScore = rendezvousScore(keyHash, candidate.getId());
+      if (fallbackChannel == null || Long.compareUnsigned(candidateScore, score) > 0) {
+        fallbackChannel = candidate;
+        score = candidateScore;
+      }
+    }
+    if (fallbackChannel == null) {
+      logger.finest(log("Failed to find fallback for channel %d", mappedChannel.getId()));
+      fallbacksFailed.incrementAndGet();
+      return mappedChannel;
+    }
+    logger.finest(log(
+        "Using hashed fallback channel: %d -> %d", mappedChannel.getId(), fallbackChannel.getId()));
+    fallbacksSucceeded.incrementAndGet();
+    return fallbackChannel;
   }
 
-  // Returns first newly created channel or null if there are already some channels in the pool.
+  /**
+   * Returns the channel for a hedged attempt of a call running on the {@code primary} channel: the
+   * least busy ready and not overloaded channel other than the primary, or null if there is none.
+   */
   @Nullable
-  private ChannelRef createFirstChannel() {
-    if (!channelRefs.isEmpty()) {
-      return null;
-    }
-    synchronized (this) {
-      if (channelRefs.isEmpty()) {
-        return createNewChannel();
+  ChannelRef getHedgeChannelRef(ChannelRef primary) {
+    ChannelRef best = null;
+    for (ChannelRef channelRef : poolView.getChannels()) {
+      if (channelRef == primary
+          || !channelRef.isReady()
+          || channelRef.getActiveStreamsCount() >= channelRef.getMaxConcurrentStreams()) {
+        continue;
+      }
+      if (best == null || channelRef.getActiveStreamsCount() < best.getActiveStreamsCount()) {
+        best = channelRef;
       }
     }
-    return null;
+    return best;
   }
 
-  // Creates new channel if maxSize is not reached.
-  // Returns new channel or null.
   @Nullable
-  private ChannelRef tryCreateNewChannel() {
-    if (channelRefs.size() >= maxSize) {
+  private ChannelRef getChannelRefById(int channelId) {
+    return channelRefsById.get(channelId);
+  }
+
+  // Create a new channel and add it to channelRefs synchronously to make sure channel ids are
+  // unique.
+  private synchronized ChannelRef createNewChannel() {
+    return addChannel(delegateChannelBuilder.build());
+  }
+
+  private synchronized ChannelRef addChannel(ManagedChannel channel) {
+    ChannelRef channelRef = new ChannelRef(channel, nextChannelId.get());
+    channelRefs.add(channelRef);
+    maxChannels.accumulateAndGet(channelRefs.size(), Math::max);
+    logger.finer(log("Channel %d created.", channelRef.getId()));
+    return channelRef;
+  }
+
+  // Starts creating a new channel in the background unless another one is being created. The
+  // channel is added to the pool only when it becomes READY.
+  private void createNewChannelAsync() {
+    if (!channelCreationPending.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      stateNotificationExecutor.execute(
+          () -> {
+            long createdNanos = System.nanoTime();
+            ManagedChannel channel = delegateChannelBuilder.build();
+            pendingChannel = channel;
+            logger.finer(log("New channel is connecting in the background."));
+            addChannelWhenReady(channel, createdNanos);
+          });
+    } catch (RejectedExecutionException e) {
+      // Ignore exceptions on shutdown.
+      channelCreationPending.set(false);
+      logger.fine(log("Channel creation task rejected: %s", e.getMessage()));
+    }
+  }
+
+  private void addChannelWhenReady(ManagedChannel channel, long createdNanos) {
+    ConnectivityState state = channel.getState(true);
+    if (state == ConnectivityState.READY || state == ConnectivityState.SHUTDOWN) {
+      synchronized (this) {
+        // The pool may have been shut down or filled up while the channel was connecting.
+        if (state == ConnectivityState.READY
+            && !stateNotificationExecutor.isShutdown()
+            && channelRefs.size() < maxSize) {
+          addChannel(channel);
+          saveReadinessTime(System.nanoTime() - createdNanos);
+        } else {
+          channel.shutdownNow();
+        }
+        pendingChannel = null;
+        channelCreationPending.set(false);
+      }
+      return;
+    }
+    channel.notifyWhenStateChanged(state, () -> addChannelWhenReady(channel, createdNanos));
+  }
+
+  // Returns first newly created channel or null if there are already some channels in the pool.
+  @Nullable
+  private ChannelRef createFirstChannel() {
+    if (!channelRefs.isEmpty()) {
       return null;
     }
     synchronized (this) {
-      if (channelRefs.size() < maxSize) {
+      if (channelRefs.isEmpty()) {
         return createNewChannel();
       }
     }
@@ -1127,52 +1912,225 @@ public class GcpManagedChannel extends ManagedChannel {
   }
 
   /**
-   * Pick a {@link ChannelRef} (and create a new one if necessary). If notReadyFallbackEnabled is
-   * true in the {@link GcpResiliencyOptions} then instead of a channel in a non-READY state another
-   * channel in the READY state and having fewer than maximum allowed number of active streams will
-   * be provided if available.
+   * Returns the channel for a call of a HASH method with the affinity key. Of all channels of the
+   * pool the channel with the highest rendezvous hash score of the key and the channel id is used,
+   * so that adding or removing a channel moves only the keys scoring highest on that channel. The
+   * pool grows when the key's channel reaches the concurrent streams low watermark. If
+   * notReadyFallbackEnabled is true and the key's channel is not ready or overloaded, the
+   * selectable channel scoring highest is used instead, i.e. the same fallback for the key.
+   *
+   * @param key affinity key. If not specified, the configured {@link ChannelPicker} picks the
+   *     channel.
    */
-  private ChannelRef pickLeastBusyChannel(boolean forFallback) {
+  protected ChannelRef getChannelRefForHash(@Nullable String key) {
+    if (key == null || key.isEmpty()) {
+      return pickChannel(/* forFallback= */ false, /* forBind= */ false);
+    }
     ChannelRef first = createFirstChannel();
     if (first != null) {
       return first;
     }
+    long keyHash = CompactAffinityStore.hash(key);
+    ChannelRef channelRef = null;
+    long score = 0;
+    ChannelRef selectable = null;
+    long selectableScore = 0;
+    for (ChannelRef candidate : channelRefs) {
+      long candidateScore = rendezvousScore(keyHash, candidate.getId());
+      if (channelRef == null || Long.compareUnsigned(candidateScore, score) > 0) {
+        channelRef = candidate;
+        score = candidateScore;
+      }
+      if (fallbackEnabled
+          && isSelectable(candidate)
+          && (selectable == null || Long.compareUnsigned(candidateScore, selectableScore) > 0)) {
+        selectable = candidate;
+        selectableScore = candidateScore;
+      }
+    }
+    if (channelRefs.size() < maxSize
+        && channelRef.getActiveStreamsCount() >= growthThreshold(channelRef)) {
+      ChannelRef newChannel = tryCreateNewChannel();
+      if (newChannel != null
+          && Long.compareUnsigned(rendezvousScore(keyHash, newChannel.getId()), score) > 0) {
+        return newChannel;
+      }
+    }
+    if (!fallbackEnabled || isSelectable(channelRef)) {
+      return channelRef;
+    }
+    if (selectable == null) {
+      logger.finest(log("Failed to find fallback for channel %d", channelRef.getId()));
+      fallbacksFailed.incrementAndGet();
+      return channelRef;
+    }
+    logger.finest(log(
+        "Picking fallback channel: %d -> %d", channelRef.getId(), selectable.getId()));
+    fallbacksSucceeded.incrementAndGet();
+    return selectable;
+  }
 
-    // Pick the least busy channel and the least busy ready and not overloaded channel (this could
-    // be the same channel or different or no channel).
-    ChannelRef channelCandidate = channelRefs.get(0);
-    int minStreams = channelCandidate.getActiveStreamsCount();
-    ChannelRef readyCandidate = null;
-    int readyMinStreams = Integer.MAX_VALUE;
+  /**
+   * Tracks a call with the affinity key bound to the channel if hot key spreading is enabled.
+   *
+   * @return the tracked key, which must be passed to {@link #getHotKeyChannelRef} and to {@link
+   *     #hotKeyCallEnded} when the call ends, or null if the key is not tracked.
+   */
+  @Nullable
+  HotKeyTracker.Key trackHotKeyCall(String key, ChannelRef boundChannel) {
+    return hotKeyTracker == null
+        ? null
+        : hotKeyTracker.callStarted(key, boundChannel.getActiveStreamsCount());
+  }
 
-    for (ChannelRef channelRef : channelRefs) {
-      int cnt = channelRef.getActiveStreamsCount();
-      if (cnt < minStreams) {
-        minStreams = cnt;
-        channelCandidate = channelRef;
+  /**
+   * Returns the channel for a tracked call of a key bound to the channel: the bound channel while
+   * the key is not hot, otherwise the least busy selectable channel of the key's channels.
+   */
+  ChannelRef getHotKeyChannelRef(HotKeyTracker.Key key, ChannelRef boundChannel) {
+    List<ChannelRef> channels = key.getChannels();
+    if (channels == null) {
+      if (!key.isHot()) {
+        return boundChannel;
+      }
+      if (key.spread(getHotKeyChannels(key.getName(), boundChannel))) {
+        logger.fine(log(
+            "Spreading hot key %s with %d active streams over channels [%s].",
+            key.getName(),
+            key.getActiveStreams(),
+            Joiner.on(", ").join(
+                key.getChannels().stream().mapToInt(ChannelRef::getId).iterator())));
       }
-      if (cnt < readyMinStreams
-          && !fallbackMap.containsKey(channelRef.getId())
-          && channelRef.getActiveStreamsCount() < DEFAULT_MAX_STREAM) {
-        readyMinStreams = cnt;
-        readyCandidate = channelRef;
+      channels = key.getChannels();
+    }
+    ChannelRef channelRef = null;
+    for (ChannelRef candidate : channels) {
+      if (!candidate.removed
+          && isSelectable(candidate)
+          && (channelRef == null
+              || candidate.getActiveStreamsCount() < channelRef.getActiveStreamsCount())) {
+        channelRef = candidate;
       }
     }
+    if (channelRef == null) {
+      channelRef = boundChannel;
+    }
+    key.recordCall(channelRef, boundChannel);
+    return channelRef;
+  }
 
-    if (!fallbackEnabled) {
-      if (channelRefs.size() < maxSize && minStreams >= maxConcurrentStreamsLowWatermark) {
-        ChannelRef newChannel = tryCreateNewChannel();
-        if (newChannel != null) {
-          return newChannel;
-        }
+  // The bound channel and the channels of the pool scoring highest for the key.
+  private List<ChannelRef> getHotKeyChannels(String key, ChannelRef boundChannel) {
+    long keyHash = CompactAffinityStore.hash(key);
+    List<ChannelRef> others = new ArrayList<>(channelRefs);
+    others.remove(boundChannel);
+    others.sort(
+        (a, b) ->
+            Long.compareUnsigned(
+                rendezvousScore(keyHash, b.getId()), rendezvousScore(keyHash, a.getId())));
+    List<ChannelRef> channels = new ArrayList<>();
+    channels.add(boundChannel);
+    channels.addAll(others.subList(0, Math.min(others.size(), hotKeyTracker.getMaxChannels() - 1)));
+    return channels;
+  }
+
+  /** Records the end of a tracked call of a key and logs its load if the key is not hot anymore. */
+  void hotKeyCallEnded(HotKeyTracker.Key key) {
+    if (key.callEnded()) {
+      logger.fine(log(
+          "Hot key %s has no active streams, calls per channel: %s.",
+          key.getName(),
+          key.getCallsPerChannel()));
+    }
+  }
+
+  @VisibleForTesting
+  @Nullable
+  HotKeyTracker getHotKeyTracker() {
+    return hotKeyTracker;
+  }
+
+  @VisibleForTesting
+  static long rendezvousScore(long keyHash, int channelId) {
+    return CompactAffinityStore.fmix(keyHash ^ (channelId + 1) * 0x9e3779b97f4a7c15L);
+  }
+
+  // Creates new channel if maxSize is not reached.
+  // Returns new channel or null. With async channel creation the channel is created in the
+  // background and null is returned.
+  @Nullable
+  private ChannelRef tryCreateNewChannel() {
+    if (channelRefs.size() >= maxSize) {
+      return null;
+    }
+    if (asyncChannelCreation) {
+      createNewChannelAsync();
+      return null;
+    }
+    synchronized (this) {
+      if (channelRefs.size() < maxSize) {
+        return createNewChannel();
       }
-      return channelCandidate;
     }
+    return null;
+  }
 
-    if (channelRefs.size() < maxSize && readyMinStreams >= maxConcurrentStreamsLowWatermark) {
+  // The pool grows when a channel reaches the low watermark or its learned streams limit.
+  private int growthThreshold(ChannelRef channelRef) {
+    return Math.min(maxConcurrentStreamsLowWatermark, channelRef.getMaxConcurrentStreams());
+  }
+
+  // Returns the channel with the fewest active streams.
+  private ChannelRef leastBusyChannel() {
+    ChannelRef channelRef = loadIndex.leastBusy();
+    return channelRef != null ? channelRef : channelRefs.get(0);
+  }
+
+  // Returns the ready and not overloaded channel with the fewest active streams or null.
+  @Nullable
+  private ChannelRef leastBusyReadyChannel() {
+    ChannelRef channelRef = loadIndex.leastBusyReady();
+    if (channelRef == null
+        || channelRef.getActiveStreamsCount() >= channelRef.getMaxConcurrentStreams()) {
+      return null;
+    }
+    return channelRef;
+  }
+
+  // Whether a channel may serve a new call without a fallback.
+  private boolean isSelectable(ChannelRef channelRef) {
+    if (!fallbackEnabled) {
+      return true;
+    }
+    return channelRef.isReady()
+        && channelRef.getActiveStreamsCount() < channelRef.getMaxConcurrentStreams();
+  }
+
+  /**
+   * Pick a {@link ChannelRef} (and create a new one if necessary). The pool grows when all channels
+   * (all ready channels if notReadyFallbackEnabled is true) reach the concurrent streams low
+   * watermark, otherwise the configured {@link ChannelPicker} picks one of the existing channels.
+   * If notReadyFallbackEnabled is true in the {@link GcpResiliencyOptions} then instead of a channel
+   * in a non-READY state another channel in the READY state and having fewer than maximum allowed
+   * number of active streams will be provided if available.
+   */
+  private ChannelRef pickChannel(boolean forFallback, boolean forBind) {
+    ChannelRef first = createFirstChannel();
+    if (first != null) {
+      return first;
+    }
+
+    // The least busy channel and the least busy ready and not overloaded channel (this could be the
+    // same channel or different or no channel).
+    ChannelRef channelCandidate = leastBusyChannel();
+    ChannelRef readyCandidate = leastBusyReadyChannel();
+    ChannelRef growthCandidate = fallbackEnabled ? readyCandidate : channelCandidate;
+    if (channelRefs.size() < maxSize
+        && (growthCandidate == null
+            || growthCandidate.getActiveStreamsCount() >= growthThreshold(growthCandidate))) {
       ChannelRef newChannel = tryCreateNewChannel();
       if (newChannel != null) {
-        if (!forFallback && readyCandidate == null) {
+        if (fallbackEnabled && !forFallback && readyCandidate == null) {
           logger.finest(log("Fallback to newly created channel %d", newChannel.getId()));
           fallbacksSucceeded.incrementAndGet();
         }
@@ -1180,20 +2138,87 @@ public class GcpManagedChannel extends ManagedChannel {
       }
     }
 
-    if (readyCandidate != null) {
-      if (!forFallback && readyCandidate.getId() != channelCandidate.getId()) {
-        logger.finest(log(
-            "Picking fallback channel: %d -> %d", channelCandidate.getId(), readyCandidate.getId()));
-        fallbacksSucceeded.incrementAndGet();
+    ChannelPicker.ChannelView picked =
+        forBind ? channelPicker.pickForBind(poolView) : channelPicker.pick(poolView);
+    ChannelRef channelRef =
+        picked instanceof ChannelRef ? (ChannelRef) picked : channelCandidate;
+    if (!fallbackEnabled) {
+      return channelRef;
+    }
+
+    // Never hand out a not ready or overloaded channel if there is a better one, whatever the
+    // picker returned.
+    ChannelRef fallbackFrom = null;
+    if (!isSelectable(channelRef)) {
+      if (readyCandidate == null) {
+        if (!forFallback) {
+          logger.finest(log("Failed to find fallback for channel %d", channelRef.getId()));
+          fallbacksFailed.incrementAndGet();
+        }
+        return channelRef;
+      }
+      fallbackFrom = channelRef;
+      channelRef = readyCandidate;
+    } else if (channelRef != channelCandidate && !isSelectable(channelCandidate)) {
+      fallbackFrom = channelCandidate;
+    }
+    if (fallbackFrom != null && !forFallback) {
+      logger.finest(log(
+          "Picking fallback channel: %d -> %d", fallbackFrom.getId(), channelRef.getId()));
+      fallbacksSucceeded.incrementAndGet();
+    }
+    return channelRef;
+  }
+
+  private static final class ChannelsSnapshot {
+    private final int generation;
+    private final List<ChannelRef> channels;
+
+    private ChannelsSnapshot(int generation, List<ChannelRef> channels) {
+      this.generation = generation;
+      this.channels = channels;
+    }
+  }
+
+  /** Read-only view of the pool for the {@link ChannelPicker}. */
+  private class PoolView implements ChannelPicker.PoolView {
+    private volatile ChannelsSnapshot snapshot = new ChannelsSnapshot(0, Collections.emptyList());
+
+    // Returns an immutable snapshot of the pool's channels, so that indexing into it is safe while
+    // channels are being removed. The snapshot is rebuilt only when the pool changes.
+    @Override
+    public List<ChannelRef> getChannels() {
+      ChannelsSnapshot current = snapshot;
+      int generation = channelsGeneration.get();
+      if (current.generation != generation || current.channels.size() != channelRefs.size()) {
+        current =
+            new ChannelsSnapshot(
+                generation,
+                Collections.unmodifiableList(Arrays.asList(channelRefs.toArray(new ChannelRef[0]))));
+        snapshot = current;
       }
-      return readyCandidate;
+      return current.channels;
     }
 
-    if (!forFallback) {
-      logger.finest(log("Failed to find fallback for channel %d", channelCandidate.getId()));
-      fallbacksFailed.incrementAndGet();
+    @Override
+    public ChannelRef getLeastBusyChannel() {
+      return leastBusyChannel();
+    }
+
+    @Override
+    public ChannelRef getLeastBusyReadyChannel() {
+      return leastBusyReadyChannel();
+    }
+
+    @Override
+    public int getMaxSize() {
+      return maxSize;
+    }
+
+    @Override
+    public int getStreamsLowWatermark() {
+      return maxConcurrentStreamsLowWatermark;
     }
-    return channelCandidate;
   }
 
   @Override
@@ -1213,18 +2238,70 @@ public class GcpManagedChannel extends ManagedChannel {
    * <p>If method-affinity is specified, we will use the GcpClientCall to fetch the affinitykey and
    * bind/unbind the channel, otherwise we just need the SimpleGcpClientCall to keep track of the
    * number of streams in each channel.
+   *
+   * <p>With admission control the call is wrapped into a QueuedGcpClientCall which creates the
+   * call when it is admitted. With a memory budget the call is wrapped into a
+   * BudgetedGcpClientCall which counts its message bytes.
    */
   @Override
   public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
       MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
-    AffinityConfig affinity = methodToAffinity.get(methodDescriptor.getFullMethodName());
+    if (admissionController != null) {
+      return new GcpClientCall.QueuedGcpClientCall<>(
+          admissionController,
+          () -> newBudgetedCall(methodDescriptor, callOptions),
+          callOptions.getDeadline(),
+          callbackExecutor(callOptions));
+    }
+    return newBudgetedCall(methodDescriptor, callOptions);
+  }
+
+  // Listener callbacks originating from the pool run on the call's executor, like the callbacks of
+  // the delegate calls.
+  private Executor callbackExecutor(CallOptions callOptions) {
+    Executor executor = callOptions.getExecutor();
+    return executor != null ? executor : stateNotificationExecutor;
+  }
+
+  private <ReqT, RespT> ClientCall<ReqT, RespT> newBudgetedCall(
+      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
+    if (memoryBudget == null) {
+      return newPoolCall(methodDescriptor, callOptions);
+    }
+    return new GcpClientCall.BudgetedGcpClientCall<>(
+        memoryBudget,
+        options -> newPoolCall(methodDescriptor, options),
+        callOptions,
+        callbackExecutor(callOptions));
+  }
+
+  private <ReqT, RespT> ClientCall<ReqT, RespT> newPoolCall(
+      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
+    AffinityConfig affinity = getMethodRoute(methodDescriptor).affinity;
     if (affinity == null) {
+      String key = callOptions.getOption(AFFINITY_KEY);
+      if ((key == null || key.isEmpty())
+          && hedgingController != null
+          && methodDescriptor.getType() == MethodDescriptor.MethodType.UNARY
+          && methodDescriptor.isIdempotent()) {
+        return new GcpClientCall.HedgingGcpClientCall<>(
+            this, hedgingController, this::getScheduler, methodDescriptor, callOptions);
+      }
       return new GcpClientCall.SimpleGcpClientCall<>(
-          getChannelRef(null), methodDescriptor, callOptions);
+          getChannelRefForUnboundKey(key), methodDescriptor, callOptions);
     }
     return new GcpClientCall<>(this, methodDescriptor, callOptions, affinity);
   }
 
+  // Routes a call of a method without an affinity config by its key without binding the key: to
+  // the channel bound with the key if any, otherwise to the channel of the key's hash.
+  private ChannelRef getChannelRefForUnboundKey(@Nullable String key) {
+    if (key == null || key.isEmpty() || getBoundChannel(key) != null) {
+      return getChannelRef(key);
+    }
+    return getChannelRefForHash(key);
+  }
+
   @Override
   public ManagedChannel shutdownNow() {
     logger.finer(log("Shutdown now started."));
@@ -1239,6 +2316,10 @@ public class GcpManagedChannel extends ManagedChannel {
     if (!stateNotificationExecutor.isTerminated()) {
       stateNotificationExecutor.shutdownNow();
     }
+    shutdownPendingChannel();
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
     return this;
   }
 
@@ -1252,9 +2333,23 @@ public class GcpManagedChannel extends ManagedChannel {
       logMetricService.shutdown();
     }
     stateNotificationExecutor.shutdown();
+    shutdownPendingChannel();
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
     return this;
   }
 
+  private void shutdownPendingChannel() {
+    ManagedChannel channel = pendingChannel;
+    if (channel != null) {
+      channel.shutdownNow();
+    }
+    for (ChannelRef channelRef : removedChannels) {
+      channelRef.getChannel().shutdownNow();
+    }
+  }
+
   @Override
   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
     long endTimeNanos = System.nanoTime() + unit.toNanos(timeout);
@@ -1278,6 +2373,11 @@ public class GcpManagedChannel extends ManagedChannel {
       //noinspection ResultOfMethodCallIgnored
       stateNotificationExecutor.awaitTermination(awaitTimeNanos, NANOSECONDS);
     }
+    awaitTimeNanos = endTimeNanos - System.nanoTime();
+    if (scheduler != null && awaitTimeNanos > 0) {
+      //noinspection ResultOfMethodCallIgnored
+      scheduler.awaitTermination(awaitTimeNanos, NANOSECONDS);
+    }
     return isTerminated();
   }
 
@@ -1288,6 +2388,9 @@ public class GcpManagedChannel extends ManagedChannel {
         return false;
       }
     }
+    if (scheduler != null && !scheduler.isShutdown()) {
+      return false;
+    }
     if (logMetricService != null) {
       return logMetricService.isShutdown();
     }
@@ -1301,12 +2404,98 @@ public class GcpManagedChannel extends ManagedChannel {
         return false;
       }
     }
+    if (scheduler != null && !scheduler.isTerminated()) {
+      return false;
+    }
     if (logMetricService != null) {
       return logMetricService.isTerminated();
     }
     return stateNotificationExecutor.isTerminated();
   }
 
+  /** Moves every channel of the pool to idle. The channels reconnect on the next call. */
+  @Override
+  public void enterIdle() {
+    logger.finer(log("Entering idle."));
+    for (ChannelRef channelRef : channelRefs) {
+      channelRef.getChannel().enterIdle();
+    }
+  }
+
+  /**
+   * Creates channels in the pool up to the given number, requests all of them to connect in
+   * parallel and returns a future which completes when the given number of channels in the pool
+   * are READY. The future fails with a {@link TimeoutException} if that does not happen within the
+   * timeout.
+   *
+   * <p>Use it to establish connections (including TLS/ALTS handshakes) before serving traffic.
+   *
+   * @param channels the number of channels to make READY, up to the maximum pool size.
+   * @param timeout the time to wait for the channels to become READY.
+   */
+  public CompletableFuture<Void> warmUp(int channels, Duration timeout) {
+    Preconditions.checkArgument(
+        channels > 0 && channels <= maxSize,
+        "Number of channels to warm up must be between 1 and the maximum pool size.");
+    Preconditions.checkArgument(!timeout.isNegative(), "Timeout must not be negative.");
+    WarmUp warmUp = new WarmUp(channels);
+    pendingWarmUps.add(warmUp);
+    try {
+      warmUp.timeoutFuture = getScheduler().schedule(() -> {
+        if (pendingWarmUps.remove(warmUp)) {
+          warmUp.future.completeExceptionally(new TimeoutException(String.format(
+              "%d of %d channels are READY after %s", readyChannels.get(), channels, timeout)));
+        }
+      }, timeout.toNanos(), NANOSECONDS);
+      for (ChannelRef channelRef : channelRefs) {
+        channelRef.getChannel().getState(true);
+      }
+      // Build and connect the missing channels in parallel.
+      for (int i = channelRefs.size(); i < channels; i++) {
+        stateNotificationExecutor.execute(() -> {
+          ManagedChannel channel = delegateChannelBuilder.build();
+          synchronized (this) {
+            if (channelRefs.size() < channels) {
+              addChannel(channel).getChannel().getState(true);
+              return;
+            }
+          }
+          channel.shutdownNow();
+        });
+      }
+    } catch (RejectedExecutionException e) {
+      pendingWarmUps.remove(warmUp);
+      warmUp.future.completeExceptionally(e);
+      return warmUp.future;
+    }
+    logger.finer(log("Warming up %d channel(s).", channels));
+    completeWarmUps();
+    return warmUp.future;
+  }
+
+  private void completeWarmUps() {
+    int ready = readyChannels.get();
+    for (WarmUp warmUp : pendingWarmUps) {
+      if (ready >= warmUp.channels && pendingWarmUps.remove(warmUp)) {
+        if (warmUp.timeoutFuture != null) {
+          warmUp.timeoutFuture.cancel(false);
+        }
+        logger.finer(log("Warm up of %d channel(s) completed.", warmUp.channels));
+        warmUp.future.complete(null);
+      }
+    }
+  }
+
+  private static final class WarmUp {
+    private final int channels;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private volatile ScheduledFuture<?> timeoutFuture;
+
+    private WarmUp(int channels) {
+      this.channels = channels;
+    }
+  }
+
   /** Get the current connectivity state of the channel pool. */
   @Override
   public ConnectivityState getState(boolean requestConnection) {
@@ -1371,11 +2560,208 @@ public class GcpManagedChannel extends ManagedChannel {
         String.join(", ", affinityKeys)
     ));
     for (String affinityKey : affinityKeys) {
-      while (affinityKeyToChannelRef.putIfAbsent(affinityKey, channelRef) != null) {
+      while (!bindIfAbsent(affinityKey, channelRef)) {
         unbind(Collections.singletonList(affinityKey));
       }
       channelRef.affinityCountIncr();
     }
+    if (affinityKeyExpiry != null && affinityKeyExpiry.isOverLimit(getAffinityKeysCount())) {
+      scheduleAffinityKeysSweep();
+    }
+    if (channelRef.removed) {
+      // The channel was removed from the pool meanwhile, the keys will be bound to another channel
+      // by the next calls.
+      unbind(affinityKeys);
+    }
+  }
+
+  /**
+   * Binds the affinity keys from the response of a BIND call made on the channel. If spreading on
+   * batch bind is enabled and there are multiple keys, every key is bound to the channel with the
+   * fewest bound keys among the call's channel and the connected channels of the pool, counting
+   * the keys assigned so far and preferring the call's channel on ties. Otherwise all keys are
+   * bound to the call's channel.
+   */
+  protected void bindResponseKeys(ChannelRef channelRef, List<String> affinityKeys) {
+    if (!spreadOnBatchBind || affinityKeys == null || affinityKeys.size() < 2) {
+      bind(channelRef, affinityKeys);
+      return;
+    }
+    List<ChannelRef> channels = new ArrayList<>();
+    channels.add(channelRef);
+    for (ChannelRef candidate : channelRefs) {
+      if (candidate != channelRef && candidate.isConnected()) {
+        channels.add(candidate);
+      }
+    }
+    int[] counts = new int[channels.size()];
+    List<List<String>> keysPerChannel = new ArrayList<>(channels.size());
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = channels.get(i).getAffinityCount();
+      keysPerChannel.add(new ArrayList<>());
+    }
+    for (String key : affinityKeys) {
+      int least = 0;
+      for (int i = 1; i < counts.length; i++) {
+        if (counts[i] < counts[least]) {
+          least = i;
+        }
+      }
+      counts[least]++;
+      keysPerChannel.get(least).add(key);
+    }
+    for (int i = 0; i < counts.length; i++) {
+      if (!keysPerChannel.get(i).isEmpty()) {
+        bind(channels.get(i), keysPerChannel.get(i));
+      }
+    }
+  }
+
+  @Nullable
+  private ChannelRef getBoundChannel(String key) {
+    if (compactAffinityStore == null) {
+      ChannelRef channelRef = affinityKeyToChannelRef.get(key);
+      if (channelRef != null && affinityKeyLastUses != null) {
+        touchAffinityKey(key);
+      }
+      return channelRef;
+    }
+    int channelId = compactAffinityStore.get(key);
+    return channelId < 0 ? null : getChannelRefById(channelId);
+  }
+
+  // Returns false if the key is bound already.
+  private boolean bindIfAbsent(String key, ChannelRef channelRef) {
+    if (compactAffinityStore == null) {
+      if (affinityKeyToChannelRef.putIfAbsent(key, channelRef) != null) {
+        return false;
+      }
+      if (affinityKeyLastUses != null) {
+        touchAffinityKey(key);
+      }
+      return true;
+    }
+    return compactAffinityStore.putIfAbsent(key, channelRef.getId()) < 0;
+  }
+
+  @Nullable
+  private ChannelRef removeBinding(String key) {
+    if (compactAffinityStore == null) {
+      ChannelRef channelRef = affinityKeyToChannelRef.remove(key);
+      if (affinityKeyLastUses != null) {
+        affinityKeyLastUses.remove(key);
+      }
+      return channelRef;
+    }
+    int channelId = compactAffinityStore.remove(key);
+    return channelId < 0 ? null : getBoundChannelRefById(channelId);
+  }
+
+  // Returns the channel with the id even if it was removed from the pool. Channels are removed
+  // from the pool only when no keys are bound to them, but keys may be bound meanwhile.
+  @Nullable
+  private ChannelRef getBoundChannelRefById(int channelId) {
+    ChannelRef channelRef = getChannelRefById(channelId);
+    if (channelRef == null) {
+      for (ChannelRef removed : removedChannels) {
+        if (removed.getId() == channelId) {
+          return removed;
+        }
+      }
+    }
+    return channelRef;
+  }
+
+  // Records the use of a key in affinityKeyToChannelRef. Writes only if the tick has changed.
+  private void touchAffinityKey(String key) {
+    int tick = affinityKeyExpiry.getTick();
+    AtomicInteger lastUse = affinityKeyLastUses.get(key);
+    if (lastUse == null) {
+      affinityKeyLastUses.putIfAbsent(key, new AtomicInteger(tick));
+    } else if (lastUse.get() != tick) {
+      lastUse.lazySet(tick);
+    }
+  }
+
+  /** Advances the affinity keys clock and unbinds the expired keys. */
+  @VisibleForTesting
+  void tickAffinityKeys() {
+    affinityKeyExpiry.advance();
+    sweepAffinityKeys();
+  }
+
+  private void scheduleAffinityKeysSweep() {
+    if (!affinityKeysSweepPending.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      getScheduler()
+          .execute(
+              () -> {
+                affinityKeysSweepPending.set(false);
+                sweepAffinityKeys();
+              });
+    } catch (RejectedExecutionException e) {
+      // Ignore exceptions on shutdown.
+      logger.fine(log("Affinity keys sweep rejected: %s", e.getMessage()));
+    }
+  }
+
+  // Runs on the scheduler only, so sweeps never run concurrently.
+  private void sweepAffinityKeys() {
+    AffinityKeyExpiry.Sweep sweep;
+    if (compactAffinityStore != null) {
+      sweep =
+          affinityKeyExpiry.startSweep(
+              compactAffinityStore.size(), compactAffinityStore::forEachLastUse);
+      if (sweep != null) {
+        compactAffinityStore.removeIf(
+            sweep::shouldUnbind,
+            channelId -> {
+              ChannelRef channelRef = getBoundChannelRefById(channelId);
+              if (channelRef != null) {
+                channelRef.affinityCountDecr();
+              }
+            });
+      }
+      return;
+    }
+    sweep =
+        affinityKeyExpiry.startSweep(
+            affinityKeyToChannelRef.size(),
+            consumer -> {
+              for (AtomicInteger lastUse : affinityKeyLastUses.values()) {
+                consumer.accept(lastUse.get());
+              }
+            });
+    if (sweep == null) {
+      return;
+    }
+    int tick = affinityKeyExpiry.getTick();
+    for (Map.Entry<String, ChannelRef> entry : affinityKeyToChannelRef.entrySet()) {
+      String key = entry.getKey();
+      // A key bound concurrently with its unbinding may have lost its last use.
+      AtomicInteger lastUse =
+          affinityKeyLastUses.computeIfAbsent(key, k -> new AtomicInteger(tick));
+      ChannelRef channelRef = entry.getValue();
+      if (sweep.shouldUnbind(lastUse.get()) && affinityKeyToChannelRef.remove(key, channelRef)) {
+        affinityKeyLastUses.remove(key, lastUse);
+        channelRef.affinityCountDecr();
+        logger.finest(log("Unbinding unused key %s from channel %d.", key, channelRef.getId()));
+      }
+    }
+    if (affinityKeyLastUses.size() > affinityKeyToChannelRef.size()) {
+      // Drop the last uses of keys unbound concurrently with their binding.
+      affinityKeyLastUses.keySet().removeIf(key -> !affinityKeyToChannelRef.containsKey(key));
+    }
+  }
+
+  /** Returns the number of bound affinity keys. */
+  @VisibleForTesting
+  int getAffinityKeysCount() {
+    return compactAffinityStore == null
+        ? affinityKeyToChannelRef.size()
+        : compactAffinityStore.size();
   }
 
   /** Unbind channel with affinity key. */
@@ -1384,7 +2770,7 @@ public class GcpManagedChannel extends ManagedChannel {
       return;
     }
     for (String affinityKey : affinityKeys) {
-      ChannelRef channelRef = affinityKeyToChannelRef.remove(affinityKey);
+      ChannelRef channelRef = removeBinding(affinityKey);
       if (channelRef != null) {
         channelRef.affinityCountDecr();
         logger.finest(log("Unbinding key %s from channel %d.", affinityKey, channelRef.getId()));
@@ -1403,8 +2789,11 @@ public class GcpManagedChannel extends ManagedChannel {
     if (apiConfig.getChannelPool().getMaxSize() > 0) {
       maxSize = apiConfig.getChannelPool().getMaxSize();
     }
+    if (apiConfig.getChannelPool().getIdleTimeout() > 0) {
+      channelIdleTimeoutNanos = SECONDS.toNanos(apiConfig.getChannelPool().getIdleTimeout());
+    }
     final int lowWatermark = apiConfig.getChannelPool().getMaxConcurrentStreamsLowWatermark();
-    if (lowWatermark >= 0 && lowWatermark <= DEFAULT_MAX_STREAM) {
+    if (lowWatermark >= 0) {
       this.maxConcurrentStreamsLowWatermark = lowWatermark;
     }
     // Get method parameters.
@@ -1412,12 +2801,115 @@ public class GcpManagedChannel extends ManagedChannel {
       if (method.getAffinity().equals(AffinityConfig.getDefaultInstance())) {
         continue;
       }
+      checkAffinityHeader(method);
       for (String methodName : method.getNameList()) {
-        methodToAffinity.put(methodName, method.getAffinity());
+        methodRules.add(new MethodRule(methodName, method.getAffinity()));
+        if (!MethodRule.isPattern(methodName)) {
+          methodToAffinity.putIfAbsent(methodName, method.getAffinity());
+        }
       }
     }
   }
 
+  // Fails when the pool is built instead of on every call if the affinity header cannot be read.
+  private static void checkAffinityHeader(MethodConfig method) {
+    String header = method.getAffinity().getAffinityHeader();
+    if (header.isEmpty()) {
+      return;
+    }
+    try {
+      Metadata.Key.of(header, Metadata.ASCII_STRING_MARSHALLER);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid affinity_header \"%s\" of the method config for %s: %s",
+              header, method.getNameList(), e.getMessage()),
+          e);
+    }
+  }
+
+  /**
+   * A method name or pattern of a method config. Besides full method names such as
+   * "google.spanner.v1.Spanner/ExecuteSql" a rule may be a pattern ending with ".*" or "/*", e.g.
+   * "google.spanner.v1.*" matches all methods of all services of the package and
+   * "google.spanner.v1.Spanner/*" all methods of the service. "*" matches all methods.
+   */
+  private static final class MethodRule {
+    private final String name;
+    private final AffinityConfig affinity;
+
+    private MethodRule(String name, AffinityConfig affinity) {
+      this.name = name;
+      this.affinity = affinity;
+    }
+
+    private static boolean isPattern(String name) {
+      return name.endsWith("*");
+    }
+
+    private boolean matches(String fullMethodName) {
+      if (!isPattern(name)) {
+        return name.equals(fullMethodName);
+      }
+      // The prefix keeps the trailing '.' or '/', so that "foo.bar.*" does not match "foo.barbaz".
+      return fullMethodName.startsWith(name.substring(0, name.length() - 1));
+    }
+  }
+
+  /** The routing decision for a method, resolved once per method descriptor. */
+  private static final class MethodRoute {
+    private static final MethodRoute NO_AFFINITY = new MethodRoute(null);
+
+    @Nullable private final AffinityConfig affinity;
+    @Nullable private final AffinityKeyExtractor keyExtractor;
+    // Set for BOUND and UNBIND methods with an affinity header.
+    @Nullable private final AffinityKeyExtractor.HeaderKeyExtractor headerKeyExtractor;
+
+    private MethodRoute(@Nullable AffinityConfig affinity) {
+      this.affinity = affinity;
+      this.keyExtractor =
+          affinity == null ? null : new AffinityKeyExtractor(affinity.getAffinityKey());
+      this.headerKeyExtractor =
+          affinity == null
+                  || affinity.getAffinityHeader().isEmpty()
+                  || affinity.getCommand() == AffinityConfig.Command.BIND
+              ? null
+              : new AffinityKeyExtractor.HeaderKeyExtractor(
+                  affinity.getAffinityHeader(), affinity.getAffinityHeaderParam());
+    }
+  }
+
+  // Caching is bounded in case method descriptors are created per call.
+  private static final int MAX_METHOD_ROUTES = 10_000;
+
+  private MethodRoute getMethodRoute(MethodDescriptor<?, ?> methodDescriptor) {
+    MethodRoute route = methodRoutes.get(methodDescriptor);
+    if (route != null) {
+      return route;
+    }
+    route = resolveMethodRoute(methodDescriptor.getFullMethodName());
+    if (methodRoutes.size() < MAX_METHOD_ROUTES) {
+      methodRoutes.putIfAbsent(methodDescriptor, route);
+    }
+    return route;
+  }
+
+  private MethodRoute resolveMethodRoute(String fullMethodName) {
+    for (MethodRule rule : methodRules) {
+      if (rule.matches(fullMethodName)) {
+        return new MethodRoute(rule.affinity);
+      }
+    }
+    return MethodRoute.NO_AFFINITY;
+  }
+
+  /** Returns the affinity config of the method or null if the method has no affinity config. */
+  @Nullable
+  @VisibleForTesting
+  AffinityConfig getAffinityConfig(MethodDescriptor<?, ?> methodDescriptor) {
+    return getMethodRoute(methodDescriptor).affinity;
+  }
+
   /**
    * Get the affinity key from the request message.
    *
@@ -1433,38 +2925,21 @@ public class GcpManagedChannel extends ManagedChannel {
    */
   @VisibleForTesting
   static List<String> getKeysFromMessage(MessageOrBuilder msg, String name) {
-    // The field names in a nested message name are splitted by '.'.
-    int currentLength = name.indexOf('.');
-    String currentName = name;
-    if (currentLength != -1) {
-      currentName = name.substring(0, currentLength);
-    }
-
-    List<String> keys = new ArrayList<>();
-    Map<FieldDescriptor, Object> obs = msg.getAllFields();
-    for (Map.Entry<FieldDescriptor, Object> entry : obs.entrySet()) {
-      if (entry.getKey().getName().equals(currentName)) {
-        if (currentLength == -1 && entry.getValue() instanceof String) {
-          // Value of the current field.
-          keys.add(entry.getValue().toString());
-        } else if (currentLength != -1 && entry.getValue() instanceof MessageOrBuilder) {
-          // One nested MessageOrBuilder.
-          keys.addAll(
-              getKeysFromMessage(
-                  (MessageOrBuilder) entry.getValue(), name.substring(currentLength + 1)));
-        } else if (currentLength != -1 && entry.getValue() instanceof List) {
-          // Repeated nested MessageOrBuilder.
-          List<?> list = (List<?>) entry.getValue();
-          if (!list.isEmpty() && list.get(0) instanceof MessageOrBuilder) {
-            for (Object item : list) {
-              keys.addAll(
-                  getKeysFromMessage((MessageOrBuilder) item, name.substring(currentLength + 1)));
-            }
-          }
-        }
-      }
-    }
-    return keys;
+    return new AffinityKeyExtractor(name).extract(msg);
+  }
+
+  /**
+   * Fetch the affinity key of a BOUND or UNBIND method from the request headers, if the affinity
+   * config of the method names an affinity header.
+   *
+   * @return the affinity key or null if the method has no affinity header or the headers do not
+   *     have the key.
+   */
+  @Nullable
+  protected String checkHeaderKey(Metadata headers, MethodDescriptor<?, ?> methodDescriptor) {
+    AffinityKeyExtractor.HeaderKeyExtractor extractor =
+        getMethodRoute(methodDescriptor).headerKeyExtractor;
+    return extractor == null ? null : extractor.extract(headers);
   }
 
   /**
@@ -1480,29 +2955,85 @@ public class GcpManagedChannel extends ManagedChannel {
       return null;
     }
 
-    AffinityConfig affinity = methodToAffinity.get(methodDescriptor.getFullMethodName());
+    MethodRoute route = getMethodRoute(methodDescriptor);
+    AffinityConfig affinity = route.affinity;
     if (affinity != null) {
       AffinityConfig.Command cmd = affinity.getCommand();
-      String keyName = affinity.getAffinityKey();
-      List<String> keys = getKeysFromMessage((MessageOrBuilder) message, keyName);
-      if (isReq && (cmd == AffinityConfig.Command.UNBIND || cmd == AffinityConfig.Command.BOUND)) {
+      AffinityKeyExtractor extractor = route.keyExtractor;
+      if (isReq
+          && (cmd == AffinityConfig.Command.UNBIND
+              || cmd == AffinityConfig.Command.BOUND
+              || cmd == AffinityConfig.Command.HASH)) {
+        List<String> keys = extractor.extract((MessageOrBuilder) message);
         if (keys.size() > 1) {
           throw new IllegalStateException("Duplicate affinity key in the request message");
         }
         return keys;
       }
       if (!isReq && cmd == AffinityConfig.Command.BIND) {
-        return keys;
+        return extractor.extract((MessageOrBuilder) message);
       }
     }
     return null;
   }
 
+  /**
+   * The channels of the pool. Adding a channel publishes it to the load index and indexes it by
+   * its id.
+   */
+  private class ChannelRefList extends CopyOnWriteArrayList<ChannelRef> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public boolean add(ChannelRef channelRef) {
+      super.add(channelRef);
+      added(channelRef);
+      return true;
+    }
+
+    @Override
+    public void add(int index, ChannelRef channelRef) {
+      super.add(index, channelRef);
+      added(channelRef);
+    }
+
+    @Override
+    public boolean remove(Object channelRef) {
+      if (!super.remove(channelRef)) {
+        return false;
+      }
+      removed((ChannelRef) channelRef);
+      return true;
+    }
+
+    @Override
+    public ChannelRef remove(int index) {
+      ChannelRef channelRef = super.remove(index);
+      removed(channelRef);
+      return channelRef;
+    }
+
+    @Override
+    public void clear() {
+      super.clear();
+      channelRefsById.clear();
+    }
+
+    private void added(ChannelRef channelRef) {
+      channelRefsById.put(channelRef.getId(), channelRef);
+      channelRef.loadSlot.publish();
+    }
+
+    private void removed(ChannelRef channelRef) {
+      channelRefsById.remove(channelRef.getId(), channelRef);
+    }
+  }
+
   /**
    * A wrapper of real grpc channel, it provides helper functions to calculate affinity counts and
    * active streams count.
    */
-  protected class ChannelRef {
+  protected class ChannelRef implements ChannelPicker.ChannelView {
 
     private final ManagedChannel delegate;
     private final int channelId;
@@ -1514,6 +3045,17 @@ public class GcpManagedChannel extends ManagedChannel {
     private final AtomicInteger deadlineExceededCount = new AtomicInteger();
     private final AtomicLong okCalls = new AtomicLong();
     private final AtomicLong errCalls = new AtomicLong();
+    private final ChannelLoadIndex.Slot loadSlot;
+    // When the channel last had no active streams and no bound keys.
+    private volatile long idleSinceNanos = System.nanoTime();
+    // Learns the concurrent streams limit of the channel's connection, if enabled.
+    @Nullable
+    final StreamLimitTracker streamLimit = serverStreamLimit ? new StreamLimitTracker() : null;
+    // Whether the channel was removed from the pool.
+    private volatile boolean removed = false;
+    // Whether the connectivity state of the channel is READY or IDLE, tracked with or without
+    // fallback.
+    private volatile boolean connected = true;
 
     protected ChannelRef(ManagedChannel channel, int channelId) {
       this(channel, channelId, 0, 0);
@@ -1525,14 +3067,18 @@ public class GcpManagedChannel extends ManagedChannel {
       this.channelId = channelId;
       this.affinityCount = new AtomicInteger(affinityCount);
       this.activeStreamsCount = new AtomicInteger(activeStreamsCount);
-      new ChannelStateMonitor(channel, channelId);
+      // Published to the load index when added to the pool, after the construction.
+      this.loadSlot = loadIndex.newSlot(this, !fallbackMap.containsKey(channelId));
+      nextChannelId.accumulateAndGet(channelId + 1, Math::max);
+      new ChannelStateMonitor(this);
     }
 
     protected ManagedChannel getChannel() {
       return delegate;
     }
 
-    protected int getId() {
+    @Override
+    public int getId() {
       return channelId;
     }
 
@@ -1544,12 +3090,16 @@ public class GcpManagedChannel extends ManagedChannel {
 
     protected void affinityCountDecr() {
       int count = affinityCount.decrementAndGet();
+      if (count == 0) {
+        idleSinceNanos = System.nanoTime();
+      }
       minAffinity.getAndUpdate(currentMin -> Math.min(currentMin, count));
       totalAffinityCount.decrementAndGet();
     }
 
     protected void activeStreamsCountIncr() {
       int actStreams = activeStreamsCount.incrementAndGet();
+      loadSlot.updateLoad();
       if (maxActiveStreams < actStreams) {
         maxActiveStreams = actStreams;
       }
@@ -1561,6 +3111,10 @@ public class GcpManagedChannel extends ManagedChannel {
 
     protected void activeStreamsCountDecr(long startNanos, Status status, boolean fromClientSide) {
       int actStreams = activeStreamsCount.decrementAndGet();
+      if (actStreams == 0) {
+        idleSinceNanos = System.nanoTime();
+      }
+      loadSlot.updateLoad();
       if (minActiveStreams > actStreams) {
         minActiveStreams = actStreams;
       }
@@ -1568,6 +3122,9 @@ public class GcpManagedChannel extends ManagedChannel {
       if (minTotalActiveStreams > totalActStreams) {
         minTotalActiveStreams = totalActStreams;
       }
+      if (startNanos != 0 && !fromClientSide) {
+        channelPicker.onCallCompleted(this, status, System.nanoTime() - startNanos);
+      }
       if (status.isOk()) {
         okCalls.incrementAndGet();
         totalOkCalls.incrementAndGet();
@@ -1585,14 +3142,44 @@ public class GcpManagedChannel extends ManagedChannel {
       deadlineExceededCount.set(0);
     }
 
-    protected int getAffinityCount() {
+    @Override
+    public int getAffinityCount() {
       return affinityCount.get();
     }
 
-    protected int getActiveStreamsCount() {
+    @Override
+    public int getActiveStreamsCount() {
       return activeStreamsCount.get();
     }
 
+    @Override
+    public boolean isReady() {
+      return !removed && !fallbackMap.containsKey(channelId);
+    }
+
+    // Whether the channel is in the pool and connected, regardless of fallback being enabled.
+    boolean isConnected() {
+      return !removed && connected;
+    }
+
+    // Whether the channel has had no active streams and no bound keys for the given time.
+    private boolean isIdle(long nowNanos, long idleNanos) {
+      return activeStreamsCount.get() == 0
+          && affinityCount.get() == 0
+          && nowNanos - idleSinceNanos >= idleNanos;
+    }
+
+    @Override
+    public int getMaxConcurrentStreams() {
+      int limit = streamLimit != null ? streamLimit.getLimit() : 0;
+      return limit > 0 ? limit : Math.max(DEFAULT_MAX_STREAM, maxConcurrentStreamsLowWatermark);
+    }
+
+    // Adds the stream tracer learning the concurrent streams limit, if enabled.
+    protected CallOptions withStreamTracer(CallOptions callOptions) {
+      return streamLimit != null ? callOptions.withStreamTracerFactory(streamLimit) : callOptions;
+    }
+
     protected long getAndResetOkCalls() {
       return okCalls.getAndSet(0);
     }
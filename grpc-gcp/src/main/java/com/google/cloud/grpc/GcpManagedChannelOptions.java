@@ -21,6 +21,7 @@ import io.opencensus.metrics.LabelKey;
 import io.opencensus.metrics.LabelValue;
 import io.opencensus.metrics.MetricRegistry;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -172,12 +173,54 @@ public class GcpManagedChannelOptions {
     private final int concurrentStreamsLowWatermark;
     // Use round-robin channel selection for affinity binding calls.
     private final boolean useRoundRobinOnBind;
+    // Bind new affinity keys to the channel with the fewest bound keys.
+    private final boolean useLeastAffinityOnBind;
+    // Spread the affinity keys of a BIND response with multiple keys across the pool.
+    private final boolean useSpreadOnBatchBind;
+    // Create new channels in the background and add them to the pool when they are ready.
+    private final boolean useAsyncChannelCreation;
+    // Learn the concurrent streams limit of each channel's connection.
+    private final boolean useServerStreamLimit;
+    // Keep affinity keys as 64-bit hashes in a compact table.
+    private final boolean useCompactAffinityStore;
+    // Remove channels without active streams and bound keys after this time.
+    @Nullable private final Duration channelIdleTimeout;
+    // Move channels to idle after no calls in the pool for this time.
+    @Nullable private final Duration poolIdleTimeout;
+    // Unbind affinity keys not used for this time.
+    @Nullable private final Duration affinityKeyTimeout;
+    // Evict the least recently used affinity keys above this number of keys. 0 means no limit.
+    private final int maxAffinityKeys;
+    // Spread the calls of an affinity key with this many active streams. 0 means disabled.
+    private final int hotKeyMinActiveStreams;
+    // The number of channels the calls of a hot affinity key are spread over.
+    private final int hotKeyMaxChannels;
+    // Re-evaluate the predicted load and adjust the min size and low watermark with this interval.
+    @Nullable private final Duration autoscaleInterval;
+    // The strategy of picking a channel for a call which is not bound to a channel.
+    private final ChannelPickStrategy channelPickStrategy;
+    // Custom channel picker overriding the channel pick strategy.
+    @Nullable private final ChannelPicker channelPicker;
 
     public GcpChannelPoolOptions(Builder builder) {
       maxSize = builder.maxSize;
       minSize = builder.minSize;
       concurrentStreamsLowWatermark = builder.concurrentStreamsLowWatermark;
       useRoundRobinOnBind = builder.useRoundRobinOnBind;
+      useLeastAffinityOnBind = builder.useLeastAffinityOnBind;
+      useSpreadOnBatchBind = builder.useSpreadOnBatchBind;
+      useAsyncChannelCreation = builder.useAsyncChannelCreation;
+      useServerStreamLimit = builder.useServerStreamLimit;
+      useCompactAffinityStore = builder.useCompactAffinityStore;
+      channelIdleTimeout = builder.channelIdleTimeout;
+      poolIdleTimeout = builder.poolIdleTimeout;
+      affinityKeyTimeout = builder.affinityKeyTimeout;
+      maxAffinityKeys = builder.maxAffinityKeys;
+      hotKeyMinActiveStreams = builder.hotKeyMinActiveStreams;
+      hotKeyMaxChannels = builder.hotKeyMaxChannels;
+      autoscaleInterval = builder.autoscaleInterval;
+      channelPickStrategy = builder.channelPickStrategy;
+      channelPicker = builder.channelPicker;
     }
 
     public int getMaxSize() {
@@ -206,22 +249,148 @@ public class GcpManagedChannelOptions {
       return useRoundRobinOnBind;
     }
 
+    public boolean isUseLeastAffinityOnBind() {
+      return useLeastAffinityOnBind;
+    }
+
+    public boolean isUseSpreadOnBatchBind() {
+      return useSpreadOnBatchBind;
+    }
+
+    public boolean isUseAsyncChannelCreation() {
+      return useAsyncChannelCreation;
+    }
+
+    public boolean isUseServerStreamLimit() {
+      return useServerStreamLimit;
+    }
+
+    public boolean isUseCompactAffinityStore() {
+      return useCompactAffinityStore;
+    }
+
+    @Nullable
+    public Duration getChannelIdleTimeout() {
+      return channelIdleTimeout;
+    }
+
+    @Nullable
+    public Duration getPoolIdleTimeout() {
+      return poolIdleTimeout;
+    }
+
+    @Nullable
+    public Duration getAffinityKeyTimeout() {
+      return affinityKeyTimeout;
+    }
+
+    public int getMaxAffinityKeys() {
+      return maxAffinityKeys;
+    }
+
+    public int getHotKeyMinActiveStreams() {
+      return hotKeyMinActiveStreams;
+    }
+
+    public int getHotKeyMaxChannels() {
+      return hotKeyMaxChannels;
+    }
+
+    @Nullable
+    public Duration getAutoscaleInterval() {
+      return autoscaleInterval;
+    }
+
+    public ChannelPickStrategy getChannelPickStrategy() {
+      return channelPickStrategy;
+    }
+
+    @Nullable
+    public ChannelPicker getChannelPicker() {
+      return channelPicker;
+    }
+
     @Override
     public String toString() {
       return String.format(
-          "{maxSize: %d, minSize: %d, concurrentStreamsLowWatermark: %d, useRoundRobinOnBind: %s}",
+          "{maxSize: %d, minSize: %d, concurrentStreamsLowWatermark: %d, useRoundRobinOnBind: %s, "
+              + "useLeastAffinityOnBind: %s, useSpreadOnBatchBind: %s, "
+              + "useAsyncChannelCreation: %s, "
+              + "useServerStreamLimit: %s, useCompactAffinityStore: %s, channelIdleTimeout: %s, "
+              + "poolIdleTimeout: %s, affinityKeyTimeout: %s, maxAffinityKeys: %d, "
+              + "hotKeyMinActiveStreams: %d, hotKeyMaxChannels: %d, "
+              + "autoscaleInterval: %s, channelPickStrategy: %s, channelPicker: %s}",
           getMaxSize(),
           getMinSize(),
           getConcurrentStreamsLowWatermark(),
-          isUseRoundRobinOnBind()
+          isUseRoundRobinOnBind(),
+          isUseLeastAffinityOnBind(),
+          isUseSpreadOnBatchBind(),
+          isUseAsyncChannelCreation(),
+          isUseServerStreamLimit(),
+          isUseCompactAffinityStore(),
+          getChannelIdleTimeout(),
+          getPoolIdleTimeout(),
+          getAffinityKeyTimeout(),
+          getMaxAffinityKeys(),
+          getHotKeyMinActiveStreams(),
+          getHotKeyMaxChannels(),
+          getAutoscaleInterval(),
+          getChannelPickStrategy(),
+          getChannelPicker()
       );
     }
 
+    /** Strategies of picking a channel for a call which is not bound to a channel. */
+    public enum ChannelPickStrategy {
+      /**
+       * Pick the channel with the fewest active streams in the pool. This gives the best balance
+       * but under high concurrency all threads converge on the same channel.
+       */
+      LEAST_BUSY,
+      /**
+       * Pick the less busy of two randomly chosen channels. This gives near-optimal balance at a
+       * constant cost and spreads concurrent picks across the pool.
+       */
+      POWER_OF_TWO_CHOICES,
+      /**
+       * Like {@link #POWER_OF_TWO_CHOICES} but compares channels by a peak-sensitive moving
+       * average of call latency multiplied by the number of active streams. Traffic steers away
+       * from a channel as soon as its calls get slower, e.g. because of a slow server or a
+       * degraded connection, while a channel that stopped being slow is gradually tried again.
+       * Latency is measured from the start of a call to its completion, so this strategy suits
+       * unary calls and short streams best.
+       */
+      PEAK_EWMA,
+      /**
+       * Keep picking the same channel on the same thread while the channel is ready and not
+       * significantly busier than the least busy channel, otherwise move the thread to the least
+       * busy channel. Concurrent calls from different threads then mostly touch different channels,
+       * which reduces contention on per-channel counters and lets each connection batch writes of
+       * its calls. Note that with virtual threads the preference is kept per virtual thread.
+       */
+      THREAD_AFFINE,
+    }
+
     public static class Builder {
       private int maxSize = GcpManagedChannel.DEFAULT_MAX_CHANNEL;
       private int minSize = 0;
       private int concurrentStreamsLowWatermark = GcpManagedChannel.DEFAULT_MAX_STREAM;
       private boolean useRoundRobinOnBind = false;
+      private boolean useLeastAffinityOnBind = false;
+      private boolean useSpreadOnBatchBind = false;
+      private boolean useAsyncChannelCreation = false;
+      private boolean useServerStreamLimit = false;
+      private boolean useCompactAffinityStore = false;
+      private Duration channelIdleTimeout = null;
+      private Duration poolIdleTimeout = null;
+      private Duration affinityKeyTimeout = null;
+      private int maxAffinityKeys = 0;
+      private int hotKeyMinActiveStreams = 0;
+      private int hotKeyMaxChannels = 0;
+      private Duration autoscaleInterval = null;
+      private ChannelPickStrategy channelPickStrategy = ChannelPickStrategy.LEAST_BUSY;
+      private ChannelPicker channelPicker = null;
 
       public Builder() {}
 
@@ -234,9 +403,25 @@ public class GcpManagedChannelOptions {
         this.minSize = options.getMinSize();
         this.concurrentStreamsLowWatermark = options.getConcurrentStreamsLowWatermark();
         this.useRoundRobinOnBind = options.isUseRoundRobinOnBind();
+        this.useLeastAffinityOnBind = options.isUseLeastAffinityOnBind();
+        this.useSpreadOnBatchBind = options.isUseSpreadOnBatchBind();
+        this.useAsyncChannelCreation = options.isUseAsyncChannelCreation();
+        this.useServerStreamLimit = options.isUseServerStreamLimit();
+        this.useCompactAffinityStore = options.isUseCompactAffinityStore();
+        this.channelIdleTimeout = options.getChannelIdleTimeout();
+        this.poolIdleTimeout = options.getPoolIdleTimeout();
+        this.affinityKeyTimeout = options.getAffinityKeyTimeout();
+        this.maxAffinityKeys = options.getMaxAffinityKeys();
+        this.hotKeyMinActiveStreams = options.getHotKeyMinActiveStreams();
+        this.hotKeyMaxChannels = options.getHotKeyMaxChannels();
+        this.autoscaleInterval = options.getAutoscaleInterval();
+        this.channelPickStrategy = options.getChannelPickStrategy();
+        this.channelPicker = options.getChannelPicker();
       }
 
       public GcpChannelPoolOptions build() {
+        Preconditions.checkArgument(!(useRoundRobinOnBind && useLeastAffinityOnBind),
+            "Round-robin and least affinity on bind cannot be used together.");
         return new GcpChannelPoolOptions(this);
       }
 
@@ -286,6 +471,214 @@ public class GcpManagedChannelOptions {
         this.useRoundRobinOnBind = enabled;
         return this;
       }
+
+      /**
+       * Enables/disables binding new affinity keys to the channel with the fewest bound keys (ties
+       * are broken by the number of active streams). This keeps the keys evenly spread across the
+       * pool even after many keys were unbound. Cannot be used together with round-robin on bind.
+       *
+       * @param enabled If true, use the channel with the fewest bound keys for affinity binding
+       *     calls.
+       */
+      public Builder setUseLeastAffinityOnBind(boolean enabled) {
+        this.useLeastAffinityOnBind = enabled;
+        return this;
+      }
+
+      /**
+       * Enables/disables spreading the affinity keys of a BIND call whose response has multiple
+       * keys, e.g. the sessions of a Spanner BatchCreateSessions call, across the pool. Every key
+       * is bound to the channel with the fewest bound keys, preferring the channel of the call on
+       * ties, instead of binding all keys to the channel of the call. With not-ready fallback
+       * enabled only READY channels receive keys besides the channel of the call.
+       *
+       * @param enabled If true, spread the keys of a multi-key BIND response across the pool.
+       */
+      public Builder setUseSpreadOnBatchBind(boolean enabled) {
+        this.useSpreadOnBatchBind = enabled;
+        return this;
+      }
+
+      /**
+       * Enables/disables creating new channels in the background. When the pool needs to grow,
+       * the call that triggered the growth and the calls after it use the existing channels while a
+       * new channel is created and connected on a background thread. The new channel is added to
+       * the pool only when it becomes READY. Only one channel is created at a time. The first
+       * channel and the minimum number of channels are still created synchronously.
+       *
+       * @param enabled If true, create new channels in the background.
+       */
+      public Builder setUseAsyncChannelCreation(boolean enabled) {
+        this.useAsyncChannelCreation = enabled;
+        return this;
+      }
+
+      /**
+       * Enables/disables learning the maximum number of concurrent streams the server allows per
+       * connection (the MAX_CONCURRENT_STREAMS HTTP/2 setting). The limit is inferred from the
+       * moments when the transport holds back new streams. Once learned, a channel is considered
+       * overloaded at its limit instead of at 100 streams (or the low watermark, if higher), and
+       * the pool grows when every channel reaches the lower of its limit and the low watermark.
+       *
+       * @param enabled If true, learn the concurrent streams limit of each channel.
+       */
+      public Builder setUseServerStreamLimit(boolean enabled) {
+        this.useServerStreamLimit = enabled;
+        return this;
+      }
+
+      /**
+       * Enables/disables keeping the affinity keys as 64-bit hashes in a compact table instead of
+       * a map of the key strings. This saves most of the memory taken by the affinity keys when
+       * there are hundreds of thousands of them, e.g. long Spanner session names. Two keys with
+       * the same hash share a binding, which is very unlikely and would only route the calls of
+       * one of the keys to another channel.
+       *
+       * @param enabled If true, keep the affinity keys in a compact table.
+       */
+      public Builder setUseCompactAffinityStore(boolean enabled) {
+        this.useCompactAffinityStore = enabled;
+        return this;
+      }
+
+      /**
+       * Sets the time after which a channel without active streams and bound affinity keys is
+       * removed from the pool and shut down. The minimum number of channels is always kept. A
+       * channel is removed only when the remaining channels would be loaded at most to a half of
+       * the concurrent streams low watermark, so that the pool does not oscillate between growing
+       * and shrinking. If not set, the idle timeout from the ApiConfig is used, if any, otherwise
+       * channels are never removed.
+       *
+       * @param channelIdleTimeout idle time after which a channel is removed from the pool.
+       */
+      public Builder setChannelIdleTimeout(Duration channelIdleTimeout) {
+        Preconditions.checkArgument(
+            !channelIdleTimeout.isNegative() && !channelIdleTimeout.isZero(),
+            "Channel idle timeout must be positive.");
+        this.channelIdleTimeout = channelIdleTimeout;
+        return this;
+      }
+
+      /**
+       * Sets the time without any calls in the pool after which all channels except the minimum
+       * number of channels are moved to idle, closing their connections. A channel reconnects on
+       * the next call made on it. Unlike the channel idle timeout the channels stay in the pool
+       * and keep their bound affinity keys.
+       *
+       * @param poolIdleTimeout time without calls after which the pool's channels go idle.
+       */
+      public Builder setPoolIdleTimeout(Duration poolIdleTimeout) {
+        Preconditions.checkArgument(
+            !poolIdleTimeout.isNegative() && !poolIdleTimeout.isZero(),
+            "Pool idle timeout must be positive.");
+        this.poolIdleTimeout = poolIdleTimeout;
+        return this;
+      }
+
+      /**
+       * Sets the time after its last call after which an affinity key is unbound from its channel,
+       * e.g. for sessions which the server has garbage-collected without the application ever
+       * unbinding them. The next call with the key binds it again. A key is unbound within a
+       * quarter of the timeout after it has expired. If not set, keys are unbound only by
+       * unbinding calls.
+       *
+       * @param affinityKeyTimeout time without calls after which an affinity key is unbound.
+       */
+      public Builder setAffinityKeyTimeout(Duration affinityKeyTimeout) {
+        Preconditions.checkArgument(
+            !affinityKeyTimeout.isNegative() && !affinityKeyTimeout.isZero(),
+            "Affinity key timeout must be positive.");
+        this.affinityKeyTimeout = affinityKeyTimeout;
+        return this;
+      }
+
+      /**
+       * Sets the maximum number of bound affinity keys. When more keys are bound, the least
+       * recently used keys are unbound in the background until 90% of the maximum is left. The
+       * order of use is tracked with the granularity of a quarter of the affinity key timeout, or
+       * of a second if there is no timeout, so the eviction order is approximate.
+       *
+       * @param maxAffinityKeys maximum number of bound affinity keys, 0 means no limit.
+       */
+      public Builder setMaxAffinityKeys(int maxAffinityKeys) {
+        Preconditions.checkArgument(
+            maxAffinityKeys >= 0, "maxAffinityKeys should be >= 0, got %s", maxAffinityKeys);
+        this.maxAffinityKeys = maxAffinityKeys;
+        return this;
+      }
+
+      /**
+       * Enables spreading the calls of hot affinity keys, e.g. a multiplexed Spanner session used
+       * by many transactions at once, over multiple channels. A key is hot when it has at least
+       * {@code minActiveStreams} concurrent calls, and its calls are then spread over its bound
+       * channel and the next {@code maxChannels - 1} channels chosen deterministically by a hash
+       * of the key, each call going to the least busy of them, until all of its calls have ended.
+       * Only the calls of keys bound to a channel with at least {@code minActiveStreams} active
+       * streams are tracked. The hot keys and their calls per channel are logged.
+       *
+       * <p>Use it only for keys that the server accepts on any channel.
+       *
+       * @param minActiveStreams the number of concurrent calls which makes a key hot.
+       * @param maxChannels the number of channels the calls of a hot key are spread over.
+       */
+      public Builder setHotKeySpreading(int minActiveStreams, int maxChannels) {
+        Preconditions.checkArgument(
+            minActiveStreams > 0, "minActiveStreams should be > 0, got %s", minActiveStreams);
+        Preconditions.checkArgument(
+            maxChannels >= 2, "maxChannels should be >= 2, got %s", maxChannels);
+        this.hotKeyMinActiveStreams = minActiveStreams;
+        this.hotKeyMaxChannels = maxChannels;
+        return this;
+      }
+
+      /**
+       * Enables predictive autoscaling of the pool. With the given interval the pool estimates the
+       * number of active streams it will have by the time a new channel could become READY, based
+       * on the rate of new calls, its trend and the observed channel readiness time. The min size
+       * is then raised so that connected channels are created ahead of a rising load, and the
+       * concurrent streams low watermark is temporarily lowered so that the pool also grows on
+       * demand earlier. When the load falls the min size is lowered by one channel per interval
+       * (combine with a channel idle timeout to remove the channels no longer needed).
+       *
+       * <p>The configured min size and low watermark are the lower bound of the min size and the
+       * upper bound of the low watermark respectively, the max size is never exceeded.
+       *
+       * @param autoscaleInterval how often the predicted load is re-evaluated.
+       */
+      public Builder setAutoscaleInterval(Duration autoscaleInterval) {
+        Preconditions.checkArgument(
+            !autoscaleInterval.isNegative() && !autoscaleInterval.isZero(),
+            "Autoscale interval must be positive.");
+        this.autoscaleInterval = autoscaleInterval;
+        return this;
+      }
+
+      /**
+       * Sets the strategy of picking a channel for a call which is not bound to a channel. The
+       * pool still grows when every channel reaches the concurrent streams low watermark, and the
+       * not-ready fallback (if enabled) is respected by all strategies.
+       *
+       * @param channelPickStrategy a {@link ChannelPickStrategy} to use. Default is
+       *     {@link ChannelPickStrategy#LEAST_BUSY}.
+       */
+      public Builder setChannelPickStrategy(ChannelPickStrategy channelPickStrategy) {
+        Preconditions.checkNotNull(channelPickStrategy, "Channel pick strategy must not be null.");
+        this.channelPickStrategy = channelPickStrategy;
+        return this;
+      }
+
+      /**
+       * Sets a custom {@link ChannelPicker} which picks a channel for a call which is not bound to
+       * a channel and for binding calls. If set, the channel pick strategy is ignored. The pool
+       * still creates new channels and applies the not-ready fallback (if enabled) on its own.
+       *
+       * @param channelPicker a {@link ChannelPicker} to use or null to use the channel pick
+       *     strategy.
+       */
+      public Builder setChannelPicker(@Nullable ChannelPicker channelPicker) {
+        this.channelPicker = channelPicker;
+        return this;
+      }
     }
   }
 
@@ -415,15 +808,37 @@ public class GcpManagedChannelOptions {
   /** Resiliency configuration for the GCP managed channel. */
   public static class GcpResiliencyOptions {
     private final boolean notReadyFallbackEnabled;
+    private final boolean hashedFallbackEnabled;
     private final boolean unresponsiveDetectionEnabled;
     private final int unresponsiveDetectionMs;
     private final int unresponsiveDetectionDroppedCount;
+    private final boolean admissionControlEnabled;
+    private final int maxConcurrentCalls;
+    private final int maxQueuedCalls;
+    private final boolean adaptiveConcurrencyLimit;
+    @Nullable private final Duration maxQueueWait;
+    private final long memoryBudgetBytes;
+    private final boolean hedgingEnabled;
+    private final double hedgingDelayPercentile;
+    private final double maxHedgePercent;
+    @Nullable private final Duration minHedgingDelay;
 
     public GcpResiliencyOptions(Builder builder) {
       notReadyFallbackEnabled = builder.notReadyFallbackEnabled;
+      hashedFallbackEnabled = builder.hashedFallbackEnabled;
       unresponsiveDetectionEnabled = builder.unresponsiveDetectionEnabled;
       unresponsiveDetectionMs = builder.unresponsiveDetectionMs;
       unresponsiveDetectionDroppedCount = builder.unresponsiveDetectionDroppedCount;
+      admissionControlEnabled = builder.admissionControlEnabled;
+      maxConcurrentCalls = builder.maxConcurrentCalls;
+      maxQueuedCalls = builder.maxQueuedCalls;
+      adaptiveConcurrencyLimit = builder.adaptiveConcurrencyLimit;
+      maxQueueWait = builder.maxQueueWait;
+      memoryBudgetBytes = builder.memoryBudgetBytes;
+      hedgingEnabled = builder.hedgingEnabled;
+      hedgingDelayPercentile = builder.hedgingDelayPercentile;
+      maxHedgePercent = builder.maxHedgePercent;
+      minHedgingDelay = builder.minHedgingDelay;
     }
 
     /** Creates a new GcpResiliencyOptions.Builder. */
@@ -440,6 +855,10 @@ public class GcpManagedChannelOptions {
       return notReadyFallbackEnabled;
     }
 
+    public boolean isHashedFallbackEnabled() {
+      return hashedFallbackEnabled;
+    }
+
     public boolean isUnresponsiveDetectionEnabled() {
       return unresponsiveDetectionEnabled;
     }
@@ -452,31 +871,111 @@ public class GcpManagedChannelOptions {
       return unresponsiveDetectionDroppedCount;
     }
 
+    public boolean isAdmissionControlEnabled() {
+      return admissionControlEnabled;
+    }
+
+    public int getMaxConcurrentCalls() {
+      return maxConcurrentCalls;
+    }
+
+    public int getMaxQueuedCalls() {
+      return maxQueuedCalls;
+    }
+
+    public boolean isAdaptiveConcurrencyLimit() {
+      return adaptiveConcurrencyLimit;
+    }
+
+    @Nullable
+    public Duration getMaxQueueWait() {
+      return maxQueueWait;
+    }
+
+    public long getMemoryBudgetBytes() {
+      return memoryBudgetBytes;
+    }
+
+    public boolean isHedgingEnabled() {
+      return hedgingEnabled;
+    }
+
+    public double getHedgingDelayPercentile() {
+      return hedgingDelayPercentile;
+    }
+
+    public double getMaxHedgePercent() {
+      return maxHedgePercent;
+    }
+
+    @Nullable
+    public Duration getMinHedgingDelay() {
+      return minHedgingDelay;
+    }
+
     @Override
     public String toString() {
       return String.format(
-          "{notReadyFallbackEnabled: %s, unresponsiveDetectionEnabled: %s, " +
-              "unresponsiveDetectionMs: %d, unresponsiveDetectionDroppedCount: %d}",
+          "{notReadyFallbackEnabled: %s, hashedFallbackEnabled: %s, " +
+              "unresponsiveDetectionEnabled: %s, " +
+              "unresponsiveDetectionMs: %d, unresponsiveDetectionDroppedCount: %d, " +
+              "admissionControlEnabled: %s, maxConcurrentCalls: %d, maxQueuedCalls: %d, " +
+              "adaptiveConcurrencyLimit: %s, maxQueueWait: %s, memoryBudgetBytes: %d, " +
+              "hedgingEnabled: %s, hedgingDelayPercentile: %s, maxHedgePercent: %s, " +
+              "minHedgingDelay: %s}",
           isNotReadyFallbackEnabled(),
+          isHashedFallbackEnabled(),
           isUnresponsiveDetectionEnabled(),
           getUnresponsiveDetectionMs(),
-          getUnresponsiveDetectionDroppedCount()
+          getUnresponsiveDetectionDroppedCount(),
+          isAdmissionControlEnabled(),
+          getMaxConcurrentCalls(),
+          getMaxQueuedCalls(),
+          isAdaptiveConcurrencyLimit(),
+          getMaxQueueWait(),
+          getMemoryBudgetBytes(),
+          isHedgingEnabled(),
+          getHedgingDelayPercentile(),
+          getMaxHedgePercent(),
+          getMinHedgingDelay()
       );
     }
 
     public static class Builder {
       private boolean notReadyFallbackEnabled = false;
+      private boolean hashedFallbackEnabled = false;
       private boolean unresponsiveDetectionEnabled = false;
       private int unresponsiveDetectionMs = 0;
       private int unresponsiveDetectionDroppedCount = 0;
+      private boolean admissionControlEnabled = false;
+      private int maxConcurrentCalls = 0;
+      private int maxQueuedCalls = 0;
+      private boolean adaptiveConcurrencyLimit = false;
+      private Duration maxQueueWait = null;
+      private long memoryBudgetBytes = 0;
+      private boolean hedgingEnabled = false;
+      private double hedgingDelayPercentile = 0;
+      private double maxHedgePercent = 0;
+      private Duration minHedgingDelay = null;
 
       public Builder() {}
 
       public Builder(GcpResiliencyOptions options) {
         this.notReadyFallbackEnabled = options.isNotReadyFallbackEnabled();
+        this.hashedFallbackEnabled = options.isHashedFallbackEnabled();
         this.unresponsiveDetectionEnabled = options.isUnresponsiveDetectionEnabled();
         this.unresponsiveDetectionMs = options.getUnresponsiveDetectionMs();
         this.unresponsiveDetectionDroppedCount = options.getUnresponsiveDetectionDroppedCount();
+        this.admissionControlEnabled = options.isAdmissionControlEnabled();
+        this.maxConcurrentCalls = options.getMaxConcurrentCalls();
+        this.maxQueuedCalls = options.getMaxQueuedCalls();
+        this.adaptiveConcurrencyLimit = options.isAdaptiveConcurrencyLimit();
+        this.maxQueueWait = options.getMaxQueueWait();
+        this.memoryBudgetBytes = options.getMemoryBudgetBytes();
+        this.hedgingEnabled = options.isHedgingEnabled();
+        this.hedgingDelayPercentile = options.getHedgingDelayPercentile();
+        this.maxHedgePercent = options.getMaxHedgePercent();
+        this.minHedgingDelay = options.getMinHedgingDelay();
       }
 
       public GcpResiliencyOptions build() {
@@ -493,6 +992,19 @@ public class GcpManagedChannelOptions {
         return this;
       }
 
+      /**
+       * If true, the affinity keys of a channel which is not ready fall back to the ready channels
+       * by rendezvous hashing of the key instead of each key being remapped to the least busy
+       * channel when it is used. This spreads the keys of the broken channel evenly without
+       * keeping a remapping per key, and every key keeps its fallback channel while that channel
+       * is ready. Once the broken channel is ready again, its keys are routed back to it. Takes
+       * effect only with the not-ready fallback enabled.
+       */
+      public Builder setHashedFallback(boolean enabled) {
+        hashedFallbackEnabled = enabled;
+        return this;
+      }
+
       /**
        * Enable unresponsive connection detection.
        *
@@ -528,6 +1040,125 @@ public class GcpManagedChannelOptions {
         unresponsiveDetectionEnabled = false;
         return this;
       }
+
+      /**
+       * Enable admission control.
+       *
+       * <p>At most {@code maxConcurrentCalls} calls run in the pool at a time. Further calls wait
+       * in a FIFO queue of at most {@code maxQueuedCalls} calls and start, on the least busy
+       * channel, as soon as a running call completes. Calls which do not fit into the queue fail with
+       * RESOURCE_EXHAUSTED right away. Without admission control such calls would queue invisibly
+       * in the transport of an overloaded channel.
+       *
+       * <p>{@code maxConcurrentCalls} should not be more than the pool can run without overloading
+       * its channels, i.e. the max size of the pool multiplied by the concurrent streams limit of a
+       * connection (usually 100).
+       */
+      public Builder withAdmissionControl(int maxConcurrentCalls, int maxQueuedCalls) {
+        Preconditions.checkArgument(
+            maxConcurrentCalls > 0, "maxConcurrentCalls should be > 0, got %s", maxConcurrentCalls);
+        Preconditions.checkArgument(
+            maxQueuedCalls >= 0, "maxQueuedCalls should be >= 0, got %s", maxQueuedCalls);
+        admissionControlEnabled = true;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxQueuedCalls = maxQueuedCalls;
+        return this;
+      }
+
+      /**
+       * If true, the admission control learns the concurrency limit, using the max concurrent calls
+       * as the upper bound. The limit is lowered by 10% on every call failed with
+       * RESOURCE_EXHAUSTED, UNAVAILABLE or DEADLINE_EXCEEDED and is raised by one after as many
+       * successful calls as the limit while the limit is nearly used.
+       */
+      public Builder setAdaptiveConcurrencyLimit(boolean enabled) {
+        adaptiveConcurrencyLimit = enabled;
+        return this;
+      }
+
+      /**
+       * Sets the maximum time a call may wait for admission, after which it fails with
+       * RESOURCE_EXHAUSTED. By default calls wait until admitted, until their deadline expires,
+       * which fails them with DEADLINE_EXCEEDED, or until they or their context are cancelled.
+       */
+      public Builder setMaxQueueWait(Duration maxQueueWait) {
+        Preconditions.checkArgument(
+            !maxQueueWait.isNegative() && !maxQueueWait.isZero(),
+            "Max queue wait must be positive.");
+        this.maxQueueWait = maxQueueWait;
+        return this;
+      }
+
+      /** Disable admission control. */
+      public Builder disableAdmissionControl() {
+        admissionControlEnabled = false;
+        return this;
+      }
+
+      /**
+       * Sets the budget of message bytes in flight across all calls of the pool.
+       *
+       * <p>A received message is counted from the moment the transport reads it until the
+       * listener has processed it, a sent message until the transport is ready to send more. When
+       * the budget is exhausted, calls stop requesting more messages from the server and report
+       * that they are not ready to send, until the usage falls below the budget. This protects
+       * from buffering too much data when many calls receive large responses at once without
+       * shrinking the flow control window of each connection.
+       *
+       * <p>Sizes are measured on the wire, so with compression the memory used may be larger.
+       * A value of 0 disables the budget.
+       */
+      public Builder setMemoryBudgetBytes(long memoryBudgetBytes) {
+        Preconditions.checkArgument(
+            memoryBudgetBytes >= 0, "memoryBudgetBytes should be >= 0, got %s", memoryBudgetBytes);
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        return this;
+      }
+
+      /**
+       * Enable hedging of idempotent unary calls across the channels of the pool.
+       *
+       * <p>If a call of a method marked as idempotent has no response after the {@code
+       * delayPercentile} percentile of the recent latencies of the method, a second copy of the
+       * call is sent on another channel of the pool. The first response wins and the other attempt
+       * is cancelled. This protects from a stalled connection, which retries on the same channel
+       * cannot. Methods with an affinity config are never hedged, as well as methods with too few
+       * completed calls to estimate the latency.
+       *
+       * <p>At most {@code maxHedgePercent} percent of calls (plus a small burst) are hedged, so
+       * that hedging does not add much load to an already overloaded server.
+       */
+      public Builder withHedging(double delayPercentile, double maxHedgePercent) {
+        Preconditions.checkArgument(
+            delayPercentile > 0 && delayPercentile < 100,
+            "delayPercentile should be between 0 and 100, got %s",
+            delayPercentile);
+        Preconditions.checkArgument(
+            maxHedgePercent > 0 && maxHedgePercent <= 100,
+            "maxHedgePercent should be > 0 and <= 100, got %s",
+            maxHedgePercent);
+        hedgingEnabled = true;
+        this.hedgingDelayPercentile = delayPercentile;
+        this.maxHedgePercent = maxHedgePercent;
+        return this;
+      }
+
+      /**
+       * Sets the minimum delay before a call is hedged, which applies when the percentile latency
+       * of the method is lower.
+       */
+      public Builder setMinHedgingDelay(Duration minHedgingDelay) {
+        Preconditions.checkArgument(
+            !minHedgingDelay.isNegative(), "Min hedging delay must not be negative.");
+        this.minHedgingDelay = minHedgingDelay;
+        return this;
+      }
+
+      /** Disable hedging. */
+      public Builder disableHedging() {
+        hedgingEnabled = false;
+        return this;
+      }
     }
   }
 }
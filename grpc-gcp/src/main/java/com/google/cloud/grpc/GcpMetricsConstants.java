@@ -28,6 +28,7 @@ class GcpMetricsConstants {
   static final String COUNT = "1";
   static final String MICROSECOND = "us";
   static final String MILLISECOND = "ms";
+  static final String BYTE = "By";
 
   public static String METRIC_MAX_CHANNELS = "max_channels";
   public static String METRIC_MIN_READY_CHANNELS = "min_ready_channels";
@@ -54,4 +55,21 @@ class GcpMetricsConstants {
   public static String METRIC_MAX_UNRESPONSIVE_DETECTION_TIME = "max_unresponsive_detection_time";
   public static String METRIC_MIN_UNRESPONSIVE_DROPPED_CALLS = "min_unresponsive_dropped_calls";
   public static String METRIC_MAX_UNRESPONSIVE_DROPPED_CALLS = "max_unresponsive_dropped_calls";
+  public static String METRIC_AUTOSCALE_PREDICTED_STREAMS = "autoscale_predicted_streams";
+  public static String METRIC_AUTOSCALE_MIN_SIZE = "autoscale_min_size";
+  public static String METRIC_AUTOSCALE_LOW_WATERMARK = "autoscale_streams_low_watermark";
+  public static String METRIC_NUM_AUTOSCALE_UPS = "num_autoscale_ups";
+  public static String METRIC_NUM_AUTOSCALE_DOWNS = "num_autoscale_downs";
+  public static String METRIC_ADMISSION_LIMIT = "admission_concurrency_limit";
+  public static String METRIC_MAX_ADMISSION_QUEUE_SIZE = "max_admission_queue_size";
+  public static String METRIC_AVG_ADMISSION_WAIT_TIME = "avg_admission_wait_time";
+  public static String METRIC_MAX_ADMISSION_WAIT_TIME = "max_admission_wait_time";
+  public static String METRIC_NUM_ADMISSION_REJECTED = "num_admission_rejected";
+  public static String METRIC_MAX_OUTSTANDING_BYTES = "max_outstanding_bytes";
+  public static String METRIC_NUM_HEDGES_SENT = "num_hedges_sent";
+  public static String METRIC_NUM_HEDGES_WON = "num_hedges_won";
+  public static String METRIC_NUM_AFFINITY_KEYS_EXPIRED = "num_affinity_keys_expired";
+  public static String METRIC_NUM_AFFINITY_KEYS_EVICTED = "num_affinity_keys_evicted";
+  public static String METRIC_NUM_HOT_KEYS = "num_hot_affinity_keys";
+  public static String METRIC_NUM_HOT_KEY_SPREAD_CALLS = "num_hot_key_spread_calls";
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when and how often calls of a pool are hedged.
+ *
+ * <p>The hedging delay of a method is a percentile of the recent latencies of its successful
+ * calls, as measured by their primary attempts. A primary attempt which lost to its hedge is
+ * recorded with the time it ran, which is above the hedging delay, so hedges do not bias the
+ * percentile down. The latencies are kept in a histogram with four buckets per power of two
+ * microseconds, i.e. with an error of at most 25%, whose counts are halved every {@link #WINDOW}
+ * samples, so that the histogram follows latency changes.
+ *
+ * <p>The hedge budget is a token bucket: every call adds the allowed share of a hedge and every
+ * hedge takes a whole token, with at most {@link #MAX_HEDGE_BURST} tokens saved up.
+ */
+final class HedgingController {
+  // Completed calls of a method needed before its calls are hedged.
+  @VisibleForTesting static final int MIN_SAMPLES = 100;
+  @VisibleForTesting static final int WINDOW = 1000;
+  @VisibleForTesting static final int MAX_HEDGE_BURST = 10;
+  // Budget tokens are counted in thousandths of a hedge.
+  private static final long TOKEN = 1000;
+
+  private final double percentile;
+  private final long tokensPerCall;
+  private final long minDelayNanos;
+  private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final AtomicLong tokens = new AtomicLong();
+
+  // Metrics counters.
+  private final AtomicLong hedgesSent = new AtomicLong();
+  private final AtomicLong hedgesWon = new AtomicLong();
+
+  /**
+   * @param percentile the percentile of latencies used as the hedging delay, between 0 and 100.
+   * @param maxHedgePercent the maximum percentage of calls which are hedged.
+   * @param minDelayNanos the minimum hedging delay.
+   */
+  HedgingController(double percentile, double maxHedgePercent, long minDelayNanos) {
+    this.percentile = percentile;
+    this.tokensPerCall = Math.max(1, Math.round(maxHedgePercent / 100 * TOKEN));
+    this.minDelayNanos = minDelayNanos;
+  }
+
+  /**
+   * Returns the delay after which a new call of the method should be hedged, or -1 if the call
+   * should not be hedged. Adds the call's share to the hedge budget.
+   */
+  long getHedgingDelayNanos(String method) {
+    tokens.accumulateAndGet(
+        tokensPerCall, (current, add) -> Math.min(MAX_HEDGE_BURST * TOKEN, current + add));
+    LatencyHistogram histogram = latencies.get(method);
+    if (histogram == null) {
+      return -1;
+    }
+    long delayNanos = histogram.getPercentileNanos(percentile);
+    return delayNanos < 0 ? -1 : Math.max(minDelayNanos, delayNanos);
+  }
+
+  /** Takes a hedge from the budget. Returns false if the budget is exhausted. */
+  boolean tryAcquireHedge() {
+    while (true) {
+      long current = tokens.get();
+      if (current < TOKEN) {
+        return false;
+      }
+      if (tokens.compareAndSet(current, current - TOKEN)) {
+        hedgesSent.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /** Records the latency of a successful call of the method. */
+  void recordLatency(String method, long nanos) {
+    latencies.computeIfAbsent(method, k -> new LatencyHistogram()).record(nanos);
+  }
+
+  void hedgeWon() {
+    hedgesWon.incrementAndGet();
+  }
+
+  long getHedgesSent() {
+    return hedgesSent.get();
+  }
+
+  long getHedgesWon() {
+    return hedgesWon.get();
+  }
+
+  @VisibleForTesting
+  static final class LatencyHistogram {
+    // Buckets 0-3 hold latencies below 4 microseconds, buckets 4-7 are unused, bucket 4 * e + s
+    // for e >= 2 holds latencies from (4 + s) << (e - 2) up to (5 + s) << (e - 2) microseconds.
+    private static final int BUCKETS = 4 * 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+
+    void record(long nanos) {
+      counts.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+      if (total.incrementAndGet() >= WINDOW) {
+        decay();
+      }
+    }
+
+    private synchronized void decay() {
+      if (total.get() < WINDOW) {
+        return;
+      }
+      // Concurrent records may be lost or counted in the total only, the percentile is approximate
+      // anyway.
+      long sum = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        long halved = counts.get(i) / 2;
+        counts.set(i, halved);
+        sum += halved;
+      }
+      total.set(sum);
+    }
+
+    /** Returns the upper bound of the percentile or -1 if there are too few samples. */
+    long getPercentileNanos(double percentile) {
+      long count = total.get();
+      if (count < MIN_SAMPLES) {
+        return -1;
+      }
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank) {
+          return TimeUnit.MICROSECONDS.toNanos(upperBoundMicros(i));
+        }
+      }
+      return TimeUnit.MICROSECONDS.toNanos(upperBoundMicros(BUCKETS - 1));
+    }
+
+    @VisibleForTesting
+    static int bucket(long micros) {
+      if (micros < 4) {
+        return (int) Math.max(0, micros);
+      }
+      int exp = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) ((micros >>> (exp - 2)) & 3);
+      return Math.min(BUCKETS - 1, 4 * exp + sub);
+    }
+
+    @VisibleForTesting
+    static long upperBoundMicros(int bucket) {
+      if (bucket < 4) {
+        return bucket + 1;
+      }
+      return (5L + bucket % 4) << (bucket / 4 - 2);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.cloud.grpc.GcpManagedChannel.ChannelRef;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Detects affinity keys with many concurrent calls.
+ *
+ * <p>Only keys of calls made on a channel with at least the threshold of active streams are
+ * tracked, as a key cannot have more active streams than its channel, so the calls of other keys
+ * cost a single comparison. A tracked key is forgotten when its last tracked call ends. A key
+ * becomes hot when it reaches the threshold of active streams and then stays hot until it is
+ * forgotten. The calls of a hot key are spread over a set of channels, which is recorded per
+ * channel to report the load distribution.
+ */
+final class HotKeyTracker {
+  private final int minActiveStreams;
+  private final int maxChannels;
+  private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<>();
+
+  // Metrics counters.
+  private final AtomicInteger hotKeys = new AtomicInteger();
+  private final AtomicLong spreadCalls = new AtomicLong();
+
+  /**
+   * @param minActiveStreams the number of concurrent calls of a key which makes it hot.
+   * @param maxChannels the number of channels the calls of a hot key are spread over.
+   */
+  HotKeyTracker(int minActiveStreams, int maxChannels) {
+    this.minActiveStreams = minActiveStreams;
+    this.maxChannels = maxChannels;
+  }
+
+  int getMaxChannels() {
+    return maxChannels;
+  }
+
+  /**
+   * Records the start of a call with the key on its bound channel. Returns the tracked key or null
+   * if the key is not tracked. {@link Key#callEnded} must be called when a tracked call ends.
+   */
+  @Nullable
+  Key callStarted(String name, int boundChannelActiveStreams) {
+    Key key = keys.get(name);
+    if (key == null) {
+      if (boundChannelActiveStreams < minActiveStreams) {
+        return null;
+      }
+      key = keys.computeIfAbsent(name, Key::new);
+    }
+    key.activeStreams.incrementAndGet();
+    return key;
+  }
+
+  /** Returns the number of keys whose calls are spread. */
+  int getHotKeys() {
+    return hotKeys.get();
+  }
+
+  /** Returns the number of calls of hot keys made on a channel other than the bound channel. */
+  long getSpreadCalls() {
+    return spreadCalls.get();
+  }
+
+  /** Returns the calls per channel id of the hot keys. */
+  Map<String, Map<Integer, Long>> getHotKeysLoad() {
+    Map<String, Map<Integer, Long>> load = new TreeMap<>();
+    for (Key key : keys.values()) {
+      if (key.channels != null) {
+        load.put(key.name, key.getCallsPerChannel());
+      }
+    }
+    return load;
+  }
+
+  /** A key with tracked calls. */
+  final class Key {
+    private final String name;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    // The channels the calls are spread over, null until the key is hot.
+    @Nullable private volatile List<ChannelRef> channels;
+    private final Map<Integer, AtomicLong> callsPerChannel = new ConcurrentHashMap<>();
+
+    private Key(String name) {
+      this.name = name;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    int getActiveStreams() {
+      return activeStreams.get();
+    }
+
+    boolean isHot() {
+      return activeStreams.get() >= minActiveStreams;
+    }
+
+    /** Returns the channels of a hot key or null if the calls are not spread yet. */
+    @Nullable
+    List<ChannelRef> getChannels() {
+      return channels;
+    }
+
+    /** Spreads the calls over the channels. Returns false if they were spread already. */
+    synchronized boolean spread(List<ChannelRef> channels) {
+      if (this.channels != null) {
+        return false;
+      }
+      this.channels = Collections.unmodifiableList(channels);
+      hotKeys.incrementAndGet();
+      return true;
+    }
+
+    void recordCall(ChannelRef channelRef, ChannelRef boundChannel) {
+      callsPerChannel.computeIfAbsent(channelRef.getId(), id -> new AtomicLong()).incrementAndGet();
+      if (channelRef != boundChannel) {
+        spreadCalls.incrementAndGet();
+      }
+    }
+
+    Map<Integer, Long> getCallsPerChannel() {
+      Map<Integer, Long> calls = new TreeMap<>();
+      callsPerChannel.forEach((id, count) -> calls.put(id, count.get()));
+      return calls;
+    }
+
+    /** Records the end of a tracked call. Returns true if a hot key was forgotten. */
+    boolean callEnded() {
+      if (activeStreams.decrementAndGet() > 0 || !keys.remove(name, this)) {
+        return false;
+      }
+      // A call started meanwhile keeps using this key and is not counted under the new one.
+      if (channels == null) {
+        return false;
+      }
+      hotKeys.decrementAndGet();
+      return true;
+    }
+  }
+}
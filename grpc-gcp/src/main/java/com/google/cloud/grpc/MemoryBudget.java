@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks message bytes in flight across all calls of a pool against a budget.
+ *
+ * <p>Calls hold back their work while the budget is exhausted and register a callback with {@link
+ * #whenAvailable} which runs once usage drops below the budget.
+ */
+final class MemoryBudget {
+  private final long maxBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final AtomicLong maxUsedBytes = new AtomicLong();
+  private final Set<Runnable> waiters = ConcurrentHashMap.newKeySet();
+
+  MemoryBudget(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  boolean isExhausted() {
+    return usedBytes.get() >= maxBytes;
+  }
+
+  void acquire(long bytes) {
+    long used = usedBytes.addAndGet(bytes);
+    maxUsedBytes.accumulateAndGet(used, Math::max);
+  }
+
+  void release(long bytes) {
+    if (bytes == 0) {
+      return;
+    }
+    long used = usedBytes.addAndGet(-bytes);
+    if (used < maxBytes && !waiters.isEmpty()) {
+      runWaiters();
+    }
+  }
+
+  /** Runs the callback right away if the budget is available, otherwise once it is available. */
+  void whenAvailable(Runnable callback) {
+    waiters.add(callback);
+    // The budget may have been released after the caller checked it.
+    if (!isExhausted()) {
+      runWaiters();
+    }
+  }
+
+  private void runWaiters() {
+    for (Runnable waiter : waiters) {
+      if (waiters.remove(waiter)) {
+        waiter.run();
+      }
+    }
+  }
+
+  long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /** Returns the maximum usage since the last call and resets it to the current usage. */
+  long getAndResetMaxUsedBytes() {
+    return maxUsedBytes.getAndSet(usedBytes.get());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+
+/**
+ * Peak-sensitive exponentially weighted moving average of call latency.
+ *
+ * <p>A sample above the current average replaces it immediately, so a degraded connection is
+ * penalized right away. Lower samples and the passage of time decay the average with the
+ * configured time constant, so a channel that was slow in the past is eventually tried again.
+ */
+final class PeakEwma {
+  private final double decayNanos;
+
+  @GuardedBy("this")
+  private double valueNanos;
+
+  @GuardedBy("this")
+  private long stampNanos;
+
+  PeakEwma(long decayNanos, long nowNanos) {
+    this.decayNanos = decayNanos;
+    this.stampNanos = nowNanos;
+  }
+
+  /** Records the latency of a completed call. */
+  synchronized void observe(long latencyNanos, long nowNanos) {
+    if (latencyNanos > valueNanos) {
+      valueNanos = latencyNanos;
+    } else {
+      double weight = weight(nowNanos);
+      valueNanos = valueNanos * weight + latencyNanos * (1 - weight);
+    }
+    stampNanos = nowNanos;
+  }
+
+  /** Returns the average decayed to the given moment. */
+  synchronized double get(long nowNanos) {
+    return valueNanos * weight(nowNanos);
+  }
+
+  /** Returns whether nothing was observed for longer than the time constant. */
+  synchronized boolean isStale(long nowNanos) {
+    return nowNanos - stampNanos > decayNanos;
+  }
+
+  @GuardedBy("this")
+  private double weight(long nowNanos) {
+    return Math.exp(-Math.max(0, nowNanos - stampNanos) / decayNanos);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+/**
+ * Predicts the number of active streams of a pool and derives the pool min size and concurrent
+ * streams low watermark from the prediction.
+ *
+ * <p>The rate of new calls is extrapolated by its trend over the time a new channel needs to become
+ * READY (plus one evaluation interval) and converted to streams by Little's law using the average
+ * call duration. Thus channels are created before the calls that need them arrive. When the load
+ * falls, the smoothed load lags behind the actual load and the min size is lowered by at most one
+ * channel per evaluation, so that the pool shrinks gradually.
+ *
+ * <p>{@link #update} must not be called concurrently.
+ */
+final class PoolAutoscaler {
+  // Weight of a new sample in the moving averages.
+  private static final double SMOOTHING = 0.5;
+
+  private final long intervalNanos;
+  private final int baseMinSize;
+  private final int maxSize;
+  private final int baseLowWatermark;
+
+  // Moving average of the time it takes a channel to become READY. Updated from state change
+  // notifications, races between them only skew the average slightly.
+  private volatile double readinessNanos;
+
+  // The number of updates so far.
+  private long samples;
+  private long lastNanos;
+  private int lastStreams;
+  private long lastCompletedCalls;
+  private double startRate;
+  private double startRateTrend;
+  private double completionRate;
+  private double streams;
+
+  private volatile long predictedStreams;
+  private volatile int targetMinSize;
+  private volatile int lowWatermark;
+
+  PoolAutoscaler(long intervalNanos, int baseMinSize, int maxSize, int baseLowWatermark) {
+    this.intervalNanos = intervalNanos;
+    this.baseMinSize = baseMinSize;
+    this.maxSize = maxSize;
+    this.baseLowWatermark = baseLowWatermark;
+    this.targetMinSize = baseMinSize;
+    this.lowWatermark = baseLowWatermark;
+  }
+
+  void recordReadinessTime(long nanos) {
+    double current = readinessNanos;
+    readinessNanos = current == 0 ? nanos : current + SMOOTHING * (nanos - current);
+  }
+
+  /**
+   * Updates the prediction with the current state of the pool.
+   *
+   * @param nowNanos current time.
+   * @param activeStreams the number of active streams in the pool.
+   * @param completedCalls the total number of calls completed by the pool so far.
+   */
+  void update(long nowNanos, int activeStreams, long completedCalls) {
+    if (samples++ == 0 || nowNanos - lastNanos <= 0) {
+      lastNanos = nowNanos;
+      lastStreams = activeStreams;
+      lastCompletedCalls = completedCalls;
+      streams = activeStreams;
+      return;
+    }
+    double seconds = (nowNanos - lastNanos) / 1e9;
+    long completed = completedCalls - lastCompletedCalls;
+    // Every call started during the interval either completed or is still active.
+    double newStartRate = Math.max(0, completed + activeStreams - lastStreams) / seconds;
+    if (samples == 2) {
+      startRate = newStartRate;
+      completionRate = completed / seconds;
+    } else {
+      startRateTrend = smooth(startRateTrend, (newStartRate - startRate) / seconds);
+      startRate = smooth(startRate, newStartRate);
+      completionRate = smooth(completionRate, completed / seconds);
+    }
+    streams = smooth(streams, activeStreams);
+    lastNanos = nowNanos;
+    lastStreams = activeStreams;
+    lastCompletedCalls = completedCalls;
+
+    double load = Math.max(activeStreams, streams);
+    double predicted = load;
+    if (startRateTrend > 0 && completionRate > 0) {
+      // Little's law: average call duration is the average concurrency divided by the throughput.
+      double callSeconds = streams / completionRate;
+      double horizonSeconds = (readinessNanos + intervalNanos) / 1e9;
+      predicted = Math.max(load, (startRate + startRateTrend * horizonSeconds) * callSeconds);
+    }
+    predictedStreams = (long) Math.ceil(predicted);
+
+    int streamsPerChannel = Math.max(baseLowWatermark, 1);
+    long needed = (predictedStreams + streamsPerChannel - 1) / streamsPerChannel;
+    int target = (int) Math.max(baseMinSize, Math.min(maxSize, needed));
+    int current = targetMinSize;
+    targetMinSize = target < current ? current - 1 : target;
+
+    // Lower the watermark while the load is rising, so that the pool also grows on demand earlier.
+    if (baseLowWatermark > 1 && predicted > load) {
+      lowWatermark = (int) Math.max(1, Math.floor(baseLowWatermark * load / predicted));
+    } else {
+      lowWatermark = baseLowWatermark;
+    }
+  }
+
+  private static double smooth(double average, double sample) {
+    return average + SMOOTHING * (sample - average);
+  }
+
+  long getPredictedStreams() {
+    return predictedStreams;
+  }
+
+  int getTargetMinSize() {
+    return targetMinSize;
+  }
+
+  int getLowWatermark() {
+    return lowWatermark;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "PoolAutoscaler{predictedStreams: %d, targetMinSize: %d, lowWatermark: %d}",
+        predictedStreams, targetMinSize, lowWatermark);
+  }
+}
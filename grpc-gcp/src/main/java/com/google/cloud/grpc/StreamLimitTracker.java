@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.grpc;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ClientStreamTracer.StreamInfo;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Learns the maximum number of concurrent streams the server allows on a channel's connection (the
+ * MAX_CONCURRENT_STREAMS HTTP/2 setting).
+ *
+ * <p>The setting is not exposed by the transport, so it is inferred from stream tracer events. The
+ * headers of a stream are sent only when the connection has a free stream slot, streams above the
+ * limit are queued by the transport. Thus the number of streams with sent headers never exceeds the
+ * limit, and a stream which waited for its headers to be sent means that the connection reached
+ * the limit. Once a queued stream is observed, the limit is the maximum number of streams with sent
+ * headers seen so far, which may only grow afterwards.
+ */
+final class StreamLimitTracker extends ClientStreamTracer.Factory {
+  // A stream whose headers took longer than this to be sent is considered queued by the transport.
+  @VisibleForTesting static final long QUEUED_STREAM_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  // Streams with sent headers which are not closed yet.
+  private final AtomicInteger openStreams = new AtomicInteger();
+  private final AtomicInteger maxOpenStreams = new AtomicInteger();
+  private volatile boolean limitReached;
+
+  /** Returns the learned limit or 0 if the limit was never reached. */
+  int getLimit() {
+    return limitReached ? maxOpenStreams.get() : 0;
+  }
+
+  /** Forgets the learned limit, e.g. when the channel reconnects possibly to another server. */
+  void reset() {
+    limitReached = false;
+    maxOpenStreams.set(openStreams.get());
+  }
+
+  @Override
+  public ClientStreamTracer newClientStreamTracer(StreamInfo info, Metadata headers) {
+    return new Tracer(System.nanoTime());
+  }
+
+  @VisibleForTesting
+  void onHeadersSent(long waitNanos) {
+    int open = openStreams.incrementAndGet();
+    int maxOpen = maxOpenStreams.accumulateAndGet(open, Math::max);
+    // A stream also waits when the connection is busy for another reason, e.g. flow control, so
+    // count it as queued only if no more streams were ever open.
+    if (!limitReached && waitNanos > QUEUED_STREAM_NANOS && open >= maxOpen - 1) {
+      limitReached = true;
+    }
+  }
+
+  @VisibleForTesting
+  void onStreamClosed() {
+    openStreams.decrementAndGet();
+  }
+
+  private final class Tracer extends ClientStreamTracer {
+    private static final int QUEUED = 0;
+    private static final int OPEN = 1;
+    private static final int CLOSED = 2;
+
+    private final long createdNanos;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+    private Tracer(long createdNanos) {
+      this.createdNanos = createdNanos;
+    }
+
+    @Override
+    public void outboundHeaders() {
+      if (state.compareAndSet(QUEUED, OPEN)) {
+        onHeadersSent(System.nanoTime() - createdNanos);
+      }
+    }
+
+    @Override
+    public void streamClosed(Status status) {
+      if (state.getAndSet(CLOSED) == OPEN) {
+        onStreamClosed();
+      }
+    }
+  }
+}
@@ -23,12 +23,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import com.google.cloud.grpc.GcpManagedChannelOptions.GcpChannelPoolOptions;
+import com.google.cloud.grpc.GcpManagedChannelOptions.GcpChannelPoolOptions.ChannelPickStrategy;
 import com.google.cloud.grpc.GcpManagedChannelOptions.GcpMetricsOptions;
 import com.google.cloud.grpc.GcpManagedChannelOptions.GcpResiliencyOptions;
 import io.opencensus.metrics.LabelKey;
 import io.opencensus.metrics.LabelValue;
 import io.opencensus.metrics.MetricRegistry;
 import io.opencensus.metrics.Metrics;
+import java.time.Duration;
 import java.util.Collections;
 import org.junit.Rule;
 import org.junit.Test;
@@ -114,6 +116,112 @@ public final class GcpManagedChannelOptionsTest {
             .build();
   }
 
+  @Test
+  public void testAdmissionControlOptions() {
+    GcpResiliencyOptions resOpts =
+        GcpResiliencyOptions.newBuilder()
+            .withAdmissionControl(200, 50)
+            .setAdaptiveConcurrencyLimit(true)
+            .setMaxQueueWait(Duration.ofMillis(500))
+            .build();
+    assertTrue(resOpts.isAdmissionControlEnabled());
+    assertEquals(200, resOpts.getMaxConcurrentCalls());
+    assertEquals(50, resOpts.getMaxQueuedCalls());
+    assertTrue(resOpts.isAdaptiveConcurrencyLimit());
+    assertEquals(Duration.ofMillis(500), resOpts.getMaxQueueWait());
+
+    resOpts = GcpResiliencyOptions.newBuilder(resOpts).disableAdmissionControl().build();
+    assertFalse(resOpts.isAdmissionControlEnabled());
+    assertEquals(200, resOpts.getMaxConcurrentCalls());
+
+    exceptionRule.expect(IllegalArgumentException.class);
+    exceptionRule.expectMessage("maxConcurrentCalls should be > 0, got 0");
+    GcpResiliencyOptions.newBuilder().withAdmissionControl(0, 10);
+  }
+
+  @Test
+  public void testMemoryBudgetOptions() {
+    GcpResiliencyOptions resOpts = GcpResiliencyOptions.newBuilder().build();
+    assertEquals(0, resOpts.getMemoryBudgetBytes());
+
+    resOpts = GcpResiliencyOptions.newBuilder().setMemoryBudgetBytes(64 << 20).build();
+    assertEquals(64 << 20, resOpts.getMemoryBudgetBytes());
+    resOpts = GcpResiliencyOptions.newBuilder(resOpts).build();
+    assertEquals(64 << 20, resOpts.getMemoryBudgetBytes());
+
+    exceptionRule.expect(IllegalArgumentException.class);
+    exceptionRule.expectMessage("memoryBudgetBytes should be >= 0, got -1");
+    GcpResiliencyOptions.newBuilder().setMemoryBudgetBytes(-1);
+  }
+
+  @Test
+  public void testHedgingOptions() {
+    GcpResiliencyOptions resOpts =
+        GcpResiliencyOptions.newBuilder()
+            .withHedging(95, 5)
+            .setMinHedgingDelay(Duration.ofMillis(2))
+            .build();
+    assertTrue(resOpts.isHedgingEnabled());
+    assertEquals(95, resOpts.getHedgingDelayPercentile(), 0);
+    assertEquals(5, resOpts.getMaxHedgePercent(), 0);
+    assertEquals(Duration.ofMillis(2), resOpts.getMinHedgingDelay());
+
+    resOpts = GcpResiliencyOptions.newBuilder(resOpts).disableHedging().build();
+    assertFalse(resOpts.isHedgingEnabled());
+    assertEquals(95, resOpts.getHedgingDelayPercentile(), 0);
+
+    exceptionRule.expect(IllegalArgumentException.class);
+    exceptionRule.expectMessage("delayPercentile should be between 0 and 100, got 100.0");
+    GcpResiliencyOptions.newBuilder().withHedging(100, 5);
+  }
+
+  @Test
+  public void testAffinityKeyExpiryOptions() {
+    GcpChannelPoolOptions poolOpts = GcpChannelPoolOptions.newBuilder().build();
+    assertThat(poolOpts.getAffinityKeyTimeout()).isNull();
+    assertEquals(0, poolOpts.getMaxAffinityKeys());
+
+    poolOpts =
+        GcpChannelPoolOptions.newBuilder()
+            .setAffinityKeyTimeout(Duration.ofMinutes(30))
+            .setMaxAffinityKeys(100_000)
+            .build();
+    poolOpts = GcpChannelPoolOptions.newBuilder(poolOpts).build();
+    assertEquals(Duration.ofMinutes(30), poolOpts.getAffinityKeyTimeout());
+    assertEquals(100_000, poolOpts.getMaxAffinityKeys());
+
+    exceptionRule.expect(IllegalArgumentException.class);
+    exceptionRule.expectMessage("maxAffinityKeys should be >= 0, got -1");
+    GcpChannelPoolOptions.newBuilder().setMaxAffinityKeys(-1);
+  }
+
+  @Test
+  public void testHotKeySpreadingOptions() {
+    GcpChannelPoolOptions poolOpts = GcpChannelPoolOptions.newBuilder().build();
+    assertEquals(0, poolOpts.getHotKeyMinActiveStreams());
+
+    poolOpts = GcpChannelPoolOptions.newBuilder().setHotKeySpreading(50, 3).build();
+    poolOpts = GcpChannelPoolOptions.newBuilder(poolOpts).build();
+    assertEquals(50, poolOpts.getHotKeyMinActiveStreams());
+    assertEquals(3, poolOpts.getHotKeyMaxChannels());
+
+    exceptionRule.expect(IllegalArgumentException.class);
+    exceptionRule.expectMessage("maxChannels should be >= 2, got 1");
+    GcpChannelPoolOptions.newBuilder().setHotKeySpreading(50, 1);
+  }
+
+  @Test
+  public void testHashedFallbackOptions() {
+    GcpResiliencyOptions resOpts = GcpResiliencyOptions.newBuilder().build();
+    assertFalse(resOpts.isHashedFallbackEnabled());
+
+    resOpts =
+        GcpResiliencyOptions.newBuilder().setNotReadyFallback(true).setHashedFallback(true).build();
+    resOpts = GcpResiliencyOptions.newBuilder(resOpts).build();
+    assertTrue(resOpts.isNotReadyFallbackEnabled());
+    assertTrue(resOpts.isHashedFallbackEnabled());
+  }
+
   @Test
   public void testOptionsReBuild() {
     final GcpManagedChannelOptions opts = buildOptions();
@@ -180,6 +288,7 @@ public final class GcpManagedChannelOptionsTest {
                 .setMinSize(2)
                 .setConcurrentStreamsLowWatermark(10)
                 .setUseRoundRobinOnBind(true)
+                .setChannelPickStrategy(ChannelPickStrategy.POWER_OF_TWO_CHOICES)
                 .build()
         )
         .build();
@@ -190,5 +299,44 @@ public final class GcpManagedChannelOptionsTest {
     assertThat(channelPoolOptions.getMinSize()).isEqualTo(2);
     assertThat(channelPoolOptions.getConcurrentStreamsLowWatermark()).isEqualTo(10);
     assertThat(channelPoolOptions.isUseRoundRobinOnBind()).isTrue();
+    assertThat(channelPoolOptions.getChannelPickStrategy())
+        .isEqualTo(ChannelPickStrategy.POWER_OF_TWO_CHOICES);
+
+    // Defaults to the least busy channel and survives a rebuild.
+    assertThat(GcpChannelPoolOptions.newBuilder().build().getChannelPickStrategy())
+        .isEqualTo(ChannelPickStrategy.LEAST_BUSY);
+    assertThat(
+            GcpChannelPoolOptions.newBuilder(channelPoolOptions).build().getChannelPickStrategy())
+        .isEqualTo(ChannelPickStrategy.POWER_OF_TWO_CHOICES);
+
+    assertThat(channelPoolOptions.isUseSpreadOnBatchBind()).isFalse();
+    assertThat(
+            GcpChannelPoolOptions.newBuilder(
+                    GcpChannelPoolOptions.newBuilder().setUseSpreadOnBatchBind(true).build())
+                .build()
+                .isUseSpreadOnBatchBind())
+        .isTrue();
+
+    // Round-robin and least affinity on bind are mutually exclusive.
+    assertThat(GcpChannelPoolOptions.newBuilder().build().isUseLeastAffinityOnBind()).isFalse();
+    assertThat(
+            GcpChannelPoolOptions.newBuilder()
+                .setUseLeastAffinityOnBind(true)
+                .build()
+                .isUseLeastAffinityOnBind())
+        .isTrue();
+    exceptionRule.expect(IllegalArgumentException.class);
+    GcpChannelPoolOptions.newBuilder(channelPoolOptions).setUseLeastAffinityOnBind(true).build();
+  }
+
+  @Test
+  public void testPoolOptionsChannelPicker() {
+    GcpChannelPoolOptions channelPoolOptions =
+        GcpChannelPoolOptions.newBuilder().setChannelPicker(ChannelPickers.peakEwma()).build();
+
+    // A custom channel picker is not set by default and survives a rebuild.
+    assertThat(GcpChannelPoolOptions.newBuilder().build().getChannelPicker()).isNull();
+    assertThat(GcpChannelPoolOptions.newBuilder(channelPoolOptions).build().getChannelPicker())
+        .isSameAs(channelPoolOptions.getChannelPicker());
   }
 }
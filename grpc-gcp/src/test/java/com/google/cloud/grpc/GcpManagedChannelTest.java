@@ -23,6 +23,7 @@ import static org.junit.Assert.assertNotNull;
 
 import com.google.cloud.grpc.GcpManagedChannel.ChannelRef;
 import com.google.cloud.grpc.GcpManagedChannelOptions.GcpChannelPoolOptions;
+import com.google.cloud.grpc.GcpManagedChannelOptions.GcpChannelPoolOptions.ChannelPickStrategy;
 import com.google.cloud.grpc.GcpManagedChannelOptions.GcpMetricsOptions;
 import com.google.cloud.grpc.GcpManagedChannelOptions.GcpResiliencyOptions;
 import com.google.cloud.grpc.MetricRegistryTestUtils.FakeMetricRegistry;
@@ -32,13 +33,24 @@ import com.google.cloud.grpc.proto.AffinityConfig;
 import com.google.cloud.grpc.proto.ApiConfig;
 import com.google.cloud.grpc.proto.ChannelPoolConfig;
 import com.google.cloud.grpc.proto.MethodConfig;
+import com.google.spanner.v1.BatchCreateSessionsResponse;
+import com.google.spanner.v1.CreateSessionRequest;
+import com.google.spanner.v1.ExecuteSqlRequest;
+import com.google.spanner.v1.GetSessionRequest;
 import com.google.spanner.v1.PartitionReadRequest;
+import com.google.spanner.v1.ResultSet;
+import com.google.spanner.v1.Session;
+import com.google.spanner.v1.SpannerGrpc;
 import com.google.spanner.v1.TransactionSelector;
 import io.grpc.CallOptions;
 import io.grpc.ClientCall;
 import io.grpc.ConnectivityState;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ForwardingChannelBuilder;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import io.grpc.Status.Code;
@@ -46,15 +58,24 @@ import io.opencensus.metrics.LabelKey;
 import io.opencensus.metrics.LabelValue;
 import java.io.File;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -309,6 +330,1777 @@ public final class GcpManagedChannelTest {
     assertEquals(6, gcpChannel.getChannelRef(null).getAffinityCount());
   }
 
+  @Test
+  public void testGetChannelRefFollowsLoadChanges() {
+    resetGcpChannel();
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(3)
+        .setConcurrentStreamsLowWatermark(MAX_STREAM)
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(poolOptions)
+                        .withResiliencyOptions(
+                            GcpResiliencyOptions.newBuilder().setNotReadyFallback(true).build())
+                        .build())
+                .build();
+    for (int i = 0; i < 3; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i, 0, 10 - i));
+    }
+    // Channel 2 has the fewest streams.
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(2);
+
+    // Load changes must be reflected in the next pick.
+    for (int i = 0; i < 5; i++) {
+      gcpChannel.channelRefs.get(2).activeStreamsCountIncr();
+    }
+    gcpChannel.channelRefs.get(0).activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    gcpChannel.channelRefs.get(0).activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    gcpChannel.channelRefs.get(0).activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    // Streams: 7, 9, 13.
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+
+    // A non-ready channel is skipped while there is a ready one.
+    gcpChannel.processChannelStateChange(0, ConnectivityState.CONNECTING);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    gcpChannel.processChannelStateChange(0, ConnectivityState.READY);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+
+    // Equal loads are resolved in favor of the lowest channel id.
+    gcpChannel.channelRefs.get(1).activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    gcpChannel.channelRefs.get(1).activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    // Streams: 7, 7, 13.
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+  }
+
+  @Test
+  public void testLoadIndexBuckets() {
+    // Buckets are exact for small counts and ordered as the counts.
+    for (int i = 0; i < ChannelLoadIndex.EXACT_STREAMS; i++) {
+      assertThat(ChannelLoadIndex.bucket(i)).isEqualTo(i);
+    }
+    for (int i = 1; i < 100000; i++) {
+      assertThat(ChannelLoadIndex.bucket(i)).isAtLeast(ChannelLoadIndex.bucket(i - 1));
+    }
+    // Counts within a quarter of their power of two share a bucket.
+    assertThat(ChannelLoadIndex.bucket(64)).isEqualTo(ChannelLoadIndex.bucket(79));
+    assertThat(ChannelLoadIndex.bucket(80)).isGreaterThan(ChannelLoadIndex.bucket(79));
+
+    resetGcpChannel();
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(3)
+        .setConcurrentStreamsLowWatermark(MAX_STREAM)
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder().withChannelPoolOptions(poolOptions).build())
+                .build();
+    // A channel is not picked before it is added to the pool.
+    ChannelRef pending = gcpChannel.new ChannelRef(builder.build(), 0, 0, 0);
+    for (int i = 1; i < 3; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i, 0, 70 + i));
+    }
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+
+    // Channels in the same coarse bucket are compared by their streams count.
+    ChannelRef channel2 = gcpChannel.channelRefs.get(1);
+    for (int i = 0; i < 3; i++) {
+      channel2.activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    }
+    // Streams: 71, 69.
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(2);
+
+    gcpChannel.channelRefs.add(pending);
+    assertThat(gcpChannel.getChannelRef(null)).isSameAs(pending);
+  }
+
+  @Test
+  public void testGetChannelRefPowerOfTwoChoices() {
+    resetGcpChannel();
+    final int lowWatermark = 10;
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(4)
+        .setConcurrentStreamsLowWatermark(lowWatermark)
+        .setChannelPickStrategy(ChannelPickStrategy.POWER_OF_TWO_CHOICES)
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(poolOptions)
+                        .withResiliencyOptions(
+                            GcpResiliencyOptions.newBuilder().setNotReadyFallback(true).build())
+                        .build())
+                .build();
+    int[] streams = new int[] {1, 2, 4};
+    for (int i = 0; i < streams.length; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i, 0, streams[i]));
+    }
+
+    // The busiest channel loses against any other channel.
+    for (int i = 0; i < 100; i++) {
+      assertThat(gcpChannel.getChannelRef(null).getId()).isNotEqualTo(2);
+    }
+
+    // A non-ready channel is never picked while the other sampled channel is ready.
+    gcpChannel.processChannelStateChange(0, ConnectivityState.CONNECTING);
+    for (int i = 0; i < 100; i++) {
+      assertThat(gcpChannel.getChannelRef(null).getId()).isAnyOf(1, 2);
+    }
+    gcpChannel.processChannelStateChange(0, ConnectivityState.READY);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(3);
+
+    // All channels reach the low watermark, so the pool grows.
+    for (int i = 0; i < streams.length; i++) {
+      for (int j = streams[i]; j < lowWatermark; j++) {
+        gcpChannel.channelRefs.get(i).activeStreamsCountIncr();
+      }
+    }
+    ChannelRef newChannel = gcpChannel.getChannelRef(null);
+    assertThat(newChannel.getId()).isEqualTo(3);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(4);
+  }
+
+  @Test
+  public void testGetChannelRefPeakEwma() {
+    resetGcpChannel();
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(2)
+        .setChannelPickStrategy(ChannelPickStrategy.PEAK_EWMA)
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder().withChannelPoolOptions(poolOptions).build())
+                .build();
+    ChannelRef slow = gcpChannel.new ChannelRef(builder.build(), 0, 0, 1);
+    ChannelRef fast = gcpChannel.new ChannelRef(builder.build(), 1, 0, 21);
+    gcpChannel.channelRefs.add(slow);
+    gcpChannel.channelRefs.add(fast);
+
+    // Channel 0 completes a call in 1 second, channel 1 in 1 millisecond.
+    long now = System.nanoTime();
+    slow.activeStreamsCountDecr(now - TimeUnit.SECONDS.toNanos(1), Status.OK, false);
+    fast.activeStreamsCountDecr(now - TimeUnit.MILLISECONDS.toNanos(1), Status.OK, false);
+
+    // Even with 20 active streams the fast channel is preferred over the idle slow one.
+    for (int i = 0; i < 10; i++) {
+      assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    }
+
+    // A single slow call on the fast channel moves traffic away from it immediately.
+    fast.activeStreamsCountDecr(System.nanoTime() - TimeUnit.SECONDS.toNanos(2), Status.OK, false);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+
+    // Cancellations from the client side do not affect the latency average.
+    slow.activeStreamsCountIncr();
+    slow.activeStreamsCountDecr(
+        System.nanoTime() - TimeUnit.SECONDS.toNanos(10), Status.CANCELLED, true);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+  }
+
+  @Test
+  public void testGetChannelRefPeakEwmaHangingCalls() throws InterruptedException {
+    resetGcpChannel();
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(3)
+        .setChannelPicker(ChannelPickers.peakEwma(Duration.ofMillis(100)))
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder().withChannelPoolOptions(poolOptions).build())
+                .build();
+    // Calls of channel 0 never complete, channel 1 completes its calls in 1 millisecond.
+    ChannelRef hanging = gcpChannel.new ChannelRef(builder.build(), 0, 0, 10);
+    ChannelRef healthy = gcpChannel.new ChannelRef(builder.build(), 1, 0, 1);
+    gcpChannel.channelRefs.add(hanging);
+    gcpChannel.channelRefs.add(healthy);
+    healthy.activeStreamsCountDecr(
+        System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1), Status.OK, false);
+
+    // The unknown latency of a channel with active streams does not make it the cheapest.
+    for (int i = 0; i < 10; i++) {
+      assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    }
+
+    // Neither does the latency decayed since the last completed call.
+    hanging.activeStreamsCountIncr();
+    hanging.activeStreamsCountDecr(
+        System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1), Status.OK, false);
+    TimeUnit.MILLISECONDS.sleep(500);
+    healthy.activeStreamsCountIncr();
+    healthy.activeStreamsCountDecr(
+        System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1), Status.OK, false);
+    for (int i = 0; i < 10; i++) {
+      assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    }
+
+    // A channel without active streams and an unknown latency is still tried.
+    ChannelRef added = gcpChannel.new ChannelRef(builder.build(), 2, 0, 0);
+    gcpChannel.channelRefs.add(added);
+    int picked = 0;
+    for (int i = 0; i < 30; i++) {
+      if (gcpChannel.getChannelRef(null) == added) {
+        picked++;
+      }
+    }
+    assertThat(picked).isGreaterThan(0);
+  }
+
+  @Test
+  public void testGetChannelRefThreadAffine() throws Exception {
+    resetGcpChannel();
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(3)
+        .setChannelPickStrategy(ChannelPickStrategy.THREAD_AFFINE)
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(poolOptions)
+                        .withResiliencyOptions(
+                            GcpResiliencyOptions.newBuilder().setNotReadyFallback(true).build())
+                        .build())
+                .build();
+    int[] streams = new int[] {3, 0, 1};
+    for (int i = 0; i < streams.length; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i, 0, streams[i]));
+    }
+
+    // The thread starts with the least busy channel and keeps it while its load is within the
+    // allowed skew from the least busy channel.
+    ChannelRef channelRef = gcpChannel.getChannelRef(null);
+    assertThat(channelRef.getId()).isEqualTo(1);
+    for (int i = 0; i < 6; i++) {
+      channelRef.activeStreamsCountIncr();
+      assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    }
+    // Streams: 3, 6, 1. One more stream exceeds the skew of 5.
+    channelRef.activeStreamsCountIncr();
+    channelRef = gcpChannel.getChannelRef(null);
+    assertThat(channelRef.getId()).isEqualTo(2);
+    for (int i = 0; i < 3; i++) {
+      channelRef.activeStreamsCountIncr();
+    }
+
+    // Streams: 3, 7, 4. Another thread picks the least busy channel, this thread keeps its own.
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertThat(executor.submit(() -> gcpChannel.getChannelRef(null).getId()).get())
+          .isEqualTo(0);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(2);
+
+    // The thread moves away from a channel which is not ready.
+    gcpChannel.processChannelStateChange(2, ConnectivityState.CONNECTING);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+    gcpChannel.processChannelStateChange(2, ConnectivityState.READY);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+
+    // Binding calls are not sticky. Streams: 5, 7, 4.
+    gcpChannel.channelRefs.get(0).activeStreamsCountIncr();
+    gcpChannel.channelRefs.get(0).activeStreamsCountIncr();
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(2);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+  }
+
+  @Test
+  public void testThreadAffinePickerDoesNotRetainPools() throws InterruptedException {
+    ChannelPicker picker = ChannelPickers.threadAffine();
+    WeakReference<ChannelPicker.PoolView> pool = pickFromDiscardedPool(picker);
+    for (int i = 0; i < 100 && pool.get() != null; i++) {
+      System.gc();
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    // The thread's preferred channel does not keep the pool reachable.
+    assertThat(pool.get()).isNull();
+  }
+
+  // Picks a channel of a new pool on the current thread and returns a weak reference to the pool.
+  private static WeakReference<ChannelPicker.PoolView> pickFromDiscardedPool(
+      ChannelPicker picker) {
+    ChannelPicker.ChannelView channel =
+        new ChannelPicker.ChannelView() {
+          @Override
+          public int getId() {
+            return 0;
+          }
+
+          @Override
+          public int getActiveStreamsCount() {
+            return 0;
+          }
+
+          @Override
+          public int getAffinityCount() {
+            return 0;
+          }
+
+          @Override
+          public boolean isReady() {
+            return true;
+          }
+
+          @Override
+          public int getMaxConcurrentStreams() {
+            return GcpManagedChannel.DEFAULT_MAX_STREAM;
+          }
+        };
+    ChannelPicker.PoolView pool =
+        new ChannelPicker.PoolView() {
+          @Override
+          public List<? extends ChannelPicker.ChannelView> getChannels() {
+            return Collections.singletonList(channel);
+          }
+
+          @Override
+          public ChannelPicker.ChannelView getLeastBusyChannel() {
+            return channel;
+          }
+
+          @Override
+          public ChannelPicker.ChannelView getLeastBusyReadyChannel() {
+            return channel;
+          }
+
+          @Override
+          public int getMaxSize() {
+            return 1;
+          }
+
+          @Override
+          public int getStreamsLowWatermark() {
+            return GcpManagedChannel.DEFAULT_MAX_STREAM;
+          }
+        };
+    assertThat(picker.pick(pool)).isSameAs(channel);
+    // The thread sticks to the channel while the pool is alive.
+    assertThat(picker.pick(pool)).isSameAs(channel);
+    return new WeakReference<>(pool);
+  }
+
+  @Test
+  public void testGetChannelRefCustomChannelPicker() {
+    resetGcpChannel();
+    final List<Integer> poolSizes = new ArrayList<>();
+    // Picks the channel with the most bound keys, and the last channel for binding calls.
+    ChannelPicker picker =
+        new ChannelPicker() {
+          @Override
+          public ChannelView pick(PoolView pool) {
+            poolSizes.add(pool.getChannels().size());
+            ChannelView picked = null;
+            for (ChannelView channel : pool.getChannels()) {
+              if (picked == null || channel.getAffinityCount() > picked.getAffinityCount()) {
+                picked = channel;
+              }
+            }
+            return picked;
+          }
+
+          @Override
+          public ChannelView pickForBind(PoolView pool) {
+            return pool.getChannels().get(pool.getChannels().size() - 1);
+          }
+        };
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(4)
+        .setConcurrentStreamsLowWatermark(10)
+        .setChannelPickStrategy(ChannelPickStrategy.POWER_OF_TWO_CHOICES)
+        .setChannelPicker(picker)
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(poolOptions)
+                        .withResiliencyOptions(
+                            GcpResiliencyOptions.newBuilder().setNotReadyFallback(true).build())
+                        .build())
+                .build();
+    int[] affinity = new int[] {1, 5, 3};
+    for (int i = 0; i < affinity.length; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i, affinity[i], i));
+    }
+
+    // The custom picker overrides the strategy for calls without a key and for new keys.
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    assertThat(gcpChannel.getChannelRef("new-key").getId()).isEqualTo(1);
+    assertThat(poolSizes).containsExactly(3, 3);
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(2);
+
+    // A not ready channel returned by the picker is replaced with the least busy ready channel.
+    gcpChannel.processChannelStateChange(1, ConnectivityState.CONNECTING);
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+    gcpChannel.processChannelStateChange(1, ConnectivityState.READY);
+
+    // The pool still grows on its own when all channels reach the low watermark.
+    for (ChannelRef channelRef : gcpChannel.channelRefs) {
+      for (int j = channelRef.getActiveStreamsCount(); j < 10; j++) {
+        channelRef.activeStreamsCountIncr();
+      }
+    }
+    poolSizes.clear();
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(3);
+    assertThat(poolSizes).isEmpty();
+  }
+
+  @Test
+  public void testGetChannelRefForBindLeastAffinity() {
+    resetGcpChannel();
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(4)
+        .setUseLeastAffinityOnBind(true)
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder().withChannelPoolOptions(poolOptions).build())
+                .build();
+
+    // The first bind creates the first channel, the next one creates a new channel because every
+    // channel already has a key.
+    ChannelRef first = gcpChannel.getChannelRefForBind();
+    assertThat(first.getId()).isEqualTo(0);
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(0);
+    gcpChannel.bind(first, Collections.singletonList("key0"));
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(1);
+
+    int[] affinity = new int[] {3, 1, 1};
+    int[] streams = new int[] {0, 5, 2};
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder(poolOptions).setMaxSize(3).build())
+                        .build())
+                .build();
+    for (int i = 0; i < affinity.length; i++) {
+      gcpChannel.channelRefs.add(
+          gcpChannel.new ChannelRef(builder.build(), i, affinity[i], streams[i]));
+    }
+    // Equal number of keys is resolved in favor of the channel with fewer active streams.
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(2);
+
+    // Keys bound to channel 2 move new binds to channel 1 regardless of its active streams.
+    gcpChannel.bind(gcpChannel.channelRefs.get(2), Arrays.asList("key1", "key2"));
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(1);
+
+    // Keys: 3, 4, 3.
+    gcpChannel.bind(gcpChannel.channelRefs.get(1), Arrays.asList("key3", "key4", "key5"));
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(0);
+
+    // After unbinding keys from channel 2 it gets new binds again.
+    gcpChannel.unbind(Arrays.asList("key1", "key2"));
+    assertThat(gcpChannel.getChannelRefForBind().getId()).isEqualTo(2);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(3);
+  }
+
+  @Test
+  public void testAsyncChannelCreation() throws Exception {
+    resetGcpChannel();
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      FakeChannelBuilder fakeBuilder = new FakeChannelBuilder(executorService);
+      gcpChannel =
+          (GcpManagedChannel)
+              GcpManagedChannelBuilder.forDelegateBuilder(fakeBuilder)
+                  .withOptions(
+                      GcpManagedChannelOptions.newBuilder()
+                          .withChannelPoolOptions(
+                              GcpChannelPoolOptions.newBuilder()
+                                  .setMaxSize(2)
+                                  .setConcurrentStreamsLowWatermark(1)
+                                  .setUseAsyncChannelCreation(true)
+                                  .build())
+                          .build())
+                  .build();
+
+      // The first channel is created synchronously.
+      ChannelRef first = gcpChannel.getChannelRef(null);
+      assertThat(first.getId()).isEqualTo(0);
+      first.activeStreamsCountIncr();
+
+      // Reaching the low watermark starts creating a channel in the background while calls keep
+      // using the existing channel.
+      assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+      for (int i = 0; i < 100 && fakeBuilder.channels.size() < 2; i++) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertThat(fakeBuilder.channels.size()).isEqualTo(2);
+      assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(0);
+      assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(1);
+
+      // Only one channel is created at a time.
+      TimeUnit.MILLISECONDS.sleep(50);
+      assertThat(fakeBuilder.channels.size()).isEqualTo(2);
+
+      // The channel joins the pool when it becomes READY.
+      fakeBuilder.channels.get(1).setState(ConnectivityState.CONNECTING);
+      TimeUnit.MILLISECONDS.sleep(50);
+      assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(1);
+      fakeBuilder.channels.get(1).setState(ConnectivityState.READY);
+      for (int i = 0; i < 100 && gcpChannel.getNumberOfChannels() < 2; i++) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(2);
+      assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAsyncChannelCreationReadinessTime() throws Exception {
+    resetGcpChannel();
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      FakeChannelBuilder fakeBuilder = new FakeChannelBuilder(executorService);
+      final FakeMetricRegistry fakeRegistry = new FakeMetricRegistry();
+      long startNanos = System.nanoTime();
+      gcpChannel =
+          (GcpManagedChannel)
+              GcpManagedChannelBuilder.forDelegateBuilder(fakeBuilder)
+                  .withOptions(
+                      GcpManagedChannelOptions.newBuilder()
+                          .withChannelPoolOptions(
+                              GcpChannelPoolOptions.newBuilder()
+                                  .setMaxSize(10)
+                                  .setMinSize(1)
+                                  .setConcurrentStreamsLowWatermark(10)
+                                  .setUseAsyncChannelCreation(true)
+                                  .setAutoscaleInterval(Duration.ofMinutes(1))
+                                  .build())
+                          .withMetricsOptions(
+                              GcpMetricsOptions.newBuilder()
+                                  .withMetricRegistry(fakeRegistry)
+                                  .build())
+                          .build())
+                  .build();
+      ChannelRef channelRef = gcpChannel.channelRefs.get(0);
+      for (int i = 0; i < 10; i++) {
+        channelRef.activeStreamsCountIncr();
+      }
+      gcpChannel.getChannelRef(null);
+      for (int i = 0; i < 100 && fakeBuilder.channels.size() < 2; i++) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertThat(fakeBuilder.channels.size()).isEqualTo(2);
+
+      // The channel becomes READY before it joins the pool, so its monitor never sees it
+      // connecting. Its readiness time is counted from its creation.
+      fakeBuilder.channels.get(1).setState(ConnectivityState.READY);
+      for (int i = 0; i < 100 && gcpChannel.getNumberOfChannels() < 2; i++) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(2);
+      long elapsedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+      MetricsRecord record = fakeRegistry.pollRecord();
+      long maxReadiness =
+          record
+              .getMetrics()
+              .get(GcpMetricsConstants.METRIC_MAX_CHANNEL_READINESS_TIME)
+              .get(0)
+              .value();
+      assertThat(maxReadiness).isAtMost(elapsedMicros);
+
+      // The readiness time does not inflate the autoscaler's prediction horizon, the rising load
+      // gives the same min size as with instantly ready channels.
+      for (int i = 0; i < 10; i++) {
+        channelRef.activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+      }
+      long nowNanos = System.nanoTime();
+      long second = TimeUnit.SECONDS.toNanos(1);
+      gcpChannel.autoscale(nowNanos);
+      runCalls(channelRef, 10, 0);
+      gcpChannel.autoscale(nowNanos += second);
+      runCalls(channelRef, 20, 2);
+      gcpChannel.autoscale(nowNanos += second);
+      assertThat(gcpChannel.getMinSize()).isEqualTo(3);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWarmUp() throws Exception {
+    resetGcpChannel();
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      FakeChannelBuilder fakeBuilder = new FakeChannelBuilder(executorService);
+      gcpChannel =
+          (GcpManagedChannel)
+              GcpManagedChannelBuilder.forDelegateBuilder(fakeBuilder)
+                  .withOptions(
+                      GcpManagedChannelOptions.newBuilder()
+                          .withChannelPoolOptions(
+                              GcpChannelPoolOptions.newBuilder().setMaxSize(3).build())
+                          .build())
+                  .build();
+
+      // Channels are created right away and the future completes when they are READY.
+      CompletableFuture<Void> warmUp = gcpChannel.warmUp(2, Duration.ofSeconds(10));
+      for (int i = 0; i < 100 && gcpChannel.getNumberOfChannels() < 2; i++) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(2);
+      assertThat(fakeBuilder.channels.size()).isEqualTo(2);
+      fakeBuilder.channels.get(0).setState(ConnectivityState.READY);
+      TimeUnit.MILLISECONDS.sleep(50);
+      assertThat(warmUp.isDone()).isFalse();
+      fakeBuilder.channels.get(1).setState(ConnectivityState.READY);
+      warmUp.get(1, TimeUnit.SECONDS);
+
+      // Already READY channels complete the warm up immediately.
+      assertThat(gcpChannel.warmUp(1, Duration.ofSeconds(10)).isDone()).isTrue();
+
+      // The future fails if not enough channels become READY in time.
+      CompletableFuture<Void> timedOut = gcpChannel.warmUp(3, Duration.ofMillis(50));
+      try {
+        timedOut.get(1, TimeUnit.SECONDS);
+        Assert.fail("Warm up must time out.");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+      }
+      assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(3);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testReclaimIdleChannels() throws Exception {
+    resetGcpChannel();
+    GcpChannelPoolOptions poolOptions = GcpChannelPoolOptions.newBuilder()
+        .setMaxSize(5)
+        .setConcurrentStreamsLowWatermark(10)
+        .setChannelIdleTimeout(Duration.ofMillis(100))
+        .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder().withChannelPoolOptions(poolOptions).build())
+                .build();
+    int[] streams = new int[] {0, 3, 0, 0};
+    List<ChannelRef> refs = new ArrayList<>();
+    for (int i = 0; i < streams.length; i++) {
+      ChannelRef ref = gcpChannel.new ChannelRef(builder.build(), i, 0, 0);
+      for (int j = 0; j < streams[i]; j++) {
+        ref.activeStreamsCountIncr();
+      }
+      refs.add(ref);
+      gcpChannel.channelRefs.add(ref);
+    }
+    gcpChannel.bind(refs.get(2), Collections.singletonList("key"));
+
+    // Channels without streams and keys are removed one by one.
+    for (int i = 0; i < 200 && gcpChannel.getNumberOfChannels() > 2; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(2);
+    assertThat(gcpChannel.channelRefs).containsExactly(refs.get(1), refs.get(2));
+    assertThat(refs.get(0).isReady()).isFalse();
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(2);
+    // Removed channels are shut down gracefully later.
+    for (int i = 0; i < 200 && !refs.get(0).getChannel().isShutdown(); i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(refs.get(0).getChannel().isShutdown()).isTrue();
+    assertThat(refs.get(3).getChannel().isShutdown()).isTrue();
+
+    // The pool does not shrink while the remaining channel would be over a half of the low
+    // watermark.
+    for (int i = 0; i < 3; i++) {
+      refs.get(1).activeStreamsCountIncr();
+    }
+    gcpChannel.unbind(Collections.singletonList("key"));
+    TimeUnit.MILLISECONDS.sleep(300);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(2);
+
+    // Streams: 5, 0.
+    refs.get(1).activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    for (int i = 0; i < 200 && gcpChannel.getNumberOfChannels() > 1; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(gcpChannel.channelRefs).containsExactly(refs.get(1));
+
+    // The last channel is never removed and ids of removed channels are not reused.
+    for (int i = 5; i < 10; i++) {
+      refs.get(1).activeStreamsCountIncr();
+    }
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(4);
+    for (int i = 0; i < 10; i++) {
+      refs.get(1).activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    }
+    for (int i = 0; i < 200 && gcpChannel.getNumberOfChannels() > 1; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    TimeUnit.MILLISECONDS.sleep(300);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(1);
+  }
+
+  @Test
+  public void testEnterIdle() {
+    resetGcpChannel();
+    final AtomicInteger idleCounter = new AtomicInteger();
+    for (int i = 0; i < 3; i++) {
+      gcpChannel.channelRefs.add(
+          gcpChannel.new ChannelRef(new FakeIdleCountingManagedChannel(idleCounter), i));
+    }
+    gcpChannel.enterIdle();
+    assertThat(idleCounter.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testPoolIdleTimeout() throws Exception {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setMinSize(1)
+                                .setPoolIdleTimeout(Duration.ofMillis(100))
+                                .build())
+                        .build())
+                .build();
+    final AtomicInteger idleCounter = new AtomicInteger();
+    for (int i = 1; i < 3; i++) {
+      gcpChannel.channelRefs.add(
+          gcpChannel.new ChannelRef(new FakeIdleCountingManagedChannel(idleCounter), i));
+    }
+
+    // All channels except the minimum go idle once after the timeout.
+    for (int i = 0; i < 100 && idleCounter.get() < 2; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    TimeUnit.MILLISECONDS.sleep(300);
+    assertThat(idleCounter.get()).isEqualTo(2);
+
+    // The pool does not go idle while there are active calls.
+    ChannelRef channelRef = gcpChannel.channelRefs.get(1);
+    channelRef.activeStreamsCountIncr();
+    TimeUnit.MILLISECONDS.sleep(300);
+    assertThat(idleCounter.get()).isEqualTo(2);
+
+    // And goes idle again after the timeout since the last call.
+    channelRef.activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    for (int i = 0; i < 100 && idleCounter.get() < 4; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    TimeUnit.MILLISECONDS.sleep(300);
+    assertThat(idleCounter.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void testAutoscale() {
+    resetGcpChannel();
+    final FakeMetricRegistry fakeRegistry = new FakeMetricRegistry();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setMaxSize(10)
+                                .setMinSize(1)
+                                .setConcurrentStreamsLowWatermark(10)
+                                // Scheduled runs do not interfere, the test drives autoscaling.
+                                .setAutoscaleInterval(Duration.ofMinutes(1))
+                                .build())
+                        .withMetricsOptions(
+                            GcpMetricsOptions.newBuilder().withMetricRegistry(fakeRegistry).build())
+                        .build())
+                .build();
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(1);
+    ChannelRef channelRef = gcpChannel.channelRefs.get(0);
+    long nowNanos = System.nanoTime();
+    long second = TimeUnit.SECONDS.toNanos(1);
+    gcpChannel.autoscale(nowNanos);
+
+    // Steady 10 calls per second.
+    runCalls(channelRef, 10, 0);
+    gcpChannel.autoscale(nowNanos += second);
+    assertThat(gcpChannel.getMinSize()).isEqualTo(1);
+    assertThat(gcpChannel.getStreamsLowWatermark()).isEqualTo(10);
+
+    // The rate of new calls is rising, so channels for the predicted streams are created ahead
+    // and the pool grows on demand earlier.
+    runCalls(channelRef, 20, 2);
+    gcpChannel.autoscale(nowNanos += second);
+    assertThat(gcpChannel.getMinSize()).isEqualTo(3);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(3);
+    assertThat(gcpChannel.getStreamsLowWatermark()).isEqualTo(1);
+
+    // The load falls, the min size goes down by one channel at a time.
+    for (int i = 0; i < 2; i++) {
+      channelRef.activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    }
+    gcpChannel.autoscale(nowNanos += second);
+    assertThat(gcpChannel.getMinSize()).isEqualTo(2);
+    assertThat(gcpChannel.getStreamsLowWatermark()).isEqualTo(10);
+    gcpChannel.autoscale(nowNanos += second);
+    assertThat(gcpChannel.getMinSize()).isEqualTo(1);
+    gcpChannel.autoscale(nowNanos += second);
+    assertThat(gcpChannel.getMinSize()).isEqualTo(1);
+    // Channels are not removed without a channel idle timeout.
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(3);
+
+    MetricsRecord record = fakeRegistry.pollRecord();
+    assertThat(
+            record.getMetrics().get(GcpMetricsConstants.METRIC_AUTOSCALE_MIN_SIZE).get(0).value())
+        .isEqualTo(1L);
+    assertThat(
+            record.getMetrics().get(GcpMetricsConstants.METRIC_NUM_AUTOSCALE_UPS).get(0).value())
+        .isEqualTo(1L);
+    assertThat(
+            record.getMetrics().get(GcpMetricsConstants.METRIC_NUM_AUTOSCALE_DOWNS).get(0).value())
+        .isEqualTo(2L);
+  }
+
+  @Test
+  public void testAutoscaledMinSizeIsNotReclaimed() throws Exception {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setMaxSize(10)
+                                .setMinSize(1)
+                                .setConcurrentStreamsLowWatermark(10)
+                                .setChannelIdleTimeout(Duration.ofMillis(100))
+                                .setAutoscaleInterval(Duration.ofMinutes(1))
+                                .build())
+                        .build())
+                .build();
+    ChannelRef channelRef = gcpChannel.channelRefs.get(0);
+    // Remove a few idle channels, so that ids of new channels are above the min size.
+    for (int i = 1; i < 3; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i));
+    }
+    for (int i = 0; i < 200 && gcpChannel.getNumberOfChannels() > 1; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(gcpChannel.channelRefs).containsExactly(channelRef);
+
+    long nowNanos = System.nanoTime();
+    long second = TimeUnit.SECONDS.toNanos(1);
+    gcpChannel.autoscale(nowNanos);
+    runCalls(channelRef, 10, 0);
+    gcpChannel.autoscale(nowNanos += second);
+    runCalls(channelRef, 20, 2);
+    gcpChannel.autoscale(nowNanos += second);
+    int raisedMinSize = gcpChannel.getMinSize();
+    assertThat(raisedMinSize).isAtLeast(3);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(raisedMinSize);
+    assertThat(gcpChannel.channelRefs.get(1).getId()).isEqualTo(3);
+
+    // The channels of the raised min size are kept although they are idle.
+    TimeUnit.MILLISECONDS.sleep(300);
+    for (int i = 0; i < 3; i++) {
+      gcpChannel.reclaimIdleChannels();
+    }
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(raisedMinSize);
+    assertThat(gcpChannel.channelRefs.get(0)).isSameAs(channelRef);
+
+    // When the min size goes down, the newest idle channel is removed.
+    List<ChannelRef> channels = new ArrayList<>(gcpChannel.channelRefs);
+    for (int i = 0; i < 2; i++) {
+      channelRef.activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    }
+    gcpChannel.autoscale(nowNanos += second);
+    assertThat(gcpChannel.getMinSize()).isEqualTo(raisedMinSize - 1);
+    for (int i = 0; i < 3; i++) {
+      gcpChannel.reclaimIdleChannels();
+    }
+    assertThat(gcpChannel.channelRefs)
+        .containsExactlyElementsIn(channels.subList(0, raisedMinSize - 1))
+        .inOrder();
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testAutoscaleWithPoolSize() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .setPoolSize(3)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setMaxSize(20)
+                                .setMinSize(1)
+                                .setConcurrentStreamsLowWatermark(10)
+                                .setAutoscaleInterval(Duration.ofMinutes(1))
+                                .build())
+                        .build())
+                .build();
+    assertThat(gcpChannel.getMaxSize()).isEqualTo(3);
+    ChannelRef channelRef = gcpChannel.channelRefs.get(0);
+    long nowNanos = System.nanoTime();
+    long second = TimeUnit.SECONDS.toNanos(1);
+    gcpChannel.autoscale(nowNanos);
+    runCalls(channelRef, 10, 0);
+    gcpChannel.autoscale(nowNanos += second);
+    runCalls(channelRef, 100, 200);
+    gcpChannel.autoscale(nowNanos += second);
+    assertThat(gcpChannel.getMinSize()).isEqualTo(3);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(3);
+
+    // The autoscaler targets the pool size, not the max size of the options, so the min size
+    // goes down as soon as the load falls.
+    for (int i = 0; i < 200; i++) {
+      channelRef.activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    }
+    for (int i = 0; i < 8; i++) {
+      gcpChannel.autoscale(nowNanos += second);
+    }
+    assertThat(gcpChannel.getMinSize()).isEqualTo(1);
+  }
+
+  // Completes the given number of calls on the channel and leaves the given number of calls active.
+  private void runCalls(ChannelRef channelRef, int completed, int active) {
+    for (int i = 0; i < completed + active; i++) {
+      channelRef.activeStreamsCountIncr();
+    }
+    for (int i = 0; i < completed; i++) {
+      channelRef.activeStreamsCountDecr(System.nanoTime(), Status.OK, false);
+    }
+  }
+
+  @Test
+  public void testServerStreamLimit() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setMaxSize(5)
+                                .setUseServerStreamLimit(true)
+                                .build())
+                        .build())
+                .build();
+    ChannelRef channelRef = gcpChannel.new ChannelRef(builder.build(), 0);
+    gcpChannel.channelRefs.add(channelRef);
+    StreamLimitTracker streamLimit = channelRef.streamLimit;
+    assertThat(streamLimit).isNotNull();
+    assertThat(channelRef.getMaxConcurrentStreams())
+        .isEqualTo(GcpManagedChannel.DEFAULT_MAX_STREAM);
+
+    // Streams sent without waiting do not reveal the limit.
+    for (int i = 0; i < 3; i++) {
+      streamLimit.onHeadersSent(0);
+    }
+    assertThat(streamLimit.getLimit()).isEqualTo(0);
+
+    // A stream queued until another stream closed reveals the limit.
+    streamLimit.onStreamClosed();
+    streamLimit.onHeadersSent(StreamLimitTracker.QUEUED_STREAM_NANOS + 1);
+    assertThat(streamLimit.getLimit()).isEqualTo(3);
+    assertThat(channelRef.getMaxConcurrentStreams()).isEqualTo(3);
+
+    // The pool grows when the channel reaches its limit, below the low watermark.
+    for (int i = 0; i < 3; i++) {
+      channelRef.activeStreamsCountIncr();
+    }
+    assertThat(gcpChannel.getChannelRef(null).getId()).isEqualTo(1);
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(2);
+
+    // More concurrent streams raise the limit.
+    streamLimit.onHeadersSent(0);
+    assertThat(streamLimit.getLimit()).isEqualTo(4);
+
+    // The limit is learned again after reconnecting.
+    streamLimit.reset();
+    assertThat(channelRef.getMaxConcurrentStreams())
+        .isEqualTo(GcpManagedChannel.DEFAULT_MAX_STREAM);
+  }
+
+  @Test
+  public void testStreamsLowWatermarkAboveDefaultFromApiConfig() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withApiConfig(
+                    ApiConfig.newBuilder()
+                        .setChannelPool(
+                            ChannelPoolConfig.newBuilder()
+                                .setMaxConcurrentStreamsLowWatermark(200)
+                                .build())
+                        .build())
+                .build();
+    assertThat(gcpChannel.getStreamsLowWatermark()).isEqualTo(200);
+    ChannelRef channelRef = gcpChannel.getChannelRef(null);
+    assertThat(channelRef.getMaxConcurrentStreams()).isEqualTo(200);
+  }
+
+  @Test
+  public void testMethodConfigPatterns() {
+    resetGcpChannel();
+    AffinityConfig bound =
+        AffinityConfig.newBuilder()
+            .setCommand(AffinityConfig.Command.BOUND)
+            .setAffinityKey("name")
+            .build();
+    AffinityConfig bind =
+        AffinityConfig.newBuilder()
+            .setCommand(AffinityConfig.Command.BIND)
+            .setAffinityKey("name")
+            .build();
+    AffinityConfig unbind =
+        AffinityConfig.newBuilder()
+            .setCommand(AffinityConfig.Command.UNBIND)
+            .setAffinityKey("session")
+            .build();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withApiConfig(
+                    ApiConfig.newBuilder()
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/GetSession")
+                                .setAffinity(bound))
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/*")
+                                .setAffinity(bind))
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/GetSession")
+                                .addName("google.*")
+                                .setAffinity(unbind))
+                        .build())
+                .build();
+
+    // The first matching config wins.
+    MethodDescriptor<?, ?> getSession = SpannerGrpc.getGetSessionMethod();
+    assertThat(gcpChannel.getAffinityConfig(getSession)).isEqualTo(bound);
+    assertThat(gcpChannel.methodToAffinity.get(getSession.getFullMethodName())).isEqualTo(bound);
+    // Service pattern.
+    assertThat(gcpChannel.getAffinityConfig(SpannerGrpc.getCreateSessionMethod())).isEqualTo(bind);
+    // Package pattern.
+    MethodDescriptor<?, ?> otherService =
+        getSession.toBuilder().setFullMethodName("google.spanner.admin.v1.Admin/Get").build();
+    assertThat(gcpChannel.getAffinityConfig(otherService)).isEqualTo(unbind);
+    // A pattern matches whole name components only.
+    MethodDescriptor<?, ?> otherPackage =
+        getSession.toBuilder().setFullMethodName("googleapis.Service/Get").build();
+    assertThat(gcpChannel.getAffinityConfig(otherPackage)).isNull();
+
+    // The affinity key is extracted with the config of the pattern.
+    List<String> keys =
+        gcpChannel.checkKeys(
+            Session.newBuilder().setName("session1").build(),
+            false,
+            SpannerGrpc.getCreateSessionMethod());
+    assertThat(keys).containsExactly("session1");
+  }
+
+  @Test
+  public void testHeaderKeyExtractor() {
+    Metadata.Key<String> paramsKey =
+        Metadata.Key.of("x-goog-request-params", Metadata.ASCII_STRING_MARSHALLER);
+    AffinityKeyExtractor.HeaderKeyExtractor extractor =
+        new AffinityKeyExtractor.HeaderKeyExtractor("x-goog-request-params", "session");
+    Metadata headers = new Metadata();
+    assertThat(extractor.extract(headers)).isNull();
+    headers.put(paramsKey, "database=db&session=projects%2Fp%2Fsessions%2Fs1");
+    assertThat(extractor.extract(headers)).isEqualTo("projects/p/sessions/s1");
+
+    headers = new Metadata();
+    headers.put(paramsKey, "session=s2");
+    assertThat(extractor.extract(headers)).isEqualTo("s2");
+    headers = new Metadata();
+    headers.put(paramsKey, "sessions=s3&session=");
+    assertThat(extractor.extract(headers)).isNull();
+
+    // The whole header value is the key.
+    extractor = new AffinityKeyExtractor.HeaderKeyExtractor("x-session", "");
+    headers.put(Metadata.Key.of("x-session", Metadata.ASCII_STRING_MARSHALLER), "s4");
+    assertThat(extractor.extract(headers)).isEqualTo("s4");
+  }
+
+  @Test
+  public void testAffinityKeyFromHeader() {
+    resetGcpChannel();
+    AffinityConfig.Builder affinity =
+        AffinityConfig.newBuilder()
+            .setAffinityKey("name")
+            .setAffinityHeader("x-goog-request-params")
+            .setAffinityHeaderParam("name");
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withApiConfig(
+                    ApiConfig.newBuilder()
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/GetSession")
+                                .setAffinity(affinity.setCommand(AffinityConfig.Command.BOUND)))
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/CreateSession")
+                                .setAffinity(affinity.setCommand(AffinityConfig.Command.BIND)))
+                        .build())
+                .build();
+    Metadata headers = new Metadata();
+    headers.put(
+        Metadata.Key.of("x-goog-request-params", Metadata.ASCII_STRING_MARSHALLER),
+        "name=session1");
+    assertThat(gcpChannel.checkHeaderKey(headers, SpannerGrpc.getGetSessionMethod()))
+        .isEqualTo("session1");
+    // The key of a BIND method comes from the response.
+    assertThat(gcpChannel.checkHeaderKey(headers, SpannerGrpc.getCreateSessionMethod())).isNull();
+
+    // The call is routed by the key when it starts, before any message is sent.
+    ClientCall<GetSessionRequest, Session> call =
+        gcpChannel.newCall(SpannerGrpc.getGetSessionMethod(), CallOptions.DEFAULT);
+    call.start(new ClientCall.Listener<Session>() {}, headers);
+    assertThat(gcpChannel.affinityKeyToChannelRef).containsKey("session1");
+    assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(1);
+    call.cancel("test", null);
+  }
+
+  @Test
+  public void testInvalidAffinityHeader() {
+    resetGcpChannel();
+    for (String header : new String[] {"x-session-bin", "x session"}) {
+      ApiConfig apiConfig =
+          ApiConfig.newBuilder()
+              .addMethod(
+                  MethodConfig.newBuilder()
+                      .addName("google.spanner.v1.Spanner/GetSession")
+                      .setAffinity(
+                          AffinityConfig.newBuilder()
+                              .setCommand(AffinityConfig.Command.BOUND)
+                              .setAffinityKey("name")
+                              .setAffinityHeader(header)))
+              .build();
+      try {
+        GcpManagedChannelBuilder.forDelegateBuilder(builder).withApiConfig(apiConfig).build();
+        Assert.fail("The pool must not be built with the affinity header " + header);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessageThat().contains(header);
+        assertThat(e).hasMessageThat().contains("google.spanner.v1.Spanner/GetSession");
+      }
+    }
+  }
+
+  @Test
+  public void testAffinityKeyCallOption() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withApiConfig(
+                    ApiConfig.newBuilder()
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/GetSession")
+                                .setAffinity(
+                                    AffinityConfig.newBuilder()
+                                        .setCommand(AffinityConfig.Command.BOUND)
+                                        .setAffinityKey("name")))
+                        .build())
+                .build();
+    for (int i = 0; i < 2; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i));
+    }
+    ChannelRef bound = gcpChannel.channelRefs.get(1);
+    gcpChannel.bind(bound, Collections.singletonList("key1"));
+    CallOptions callOptions =
+        CallOptions.DEFAULT.withOption(GcpManagedChannel.AFFINITY_KEY, "key1");
+
+    // The call of a method with an affinity config starts on the bound channel right away.
+    ClientCall<GetSessionRequest, Session> call =
+        gcpChannel.newCall(SpannerGrpc.getGetSessionMethod(), callOptions);
+    call.start(new ClientCall.Listener<Session>() {}, new Metadata());
+    assertThat(bound.getActiveStreamsCount()).isEqualTo(1);
+    call.cancel("test", null);
+    assertThat(bound.getActiveStreamsCount()).isEqualTo(0);
+
+    // So does the call of a method without an affinity config.
+    ClientCall<ExecuteSqlRequest, ResultSet> sqlCall =
+        gcpChannel.newCall(SpannerGrpc.getExecuteSqlMethod(), callOptions);
+    sqlCall.start(new ClientCall.Listener<ResultSet>() {}, new Metadata());
+    assertThat(bound.getActiveStreamsCount()).isEqualTo(1);
+    sqlCall.cancel("test", null);
+    assertThat(gcpChannel.channelRefs.get(0).getActiveStreamsCount()).isEqualTo(0);
+
+    // An unbound key of a method without an affinity config is routed by its hash, not bound.
+    ChannelRef hashed = gcpChannel.getChannelRefForHash("key2");
+    sqlCall =
+        gcpChannel.newCall(
+            SpannerGrpc.getExecuteSqlMethod(),
+            CallOptions.DEFAULT.withOption(GcpManagedChannel.AFFINITY_KEY, "key2"));
+    sqlCall.start(new ClientCall.Listener<ResultSet>() {}, new Metadata());
+    assertThat(hashed.getActiveStreamsCount()).isEqualTo(1);
+    sqlCall.cancel("test", null);
+    assertThat(gcpChannel.affinityKeyToChannelRef).doesNotContainKey("key2");
+  }
+
+  @Test
+  public void testAffinityKeyCallOptionOfBindMethod() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withApiConfig(
+                    ApiConfig.newBuilder()
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/CreateSession")
+                                .setAffinity(
+                                    AffinityConfig.newBuilder()
+                                        .setCommand(AffinityConfig.Command.BIND)
+                                        .setAffinityKey("name")))
+                        .build())
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder().setMaxSize(1).build())
+                        .build())
+                .build();
+    List<RecordingCall<?, ?>> calls = new CopyOnWriteArrayList<>();
+    ChannelRef channelRef = gcpChannel.new ChannelRef(new RecordingManagedChannel(calls), 0);
+    gcpChannel.channelRefs.add(channelRef);
+
+    // The key of the call options is bound together with the key of the response.
+    ClientCall<CreateSessionRequest, Session> call =
+        gcpChannel.newCall(
+            SpannerGrpc.getCreateSessionMethod(),
+            CallOptions.DEFAULT.withOption(GcpManagedChannel.AFFINITY_KEY, "key1"));
+    call.start(new ClientCall.Listener<Session>() {}, new Metadata());
+    assertThat(calls).hasSize(1);
+    calls.get(0).respond(Session.newBuilder().setName("session1").build());
+    calls.get(0).close(Status.OK);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key1")).isSameAs(channelRef);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("session1")).isSameAs(channelRef);
+  }
+
+  @Test
+  public void testAdmissionControl() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    AdmissionController controller =
+        new AdmissionController(
+            2, false, 1, TimeUnit.MILLISECONDS.toNanos(100), () -> scheduler);
+    List<String> events = new CopyOnWriteArrayList<>();
+
+    // Calls over the limit wait in the queue, calls over the queue size are rejected.
+    controller.acquire(new TestAdmission("a", events));
+    controller.acquire(new TestAdmission("b", events));
+    controller.acquire(new TestAdmission("c", events));
+    controller.acquire(new TestAdmission("d", events));
+    assertThat(events)
+        .containsExactly("a admitted", "b admitted", "d RESOURCE_EXHAUSTED")
+        .inOrder();
+    assertThat(controller.getQueueSize()).isEqualTo(1);
+
+    // A completed call admits the next waiting call.
+    controller.release(Status.OK);
+    assertThat(events).hasSize(4);
+    assertThat(events.get(3)).isEqualTo("c admitted");
+    assertThat(controller.getInFlight()).isEqualTo(2);
+
+    // A call waiting longer than the max wait is rejected.
+    controller.acquire(new TestAdmission("e", events));
+    for (int i = 0; i < 100 && events.size() < 5; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(events.get(4)).isEqualTo("e RESOURCE_EXHAUSTED");
+
+    // A removed (cancelled) call is not admitted.
+    TestAdmission f = new TestAdmission("f", events);
+    controller.acquire(f);
+    assertThat(controller.remove(f)).isTrue();
+    controller.release(Status.OK);
+    assertThat(events).hasSize(5);
+    assertThat(controller.getInFlight()).isEqualTo(1);
+
+    assertThat(controller.getRejectedCalls()).isEqualTo(2);
+    assertThat(controller.getAndResetMaxQueueDepth()).isEqualTo(1);
+    assertThat(controller.getAndResetMaxWaitMicros()).isAtLeast(100000);
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testAdmissionControlDeadline() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    AdmissionController controller =
+        new AdmissionController(1, false, 10, TimeUnit.SECONDS.toNanos(10), () -> scheduler);
+    List<String> events = new CopyOnWriteArrayList<>();
+    controller.acquire(new TestAdmission("a", events));
+
+    // A waiting call fails when its deadline expires before the max wait.
+    controller.acquire(
+        new TestAdmission("b", events), Deadline.after(50, TimeUnit.MILLISECONDS));
+    for (int i = 0; i < 100 && events.size() < 2; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(events).containsExactly("a admitted", "b DEADLINE_EXCEEDED").inOrder();
+    assertThat(controller.getQueueSize()).isEqualTo(0);
+
+    // A call with an expired deadline is not queued.
+    controller.acquire(new TestAdmission("c", events), Deadline.after(0, TimeUnit.MILLISECONDS));
+    assertThat(events.get(2)).isEqualTo("c DEADLINE_EXCEEDED");
+    assertThat(controller.getQueueSize()).isEqualTo(0);
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testQueuedCallDeadlineAndCancellation() throws Exception {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withResiliencyOptions(
+                            GcpResiliencyOptions.newBuilder().withAdmissionControl(1, 10).build())
+                        .build())
+                .build();
+    List<RecordingCall<?, ?>> calls = new CopyOnWriteArrayList<>();
+    gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(new RecordingManagedChannel(calls), 0));
+    List<String> events = new CopyOnWriteArrayList<>();
+    ClientCall<GetSessionRequest, Session> running =
+        gcpChannel.newCall(SpannerGrpc.getGetSessionMethod(), CallOptions.DEFAULT);
+    running.start(new RecordingListener<>(events), new Metadata());
+    assertThat(calls).hasSize(1);
+
+    // A queued call is closed when its deadline expires, although it never reached a channel.
+    ClientCall<GetSessionRequest, Session> call =
+        gcpChannel.newCall(
+            SpannerGrpc.getGetSessionMethod(),
+            CallOptions.DEFAULT.withDeadlineAfter(50, TimeUnit.MILLISECONDS));
+    call.start(new RecordingListener<>(events), new Metadata());
+    for (int i = 0; i < 100 && events.isEmpty(); i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(events).containsExactly("close DEADLINE_EXCEEDED");
+
+    // A queued call is closed when its context is cancelled.
+    Context.CancellableContext context = Context.current().withCancellation();
+    context.run(
+        () -> {
+          ClientCall<GetSessionRequest, Session> contextCall =
+              gcpChannel.newCall(SpannerGrpc.getGetSessionMethod(), CallOptions.DEFAULT);
+          contextCall.start(new RecordingListener<>(events), new Metadata());
+        });
+    context.cancel(null);
+    for (int i = 0; i < 100 && events.size() < 2; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertThat(events).containsExactly("close DEADLINE_EXCEEDED", "close CANCELLED").inOrder();
+    // The waiting calls never reached a channel.
+    assertThat(calls).hasSize(1);
+    running.cancel("test", null);
+  }
+
+  @Test
+  public void testAdmissionControlAdaptiveLimit() {
+    AdmissionController controller = new AdmissionController(10, true, 0, 0, () -> null);
+    List<String> events = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      controller.acquire(new TestAdmission("call", events));
+    }
+    assertThat(controller.getInFlight()).isEqualTo(10);
+
+    // An overloaded server lowers the limit.
+    controller.release(Status.UNAVAILABLE);
+    assertThat(controller.getLimit()).isEqualTo(9);
+    controller.acquire(new TestAdmission("call", events));
+    assertThat(events.get(events.size() - 1)).isEqualTo("call RESOURCE_EXHAUSTED");
+
+    // Successful calls while the limit is used raise the limit up to the max.
+    for (int i = 0; i < 100; i++) {
+      controller.release(Status.OK);
+      controller.acquire(new TestAdmission("call", events));
+    }
+    assertThat(controller.getLimit()).isEqualTo(10);
+    assertThat(controller.getInFlight()).isEqualTo(9);
+
+    // Calls in flight failing for the same overload lower the limit only once.
+    for (int i = 0; i < 5; i++) {
+      controller.release(Status.DEADLINE_EXCEEDED);
+    }
+    assertThat(controller.getLimit()).isEqualTo(9);
+    for (int i = 0; i < 4; i++) {
+      controller.release(Status.OK);
+    }
+    assertThat(controller.getInFlight()).isEqualTo(0);
+
+    // A failure of a call started after that lowers the limit again.
+    controller.acquire(new TestAdmission("call", events));
+    controller.release(Status.RESOURCE_EXHAUSTED);
+    assertThat(controller.getLimit()).isEqualTo(8);
+  }
+
+  @Test
+  public void testMemoryBudget() {
+    MemoryBudget budget = new MemoryBudget(100);
+    List<String> events = new CopyOnWriteArrayList<>();
+    budget.acquire(60);
+    assertThat(budget.isExhausted()).isFalse();
+    budget.acquire(60);
+    assertThat(budget.isExhausted()).isTrue();
+    budget.whenAvailable(() -> events.add("first"));
+    budget.whenAvailable(() -> events.add("second"));
+    assertThat(events).isEmpty();
+
+    // Still above the budget.
+    budget.release(10);
+    assertThat(events).isEmpty();
+
+    // Waiters run once the usage drops below the budget.
+    budget.release(30);
+    assertThat(budget.getUsedBytes()).isEqualTo(80);
+    assertThat(events).containsExactly("first", "second");
+    assertThat(budget.getAndResetMaxUsedBytes()).isEqualTo(120);
+    assertThat(budget.getAndResetMaxUsedBytes()).isEqualTo(80);
+
+    // A callback runs right away if the budget is available.
+    budget.whenAvailable(() -> events.add("third"));
+    assertThat(events).containsExactly("first", "second", "third");
+    budget.release(80);
+    assertThat(events).hasSize(3);
+    assertThat(budget.getUsedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testHedgingController() {
+    final String method = "google.spanner.v1.Spanner/GetSession";
+    HedgingController controller =
+        new HedgingController(90, 10, TimeUnit.MILLISECONDS.toNanos(1));
+
+    // Not enough latencies to hedge.
+    assertThat(controller.getHedgingDelayNanos(method)).isEqualTo(-1);
+    for (int i = 1; i < HedgingController.MIN_SAMPLES; i++) {
+      controller.recordLatency(method, TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    assertThat(controller.getHedgingDelayNanos(method)).isEqualTo(-1);
+
+    // 90% of calls take 10 ms, the delay is the upper bound of the bucket of 10 ms.
+    for (int i = 0; i < HedgingController.MIN_SAMPLES / 10; i++) {
+      controller.recordLatency(method, TimeUnit.MILLISECONDS.toNanos(100));
+    }
+    long delayNanos = controller.getHedgingDelayNanos(method);
+    assertThat(delayNanos).isAtLeast(TimeUnit.MILLISECONDS.toNanos(10));
+    assertThat(delayNanos).isAtMost(TimeUnit.MILLISECONDS.toNanos(13));
+    assertThat(controller.getHedgingDelayNanos("other/Method")).isEqualTo(-1);
+
+    // The min delay applies to fast methods.
+    for (int i = 0; i < HedgingController.MIN_SAMPLES; i++) {
+      controller.recordLatency("fast/Method", 100);
+    }
+    assertThat(controller.getHedgingDelayNanos("fast/Method"))
+        .isEqualTo(TimeUnit.MILLISECONDS.toNanos(1));
+
+    // Every 10th call may be hedged.
+    while (controller.tryAcquireHedge()) {}
+    for (int i = 0; i < 9; i++) {
+      controller.getHedgingDelayNanos(method);
+    }
+    assertThat(controller.tryAcquireHedge()).isFalse();
+    controller.getHedgingDelayNanos(method);
+    assertThat(controller.tryAcquireHedge()).isTrue();
+    assertThat(controller.tryAcquireHedge()).isFalse();
+
+    // The saved up hedges are capped.
+    for (int i = 0; i < 1000; i++) {
+      controller.getHedgingDelayNanos(method);
+    }
+    int hedges = 0;
+    while (controller.tryAcquireHedge()) {
+      hedges++;
+    }
+    assertThat(hedges).isEqualTo(HedgingController.MAX_HEDGE_BURST);
+    controller.hedgeWon();
+    assertThat(controller.getHedgesWon()).isEqualTo(1);
+  }
+
+  @Test
+  public void testHedgedCall() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      HedgingPool pool = new HedgingPool();
+      GcpClientCall.HedgingGcpClientCall<GetSessionRequest, Session> call = pool.newCall(scheduler);
+      List<String> events = new CopyOnWriteArrayList<>();
+      long startNanos = System.nanoTime();
+      call.start(new RecordingListener<>(events), new Metadata());
+      call.request(1);
+      call.sendMessage(GetSessionRequest.getDefaultInstance());
+      call.halfClose();
+      assertThat(pool.calls).hasSize(1);
+      RecordingCall<?, ?> primary = pool.calls.get(0);
+      assertThat(primary.events).containsExactly("start", "request 1", "message", "halfClose");
+
+      // The hedge fires after the delay on another channel and replays the call.
+      pool.awaitHedge();
+      assertThat(System.nanoTime() - startNanos).isAtLeast(HedgingPool.DELAY_NANOS);
+      assertThat(pool.calls).hasSize(2);
+      RecordingCall<?, ?> hedge = pool.calls.get(1);
+      assertThat(hedge.channel).isNotSameAs(primary.channel);
+      assertThat(hedge.events).containsExactly("start", "request 1", "message", "halfClose");
+
+      // The first response commits its attempt and cancels the other one.
+      hedge.respond(Session.getDefaultInstance());
+      assertThat(events).containsExactly("message");
+      primary.awaitEvent("cancel");
+      assertThat(hedge.events).doesNotContain("cancel");
+      assertThat(pool.controller.getHedgesWon()).isEqualTo(1);
+
+      // The close of the loser is suppressed, the close of the winner is delivered.
+      primary.close(Status.CANCELLED);
+      assertThat(events).containsExactly("message");
+      hedge.close(Status.OK);
+      assertThat(events).containsExactly("message", "close OK").inOrder();
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testHedgedCallCancel() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      HedgingPool pool = new HedgingPool();
+      GcpClientCall.HedgingGcpClientCall<GetSessionRequest, Session> call = pool.newCall(scheduler);
+      List<String> events = new CopyOnWriteArrayList<>();
+      call.start(new RecordingListener<>(events), new Metadata());
+      call.request(1);
+      call.sendMessage(GetSessionRequest.getDefaultInstance());
+      call.halfClose();
+      pool.awaitHedge();
+      assertThat(pool.calls).hasSize(2);
+
+      // A cancel of the call by the client cancels both attempts.
+      call.cancel("Cancelled by the client.", null);
+      pool.calls.get(0).awaitEvent("cancel");
+      pool.calls.get(1).awaitEvent("cancel");
+
+      // A call cancelled before the hedging delay is not hedged.
+      pool.calls.clear();
+      call = pool.newCall(scheduler);
+      call.start(new RecordingListener<>(events), new Metadata());
+      call.cancel("Cancelled by the client.", null);
+      TimeUnit.NANOSECONDS.sleep(3 * HedgingPool.DELAY_NANOS);
+      assertThat(pool.calls).hasSize(1);
+      assertThat(pool.calls.get(0).events).containsExactly("start", "cancel").inOrder();
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  // A pool of two channels making recorded calls, with calls of GetSession hedged after 50 ms.
+  private final class HedgingPool {
+    static final long DELAY_NANOS = 50_000_000;
+    final List<RecordingCall<?, ?>> calls = new CopyOnWriteArrayList<>();
+    final HedgingController controller = new HedgingController(90, 100, 0);
+
+    HedgingPool() {
+      resetGcpChannel();
+      gcpChannel =
+          (GcpManagedChannel)
+              GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                  .withOptions(
+                      GcpManagedChannelOptions.newBuilder()
+                          .withChannelPoolOptions(
+                              GcpChannelPoolOptions.newBuilder().setMaxSize(2).build())
+                          .build())
+                  .build();
+      for (int i = 0; i < 2; i++) {
+        gcpChannel.channelRefs.add(
+            gcpChannel.new ChannelRef(new RecordingManagedChannel(calls), i));
+      }
+      for (int i = 0; i < HedgingController.MIN_SAMPLES; i++) {
+        controller.recordLatency(
+            SpannerGrpc.getGetSessionMethod().getFullMethodName(), DELAY_NANOS);
+      }
+    }
+
+    // Waits until the hedged attempt has started and replayed the half-close.
+    void awaitHedge() throws InterruptedException {
+      for (int i = 0; i < 100; i++) {
+        if (calls.size() == 2 && calls.get(1).events.contains("halfClose")) {
+          return;
+        }
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+    }
+
+    GcpClientCall.HedgingGcpClientCall<GetSessionRequest, Session> newCall(
+        ScheduledExecutorService scheduler) {
+      return new GcpClientCall.HedgingGcpClientCall<>(
+          gcpChannel,
+          controller,
+          () -> scheduler,
+          SpannerGrpc.getGetSessionMethod(),
+          CallOptions.DEFAULT);
+    }
+  }
+
+  private static final class RecordingListener<RespT> extends ClientCall.Listener<RespT> {
+    private final List<String> events;
+
+    RecordingListener(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public void onMessage(RespT message) {
+      events.add("message");
+    }
+
+    @Override
+    public void onClose(Status status, Metadata trailers) {
+      events.add("close " + status.getCode());
+    }
+  }
+
+  @Test
+  public void testHedgeChannelRef() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withResiliencyOptions(
+                            GcpResiliencyOptions.newBuilder()
+                                .setNotReadyFallback(true)
+                                .withHedging(95, 5)
+                                .build())
+                        .build())
+                .build();
+    for (int i = 0; i < 3; i++) {
+      ChannelRef channelRef = gcpChannel.new ChannelRef(builder.build(), i);
+      gcpChannel.channelRefs.add(channelRef);
+    }
+    ChannelRef primary = gcpChannel.channelRefs.get(0);
+    gcpChannel.channelRefs.get(1).activeStreamsCountIncr();
+    // The least busy channel other than the primary.
+    assertThat(gcpChannel.getHedgeChannelRef(primary).getId()).isEqualTo(2);
+
+    // Only ready channels are used.
+    gcpChannel.processChannelStateChange(2, ConnectivityState.CONNECTING);
+    assertThat(gcpChannel.getHedgeChannelRef(primary).getId()).isEqualTo(1);
+    gcpChannel.processChannelStateChange(1, ConnectivityState.TRANSIENT_FAILURE);
+    assertThat(gcpChannel.getHedgeChannelRef(primary)).isNull();
+  }
+
+  @Test
+  public void testHashedFallback() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withResiliencyOptions(
+                            GcpResiliencyOptions.newBuilder()
+                                .setNotReadyFallback(true)
+                                .setHashedFallback(true)
+                                .build())
+                        .build())
+                .build();
+    for (int i = 0; i < 4; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i));
+    }
+    ChannelRef broken = gcpChannel.channelRefs.get(0);
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 400; i++) {
+      keys.add("key" + i);
+    }
+    gcpChannel.bind(broken, keys);
+
+    // The keys of the broken channel are spread evenly over the ready channels.
+    gcpChannel.processChannelStateChange(0, ConnectivityState.TRANSIENT_FAILURE);
+    Map<String, ChannelRef> fallbacks = new HashMap<>();
+    Map<ChannelRef, Integer> keysPerChannel = new HashMap<>();
+    for (String key : keys) {
+      ChannelRef channelRef = gcpChannel.getChannelRef(key);
+      assertThat(channelRef).isNotSameAs(broken);
+      assertThat(gcpChannel.getChannelRef(key)).isSameAs(channelRef);
+      fallbacks.put(key, channelRef);
+      keysPerChannel.merge(channelRef, 1, Integer::sum);
+    }
+    assertThat(keysPerChannel).hasSize(3);
+    for (int count : keysPerChannel.values()) {
+      assertThat(count).isGreaterThan(80);
+    }
+
+    // Only the keys of a fallback channel which breaks move.
+    ChannelRef brokenFallback = gcpChannel.channelRefs.get(1);
+    gcpChannel.processChannelStateChange(1, ConnectivityState.TRANSIENT_FAILURE);
+    for (String key : keys) {
+      ChannelRef channelRef = gcpChannel.getChannelRef(key);
+      assertThat(channelRef).isNotSameAs(brokenFallback);
+      if (fallbacks.get(key) != brokenFallback) {
+        assertThat(channelRef).isSameAs(fallbacks.get(key));
+      }
+    }
+
+    // The keys return once the channel recovers and stay bound to it meanwhile.
+    gcpChannel.processChannelStateChange(0, ConnectivityState.READY);
+    for (String key : keys) {
+      assertThat(gcpChannel.getChannelRef(key)).isSameAs(broken);
+    }
+    assertThat(broken.getAffinityCount()).isEqualTo(400);
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(400);
+  }
+
+  private static class TestAdmission extends AdmissionController.Admission {
+    private final String name;
+    private final List<String> events;
+
+    TestAdmission(String name, List<String> events) {
+      this.name = name;
+      this.events = events;
+    }
+
+    @Override
+    void admit() {
+      events.add(name + " admitted");
+    }
+
+    @Override
+    void reject(Status status) {
+      events.add(name + " " + status.getCode());
+    }
+  }
+
   private void assertFallbacksMetric(
       FakeMetricRegistry fakeRegistry, long successes, long failures) {
     MetricsRecord record = fakeRegistry.pollRecord();
@@ -600,6 +2392,471 @@ public final class GcpManagedChannelTest {
     assertEquals(0, gcpChannel.affinityKeyToChannelRef.size());
   }
 
+  @Test
+  public void testCompactAffinityStore() {
+    CompactAffinityStore store = new CompactAffinityStore();
+    assertThat(store.putIfAbsent("key1", 1)).isEqualTo(-1);
+    assertThat(store.putIfAbsent("key1", 2)).isEqualTo(1);
+    assertThat(store.get("key1")).isEqualTo(1);
+    assertThat(store.get("key2")).isEqualTo(-1);
+    assertThat(store.size()).isEqualTo(1);
+    assertThat(store.remove("key1")).isEqualTo(1);
+    assertThat(store.remove("key1")).isEqualTo(-1);
+    assertThat(store.get("key1")).isEqualTo(-1);
+    assertThat(store.size()).isEqualTo(0);
+    // The slot of an unbound key is reused.
+    assertThat(store.putIfAbsent("key1", 0)).isEqualTo(-1);
+    assertThat(store.get("key1")).isEqualTo(0);
+
+    // Hashes landing in the same slot are probed linearly.
+    int capacity = store.capacity();
+    for (long i = 1; i <= 5; i++) {
+      assertThat(store.putIfAbsentByHash(i * capacity << 32 | i * capacity, (int) i)).isEqualTo(-1);
+    }
+    for (long i = 1; i <= 5; i++) {
+      assertThat(store.getByHash(i * capacity << 32 | i * capacity)).isEqualTo((int) i);
+    }
+    assertThat(store.removeByHash(3L * capacity << 32 | 3L * capacity)).isEqualTo(3);
+    assertThat(store.getByHash(5L * capacity << 32 | 5L * capacity)).isEqualTo(5);
+    assertThat(store.getByHash(6L * capacity << 32 | 6L * capacity)).isEqualTo(-1);
+
+    // Hashes are 64-bit and never mark a free slot.
+    assertThat(CompactAffinityStore.hash("session1"))
+        .isNotEqualTo(CompactAffinityStore.hash("session2"));
+    assertThat(CompactAffinityStore.hash("")).isNotEqualTo(0);
+  }
+
+  @Test
+  public void testCompactAffinityStoreRebuild() throws InterruptedException {
+    CompactAffinityStore store = new CompactAffinityStore();
+    int keys = 10_000;
+    for (int i = 0; i < keys; i++) {
+      assertThat(store.putIfAbsent("projects/p/sessions/" + i, i % 8)).isEqualTo(-1);
+    }
+    assertThat(store.size()).isEqualTo(keys);
+    assertThat(store.capacity()).isAtLeast(keys * 2);
+    for (int i = 0; i < keys; i++) {
+      assertThat(store.get("projects/p/sessions/" + i)).isEqualTo(i % 8);
+    }
+
+    // Unbound keys keep their slots until the next rebuild, which drops them and shrinks the table.
+    for (int i = 0; i < keys; i++) {
+      assertThat(store.remove("projects/p/sessions/" + i)).isEqualTo(i % 8);
+    }
+    for (int i = 0; i < keys; i++) {
+      store.putIfAbsent("other/" + i, 1);
+      store.remove("other/" + i);
+    }
+    assertThat(store.size()).isEqualTo(0);
+    assertThat(store.capacity()).isLessThan(keys);
+
+    // Concurrent binds and unbinds across rebuilds.
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      executor.execute(
+          () -> {
+            for (int i = 0; i < keys; i++) {
+              String key = thread + "/" + i;
+              store.putIfAbsent(key, thread);
+              if (i % 2 == 0) {
+                store.remove(key);
+              }
+            }
+          });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+    assertThat(store.size()).isEqualTo(4 * keys / 2);
+    for (int t = 0; t < 4; t++) {
+      assertThat(store.get(t + "/1")).isEqualTo(t);
+      assertThat(store.get(t + "/2")).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void testBindUnbindKeyCompactAffinityStore() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setUseCompactAffinityStore(true)
+                                .build())
+                        .build())
+                .build();
+    ChannelRef cf1 = gcpChannel.new ChannelRef(builder.build(), 1, 0, 5);
+    ChannelRef cf2 = gcpChannel.new ChannelRef(builder.build(), 2, 0, 4);
+    gcpChannel.channelRefs.add(cf1);
+    gcpChannel.channelRefs.add(cf2);
+
+    gcpChannel.bind(cf1, Arrays.asList("key1", "key2"));
+    gcpChannel.bind(cf2, Collections.singletonList("key3"));
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(3);
+    assertThat(gcpChannel.affinityKeyToChannelRef).isEmpty();
+    assertThat(gcpChannel.getChannelRef("key1")).isSameAs(cf1);
+    assertThat(gcpChannel.getChannelRef("key3")).isSameAs(cf2);
+
+    // Rebinding moves the key and its affinity count.
+    gcpChannel.bind(cf2, Collections.singletonList("key1"));
+    assertThat(cf1.getAffinityCount()).isEqualTo(1);
+    assertThat(cf2.getAffinityCount()).isEqualTo(2);
+    assertThat(gcpChannel.getChannelRef("key1")).isSameAs(cf2);
+
+    gcpChannel.unbind(Arrays.asList("key1", "key2", "key3", "key4"));
+    assertThat(cf1.getAffinityCount()).isEqualTo(0);
+    assertThat(cf2.getAffinityCount()).isEqualTo(0);
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(0);
+
+    // Bound channels are looked up by id among the channels of the pool.
+    gcpChannel.bind(cf2, Collections.singletonList("key5"));
+    assertThat(gcpChannel.getChannelRef("key5")).isSameAs(cf2);
+    gcpChannel.channelRefs.remove(cf2);
+    assertThat(gcpChannel.getChannelRef("key5")).isNotSameAs(cf2);
+  }
+
+  @Test
+  public void testAffinityKeyExpiry() {
+    // Ticks of a quarter of the timeout.
+    AffinityKeyExpiry expiry = new AffinityKeyExpiry(Duration.ofHours(1).toNanos(), 0);
+    assertThat(expiry.getTickNanos()).isEqualTo(Duration.ofMinutes(15).toNanos());
+    for (int i = 0; i < 3; i++) {
+      expiry.advance();
+    }
+    AffinityKeyExpiry.Sweep sweep = expiry.startSweep(2, consumer -> {});
+    assertThat(sweep.shouldUnbind(0)).isFalse();
+    expiry.advance();
+    sweep = expiry.startSweep(2, consumer -> {});
+    assertThat(sweep.shouldUnbind(0)).isTrue();
+    assertThat(sweep.shouldUnbind(1)).isFalse();
+    assertThat(expiry.getExpiredKeys()).isEqualTo(1);
+
+    // Without a timeout there is nothing to sweep until there are too many keys.
+    expiry = new AffinityKeyExpiry(0, 10);
+    assertThat(expiry.startSweep(10, consumer -> {})).isNull();
+    for (int i = 0; i < 5; i++) {
+      expiry.advance();
+    }
+    // 12 keys over the limit of 10 leave 9 keys, i.e. the 3 least recently used keys are evicted.
+    int[] lastUses = {0, 0, 1, 1, 1, 2, 3, 4, 5, 5, 5, 5};
+    sweep =
+        expiry.startSweep(
+            lastUses.length,
+            consumer -> {
+              for (int lastUse : lastUses) {
+                consumer.accept(lastUse);
+              }
+            });
+    List<Integer> evicted = new ArrayList<>();
+    for (int lastUse : lastUses) {
+      if (sweep.shouldUnbind(lastUse)) {
+        evicted.add(lastUse);
+      }
+    }
+    assertThat(evicted).containsExactly(0, 0, 1);
+    assertThat(expiry.getEvictedKeys()).isEqualTo(3);
+    assertThat(expiry.getExpiredKeys()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAffinityKeyTimeout() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setAffinityKeyTimeout(Duration.ofHours(1))
+                                .build())
+                        .build())
+                .build();
+    ChannelRef cf1 = gcpChannel.new ChannelRef(builder.build(), 1, 0, 0);
+    ChannelRef cf2 = gcpChannel.new ChannelRef(builder.build(), 2, 0, 0);
+    gcpChannel.channelRefs.add(cf1);
+    gcpChannel.channelRefs.add(cf2);
+    gcpChannel.bind(cf1, Arrays.asList("key1", "key2"));
+    gcpChannel.bind(cf2, Collections.singletonList("key3"));
+
+    gcpChannel.tickAffinityKeys();
+    gcpChannel.tickAffinityKeys();
+    assertThat(gcpChannel.getChannelRef("key1")).isSameAs(cf1);
+    gcpChannel.tickAffinityKeys();
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(3);
+
+    // Keys not used for 4 ticks expire.
+    gcpChannel.tickAffinityKeys();
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(1);
+    assertThat(gcpChannel.affinityKeyToChannelRef).containsKey("key1");
+    assertThat(cf1.getAffinityCount()).isEqualTo(1);
+    assertThat(cf2.getAffinityCount()).isEqualTo(0);
+
+    // The next call binds the key again.
+    gcpChannel.getChannelRef("key3");
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testAffinityKeysDoNotExpireWithChannelIdleTimeout() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withApiConfig(
+                    ApiConfig.newBuilder()
+                        .setChannelPool(ChannelPoolConfig.newBuilder().setIdleTimeout(1))
+                        .build())
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder().setMaxAffinityKeys(100).build())
+                        .build())
+                .build();
+    ChannelRef cf1 = gcpChannel.new ChannelRef(builder.build(), 1, 0, 0);
+    gcpChannel.channelRefs.add(cf1);
+    gcpChannel.bind(cf1, Collections.singletonList("key1"));
+
+    // The idle timeout of the ApiConfig applies to channels only, keys expire only if opted in.
+    for (int i = 0; i < AffinityKeyExpiry.MAX_AGE + 1; i++) {
+      gcpChannel.tickAffinityKeys();
+    }
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(1);
+    assertThat(cf1.getAffinityCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testMaxAffinityKeys() throws InterruptedException {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setUseCompactAffinityStore(true)
+                                .setMaxAffinityKeys(10)
+                                .build())
+                        .build())
+                .build();
+    ChannelRef cf1 = gcpChannel.new ChannelRef(builder.build(), 1, 0, 0);
+    ChannelRef cf2 = gcpChannel.new ChannelRef(builder.build(), 2, 0, 0);
+    gcpChannel.channelRefs.add(cf1);
+    gcpChannel.channelRefs.add(cf2);
+    for (int i = 0; i < 5; i++) {
+      gcpChannel.bind(i % 2 == 0 ? cf1 : cf2, Collections.singletonList("key" + i));
+    }
+    gcpChannel.tickAffinityKeys();
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(5);
+    for (int i = 5; i < 11; i++) {
+      gcpChannel.bind(i % 2 == 0 ? cf1 : cf2, Collections.singletonList("key" + i));
+    }
+
+    // The 11th key starts an eviction down to 9 keys in the background.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (gcpChannel.getAffinityKeysCount() > 9 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(9);
+    assertThat(cf1.getAffinityCount() + cf2.getAffinityCount()).isEqualTo(9);
+    // Only the keys of the older tick were evicted.
+    for (int i = 5; i < 11; i++) {
+      assertThat(gcpChannel.getChannelRef("key" + i)).isSameAs(i % 2 == 0 ? cf1 : cf2);
+    }
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(9);
+  }
+
+  @Test
+  public void testHashAffinity() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withApiConfig(
+                    ApiConfig.newBuilder()
+                        .addMethod(
+                            MethodConfig.newBuilder()
+                                .addName("google.spanner.v1.Spanner/ExecuteSql")
+                                .setAffinity(
+                                    AffinityConfig.newBuilder()
+                                        .setCommand(AffinityConfig.Command.HASH)
+                                        .setAffinityKey("session")))
+                        .build())
+                .build();
+    ExecuteSqlRequest request = ExecuteSqlRequest.newBuilder().setSession("session1").build();
+    assertThat(gcpChannel.checkKeys(request, true, SpannerGrpc.getExecuteSqlMethod()))
+        .containsExactly("session1");
+
+    for (int i = 0; i < 4; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i, 0, 0));
+    }
+    Map<String, ChannelRef> channels = new HashMap<>();
+    Map<ChannelRef, Integer> keysPerChannel = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      String key = "key" + i;
+      ChannelRef channelRef = gcpChannel.getChannelRefForHash(key);
+      assertThat(gcpChannel.getChannelRefForHash(key)).isSameAs(channelRef);
+      channels.put(key, channelRef);
+      keysPerChannel.merge(channelRef, 1, Integer::sum);
+    }
+    // Nothing is bound.
+    assertThat(gcpChannel.getAffinityKeysCount()).isEqualTo(0);
+    for (ChannelRef channelRef : gcpChannel.channelRefs) {
+      assertThat(channelRef.getAffinityCount()).isEqualTo(0);
+      assertThat(keysPerChannel.get(channelRef)).isGreaterThan(150);
+    }
+
+    // Only the keys of a removed channel move.
+    ChannelRef removed = gcpChannel.channelRefs.remove(3);
+    for (Map.Entry<String, ChannelRef> entry : channels.entrySet()) {
+      ChannelRef channelRef = gcpChannel.getChannelRefForHash(entry.getKey());
+      if (entry.getValue() != removed) {
+        assertThat(channelRef).isSameAs(entry.getValue());
+      }
+    }
+
+    // Only keys moving to an added channel move.
+    gcpChannel.channelRefs.add(removed);
+    ChannelRef added = gcpChannel.new ChannelRef(builder.build(), 4, 0, 0);
+    gcpChannel.channelRefs.add(added);
+    int moved = 0;
+    for (Map.Entry<String, ChannelRef> entry : channels.entrySet()) {
+      ChannelRef channelRef = gcpChannel.getChannelRefForHash(entry.getKey());
+      if (channelRef != entry.getValue()) {
+        assertThat(channelRef).isSameAs(added);
+        moved++;
+      }
+    }
+    assertThat(moved).isGreaterThan(100);
+    assertThat(moved).isLessThan(300);
+  }
+
+  @Test
+  public void testSpreadOnBatchBind() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder()
+                                .setUseSpreadOnBatchBind(true)
+                                .build())
+                        .build())
+                .build();
+    ChannelRef cf0 = gcpChannel.new ChannelRef(builder.build(), 0, 2, 0);
+    ChannelRef cf1 = gcpChannel.new ChannelRef(builder.build(), 1, 0, 0);
+    ChannelRef cf2 = gcpChannel.new ChannelRef(builder.build(), 2, 1, 0);
+    gcpChannel.channelRefs.add(cf0);
+    gcpChannel.channelRefs.add(cf1);
+    gcpChannel.channelRefs.add(cf2);
+
+    // A single key is bound to the channel of the call.
+    gcpChannel.bindResponseKeys(cf1, Collections.singletonList("single"));
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("single")).isSameAs(cf1);
+    gcpChannel.unbind(Collections.singletonList("single"));
+
+    // Keys go to the channel with the fewest keys, the channel of the call wins ties.
+    gcpChannel.bindResponseKeys(
+        cf0, Arrays.asList("key0", "key1", "key2", "key3", "key4", "key5"));
+    assertThat(cf0.getAffinityCount()).isEqualTo(3);
+    assertThat(cf1.getAffinityCount()).isEqualTo(3);
+    assertThat(cf2.getAffinityCount()).isEqualTo(3);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key0")).isSameAs(cf1);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key1")).isSameAs(cf1);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key2")).isSameAs(cf2);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key3")).isSameAs(cf0);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key4")).isSameAs(cf1);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key5")).isSameAs(cf2);
+
+    // Keys are not spread to disconnected channels, also without fallback.
+    gcpChannel.processChannelStateChange(cf2.getId(), ConnectivityState.TRANSIENT_FAILURE);
+    gcpChannel.bindResponseKeys(cf0, Arrays.asList("key6", "key7"));
+    assertThat(cf2.getAffinityCount()).isEqualTo(3);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key6")).isSameAs(cf0);
+    assertThat(gcpChannel.affinityKeyToChannelRef.get("key7")).isSameAs(cf1);
+  }
+
+  @Test
+  public void testHotKeySpreading() {
+    resetGcpChannel();
+    gcpChannel =
+        (GcpManagedChannel)
+            GcpManagedChannelBuilder.forDelegateBuilder(builder)
+                .withOptions(
+                    GcpManagedChannelOptions.newBuilder()
+                        .withChannelPoolOptions(
+                            GcpChannelPoolOptions.newBuilder().setHotKeySpreading(3, 2).build())
+                        .build())
+                .build();
+    for (int i = 0; i < 3; i++) {
+      gcpChannel.channelRefs.add(gcpChannel.new ChannelRef(builder.build(), i, 0, 0));
+    }
+    ChannelRef bound = gcpChannel.channelRefs.get(0);
+    gcpChannel.bind(bound, Collections.singletonList("hot"));
+    HotKeyTracker tracker = gcpChannel.getHotKeyTracker();
+
+    // Keys of channels with fewer active streams than the threshold are not tracked.
+    assertThat(gcpChannel.trackHotKeyCall("hot", bound)).isNull();
+
+    for (int i = 0; i < 3; i++) {
+      bound.activeStreamsCountIncr();
+    }
+    List<HotKeyTracker.Key> calls = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      HotKeyTracker.Key key = gcpChannel.trackHotKeyCall("hot", bound);
+      assertThat(key).isNotNull();
+      assertThat(gcpChannel.getHotKeyChannelRef(key, bound)).isSameAs(bound);
+      calls.add(key);
+    }
+    assertThat(tracker.getHotKeys()).isEqualTo(0);
+
+    // The third concurrent call makes the key hot. Its calls are spread over the bound channel
+    // and the channel scoring highest for the key.
+    long keyHash = CompactAffinityStore.hash("hot");
+    ChannelRef cf1 = gcpChannel.channelRefs.get(1);
+    ChannelRef cf2 = gcpChannel.channelRefs.get(2);
+    ChannelRef second =
+        Long.compareUnsigned(
+                    GcpManagedChannel.rendezvousScore(keyHash, cf1.getId()),
+                    GcpManagedChannel.rendezvousScore(keyHash, cf2.getId()))
+                > 0
+            ? cf1
+            : cf2;
+    HotKeyTracker.Key key = gcpChannel.trackHotKeyCall("hot", bound);
+    assertThat(gcpChannel.getHotKeyChannelRef(key, bound)).isSameAs(second);
+    calls.add(key);
+    assertThat(key.getChannels()).containsExactly(bound, second).inOrder();
+    assertThat(tracker.getHotKeys()).isEqualTo(1);
+    assertThat(tracker.getSpreadCalls()).isEqualTo(1);
+    assertThat(tracker.getHotKeysLoad())
+        .containsExactly("hot", Collections.singletonMap(second.getId(), 1L));
+
+    // The least busy of the key's channels is used.
+    for (int i = 0; i < 4; i++) {
+      second.activeStreamsCountIncr();
+    }
+    key = gcpChannel.trackHotKeyCall("hot", bound);
+    assertThat(gcpChannel.getHotKeyChannelRef(key, bound)).isSameAs(bound);
+    calls.add(key);
+
+    // Other keys are not tracked.
+    assertThat(gcpChannel.trackHotKeyCall("cold", cf1 == second ? cf2 : cf1)).isNull();
+
+    // The key is forgotten when all its calls end.
+    for (HotKeyTracker.Key call : calls) {
+      gcpChannel.hotKeyCallEnded(call);
+    }
+    assertThat(tracker.getHotKeys()).isEqualTo(0);
+    assertThat(tracker.getHotKeysLoad()).isEmpty();
+    assertThat(tracker.getSpreadCalls()).isEqualTo(1);
+  }
+
   @Test
   public void testUsingKeyWithoutBinding() {
     // Initialize the channel and bind the key, check the affinity count.
@@ -638,6 +2895,34 @@ public final class GcpManagedChannelTest {
     assertEquals(0, result.size());
   }
 
+  @Test
+  public void testAffinityKeyExtractor() {
+    AffinityKeyExtractor extractor = new AffinityKeyExtractor("session.name");
+    BatchCreateSessionsResponse resp =
+        BatchCreateSessionsResponse.newBuilder()
+            .addSession(Session.newBuilder().setName("session1"))
+            .addSession(Session.newBuilder())
+            .addSession(Session.newBuilder().setName("session3"))
+            .build();
+    // Repeated messages on the path.
+    assertThat(extractor.extract(resp)).containsExactly("session1", "session3").inOrder();
+    assertThat(extractor.extract(BatchCreateSessionsResponse.getDefaultInstance())).isEmpty();
+    // The resolved path is reused and re-resolved for another message type.
+    assertThat(extractor.extract(resp.toBuilder())).containsExactly("session1", "session3");
+    assertThat(extractor.extract(Session.newBuilder().setName("name").build())).isEmpty();
+
+    // Singular messages on the path.
+    extractor = new AffinityKeyExtractor("session");
+    assertThat(extractor.extract(Session.newBuilder().setName("s").build())).isEmpty();
+    PartitionReadRequest req = PartitionReadRequest.newBuilder().setSession("key").build();
+    assertThat(extractor.extract(req)).containsExactly("key");
+    assertThat(extractor.extract(PartitionReadRequest.getDefaultInstance())).isEmpty();
+
+    // The last field must be a string field.
+    assertThat(new AffinityKeyExtractor("transaction").extract(req)).isEmpty();
+    assertThat(new AffinityKeyExtractor("session.name").extract(req)).isEmpty();
+  }
+
   @Test
   public void testParseGoodJsonFile() {
     final URL resource = GcpManagedChannelTest.class.getClassLoader().getResource(API_FILE);
@@ -1335,6 +3620,27 @@ public final class GcpManagedChannelTest {
     assertThat(gcpChannel.getNumberOfChannels()).isEqualTo(gcpChannel.getMaxSize());
   }
 
+  static class FakeChannelBuilder extends ForwardingChannelBuilder<FakeChannelBuilder> {
+    final List<FakeManagedChannel> channels = new CopyOnWriteArrayList<>();
+    private final ExecutorService exec;
+
+    FakeChannelBuilder(ExecutorService exec) {
+      this.exec = exec;
+    }
+
+    @Override
+    protected ManagedChannelBuilder<?> delegate() {
+      return ManagedChannelBuilder.forAddress(TARGET, 443);
+    }
+
+    @Override
+    public ManagedChannel build() {
+      FakeManagedChannel channel = new FakeManagedChannel(exec);
+      channels.add(channel);
+      return channel;
+    }
+  }
+
   static class FakeManagedChannel extends ManagedChannel {
     private ConnectivityState state = ConnectivityState.IDLE;
     private Runnable stateCallback;
@@ -1465,4 +3771,80 @@ public final class GcpManagedChannelTest {
       return null;
     }
   }
+
+  // Makes calls which record the operations and let the test respond.
+  static class RecordingManagedChannel extends FakeIdleCountingManagedChannel {
+    private final List<RecordingCall<?, ?>> calls;
+
+    RecordingManagedChannel(List<RecordingCall<?, ?>> calls) {
+      super(new AtomicInteger());
+      this.calls = calls;
+    }
+
+    @Override
+    public ConnectivityState getState(boolean requestConnection) {
+      return ConnectivityState.READY;
+    }
+
+    @Override
+    public <RequestT, ResponseT> ClientCall<RequestT, ResponseT> newCall(
+        MethodDescriptor<RequestT, ResponseT> methodDescriptor, CallOptions callOptions) {
+      RecordingCall<RequestT, ResponseT> call = new RecordingCall<>(this);
+      calls.add(call);
+      return call;
+    }
+  }
+
+  static class RecordingCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+    final ManagedChannel channel;
+    final List<String> events = new CopyOnWriteArrayList<>();
+    private Listener<RespT> listener;
+
+    RecordingCall(ManagedChannel channel) {
+      this.channel = channel;
+    }
+
+    @SuppressWarnings("unchecked")
+    void respond(Object message) {
+      listener.onMessage((RespT) message);
+    }
+
+    void close(Status status) {
+      listener.onClose(status, new Metadata());
+    }
+
+    // Operations may run on another thread, which is still draining the operations of the call.
+    void awaitEvent(String event) throws InterruptedException {
+      for (int i = 0; i < 100 && !events.contains(event); i++) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertThat(events).contains(event);
+    }
+
+    @Override
+    public void start(Listener<RespT> responseListener, Metadata headers) {
+      listener = responseListener;
+      events.add("start");
+    }
+
+    @Override
+    public void request(int numMessages) {
+      events.add("request " + numMessages);
+    }
+
+    @Override
+    public void cancel(String message, Throwable cause) {
+      events.add("cancel");
+    }
+
+    @Override
+    public void halfClose() {
+      events.add("halfClose");
+    }
+
+    @Override
+    public void sendMessage(ReqT message) {
+      events.add("message");
+    }
+  }
 }